@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Android entry points for {@link ExifInterface} that deal in {@link Bitmap}s.
+ * The codec itself is plain Java and lives in the exif module; these helpers
+ * only compress or decode bitmaps around its byte-level API.
+ */
+public final class ExifBitmapAdapter {
+    private static final String NULL_ARGUMENT_STRING = "Argument is null";
+
+    private ExifBitmapAdapter() {
+    }
+
+    /**
+     * Writes the tags from the given ExifInterface object into a jpeg
+     * compressed bitmap, removing prior exif tags.
+     *
+     * @param exif the ExifInterface holding the tags to write.
+     * @param bmap a bitmap to compress and write exif into.
+     * @param exifOutStream the OutputStream to which the jpeg image with added
+     *            exif tags will be written.
+     * @throws IOException
+     */
+    public static void writeExif(ExifInterface exif, Bitmap bmap, OutputStream exifOutStream)
+            throws IOException {
+        if (exif == null || bmap == null || exifOutStream == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        OutputStream s = exif.getExifWriterStream(exifOutStream);
+        bmap.compress(Bitmap.CompressFormat.JPEG, 90, s);
+        s.flush();
+    }
+
+    /**
+     * Writes the tags from the given ExifInterface object into a jpeg
+     * compressed bitmap, removing prior exif tags.
+     *
+     * @param exif the ExifInterface holding the tags to write.
+     * @param bmap a bitmap to compress and write exif into.
+     * @param exifOutFileName a String containing the filepath to which the jpeg
+     *            image with added exif tags will be written.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public static void writeExif(ExifInterface exif, Bitmap bmap, String exifOutFileName)
+            throws FileNotFoundException, IOException {
+        if (exif == null || bmap == null || exifOutFileName == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        OutputStream s = null;
+        try {
+            s = exif.getExifWriterStream(exifOutFileName);
+            bmap.compress(Bitmap.CompressFormat.JPEG, 90, s);
+            s.flush();
+        } catch (IOException e) {
+            ExifInterface.closeSilently(s);
+            throw e;
+        }
+        s.close();
+    }
+
+    /**
+     * Returns the thumbnail from IFD1 as a bitmap, or null if none exists.
+     *
+     * @param exif the ExifInterface to read the thumbnail from.
+     * @return the thumbnail as a bitmap.
+     */
+    public static Bitmap getThumbnailBitmap(ExifInterface exif) {
+        byte[] thumb = exif.getThumbnail();
+        if (thumb != null) {
+            return BitmapFactory.decodeByteArray(thumb, 0, thumb.length);
+        }
+        // TODO: implement uncompressed
+        return null;
+    }
+
+    /**
+     * Sets the thumbnail to be a jpeg compressed bitmap. Clears any prior
+     * thumbnail.
+     *
+     * @param exif the ExifInterface to set the thumbnail on.
+     * @param thumb a bitmap to compress to a jpeg thumbnail.
+     * @return true if the thumbnail was set.
+     */
+    public static boolean setCompressedThumbnail(ExifInterface exif, Bitmap thumb) {
+        ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+        if (!thumb.compress(Bitmap.CompressFormat.JPEG, 90, thumbnail)) {
+            return false;
+        }
+        return exif.setCompressedThumbnail(thumbnail.toByteArray());
+    }
+}
@@ -0,0 +1,186 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps mutable Bitmaps that cleanup is done with, so the next
+ * picture of the same size can decode into one via inBitmap,
+ * or draw its transformed pixels into one, instead of
+ * allocating a fresh frame. Bitmaps are matched on exact size
+ * and config, which is what inBitmap requires before API
+ * Level 19 and is what a camera taking the same picture size
+ * produces anyway.
+ *
+ * The pool holds at most a quarter of the VM's maximum heap,
+ * evicting the least recently returned Bitmaps. What it holds
+ * counts against the HeapBudget, which evicts Bitmaps to make
+ * room for pictures in flight and drains the pool under
+ * memory pressure. Below API Level
+ * 11 there is no inBitmap, and nothing is pooled.
+ */
+class BitmapPool {
+  private static final BitmapPool INSTANCE=
+      new BitmapPool(Runtime.getRuntime().maxMemory() / 4);
+  private final LinkedList<Bitmap> bitmaps=new LinkedList<Bitmap>();
+  private final long maxBytes;
+  private long bytes=0;
+
+  static BitmapPool get() {
+    return(INSTANCE);
+  }
+
+  BitmapPool(long maxBytes) {
+    this.maxBytes=maxBytes;
+  }
+
+  static boolean isSupported() {
+    return(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB);
+  }
+
+  /**
+   * @return a pooled Bitmap of this size and config, with
+   *         stale pixels, or a new mutable one
+   */
+  Bitmap obtain(int width, int height, Bitmap.Config config) {
+    Bitmap result=take(width, height, config);
+
+    if (result == null) {
+      result=Bitmap.createBitmap(width, height, config);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Decodes a JPEG of a known size into a pooled Bitmap, if
+   * there is one.
+   */
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  Bitmap decode(byte[] jpeg, int width, int height) {
+    if (!isSupported()) {
+      return(BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length));
+    }
+
+    BitmapFactory.Options opts=new BitmapFactory.Options();
+
+    opts.inMutable=true;
+    opts.inBitmap=take(width, height, Bitmap.Config.ARGB_8888);
+
+    try {
+      return(BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts));
+    }
+    catch (IllegalArgumentException e) {
+      // the decoder would not reuse it after all
+
+      put(opts.inBitmap);
+      opts.inBitmap=null;
+
+      return(BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts));
+    }
+  }
+
+  /**
+   * Hands a Bitmap back for reuse; it must no longer be used
+   * by the caller. Bitmaps that cannot be reused are
+   * recycled.
+   */
+  synchronized void put(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled()) {
+      return;
+    }
+
+    long size=sizeOf(bitmap);
+
+    if (!isSupported() || !bitmap.isMutable() || size > maxBytes) {
+      bitmap.recycle();
+
+      return;
+    }
+
+    bitmaps.addFirst(bitmap);
+    bytes+=size;
+    trimTo(maxBytes);
+  }
+
+  /**
+   * Releases pooled Bitmaps according to a
+   * ComponentCallbacks2 trim level: half of them for
+   * RUNNING_MODERATE, all of them for RUNNING_LOW and up,
+   * which includes UI_HIDDEN and the background levels.
+   */
+  synchronized void trim(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      trimTo(0);
+    }
+    else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      trimTo(maxBytes / 2);
+    }
+  }
+
+  private synchronized Bitmap take(int width, int height,
+                                   Bitmap.Config config) {
+    for (Iterator<Bitmap> i=bitmaps.iterator(); i.hasNext();) {
+      Bitmap candidate=i.next();
+
+      if (candidate.getWidth() == width
+          && candidate.getHeight() == height
+          && candidate.getConfig() == config) {
+        i.remove();
+        bytes-=sizeOf(candidate);
+
+        return(candidate);
+      }
+    }
+
+    return(null);
+  }
+
+  /**
+   * @return the bytes held by pooled Bitmaps
+   */
+  synchronized long getBytes() {
+    return(bytes);
+  }
+
+  /**
+   * Evicts the least recently returned Bitmaps until the pool
+   * holds no more than the given number of bytes.
+   */
+  synchronized void trimTo(long limit) {
+    while (bytes > limit && !bitmaps.isEmpty()) {
+      Bitmap evicted=bitmaps.removeLast();
+
+      bytes-=sizeOf(evicted);
+      evicted.recycle();
+    }
+
+    if (bitmaps.isEmpty()) {
+      // so HeapBudget never waits on bytes no Bitmap holds
+      bytes=0;
+    }
+  }
+
+  private static long sizeOf(Bitmap bitmap) {
+    return((long)bitmap.getRowBytes() * bitmap.getHeight());
+  }
+}
@@ -0,0 +1,115 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.content.ComponentCallbacks2;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps the output buffers that cleanup encodes JPEGs into,
+ * so a steady stream of same-sized pictures reuses one
+ * pre-sized buffer rather than growing a fresh
+ * ByteArrayOutputStream by doubling for each. Bounded by
+ * count and total size, and drained by HeapBudget under
+ * memory pressure.
+ */
+class BufferPool {
+  private static final int MAX_BUFFERS=2;
+  private static final BufferPool INSTANCE=
+      new BufferPool(Runtime.getRuntime().maxMemory() / 16);
+  private final LinkedList<Buffer> buffers=new LinkedList<Buffer>();
+  private final long maxBytes;
+
+  static BufferPool get() {
+    return(INSTANCE);
+  }
+
+  BufferPool(long maxBytes) {
+    this.maxBytes=maxBytes;
+  }
+
+  /**
+   * @param expectedSize
+   *          the likely size of the output, so the buffer
+   *          does not have to grow
+   * @return an empty buffer with at least that capacity
+   */
+  synchronized Buffer obtain(int expectedSize) {
+    for (Iterator<Buffer> i=buffers.iterator(); i.hasNext();) {
+      Buffer candidate=i.next();
+
+      if (candidate.capacity() >= expectedSize) {
+        i.remove();
+        candidate.reset();
+
+        return(candidate);
+      }
+    }
+
+    // a pooled buffer that is too small would only be
+    // copied out of while growing, so let it go
+
+    if (!buffers.isEmpty()) {
+      buffers.removeLast();
+    }
+
+    return(new Buffer(expectedSize));
+  }
+
+  synchronized void put(Buffer buffer) {
+    if (buffer.capacity() > maxBytes) {
+      return;
+    }
+
+    buffers.addFirst(buffer);
+
+    int count=0;
+    long bytes=0;
+
+    for (Iterator<Buffer> i=buffers.iterator(); i.hasNext();) {
+      Buffer b=i.next();
+
+      if (count < MAX_BUFFERS && bytes + b.capacity() <= maxBytes) {
+        count++;
+        bytes+=b.capacity();
+      }
+      else {
+        i.remove();
+      }
+    }
+  }
+
+  synchronized void trim(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      buffers.clear();
+    }
+  }
+
+  /**
+   * A ByteArrayOutputStream that can report and keep its
+   * capacity across uses.
+   */
+  static class Buffer extends ByteArrayOutputStream {
+    Buffer(int size) {
+      super(size);
+    }
+
+    int capacity() {
+      return(buf.length);
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.commonsware.cwac.camera;
 import android.graphics.Bitmap;
 import android.hardware.Camera;
 import android.media.MediaRecorder;
+import java.io.File;
 
 /**
  * Specification of a CameraHost, which is the primary way
@@ -245,6 +246,73 @@ public interface CameraHost extends Camera.AutoFocusCallback {
    */
   void saveImage(PictureTransaction xact, byte[] image);
 
+  /**
+   * Called when a picture's JPEG has to be written anew after
+   * cleanup (e.g., it was rotated with a Matrix, or it needs
+   * a new EXIF header for its orientation or for the
+   * PictureTransaction's EXIF tags), to let it be written
+   * straight into a file instead of into a byte[]. This will
+   * be called on a background thread.
+   * 
+   * If the File cannot be written, onImageSaved() reports
+   * the failure and the byte[] is then passed to
+   * saveImage(PictureTransaction, byte[]) as usual, so the
+   * picture is not lost.
+   * 
+   * @return the File to write the picture to, in place of
+   *         calling saveImage(PictureTransaction, byte[]), or
+   *         null to get the byte[] as usual
+   */
+  File getDirectSaveFile(PictureTransaction xact);
+
+  /**
+   * Called when a picture written by the library, either
+   * because of getDirectSaveFile() or by a SaveWriter, is in
+   * place under its final name, or has failed to get there.
+   * This will be called on a background thread.
+   * 
+   * @param result
+   *          the file, and the exception if it failed
+   */
+  void onImageSaved(SaveWriter.Result result);
+
+  /**
+   * Called with the camera's JPEG before any cleanup, if
+   * needOriginalImage() was requested on the
+   * PictureTransaction, so you can show it while the
+   * saveImage() calls are still being worked on. This will
+   * be called on a background thread.
+   * 
+   * @param image
+   *          the JPEG data as delivered by the camera; do not
+   *          modify it
+   * @param orientation
+   *          the EXIF orientation value (e.g.,
+   *          ExifInterface.Orientation.RIGHT_TOP) that
+   *          describes how to rotate and mirror the image for
+   *          display, regardless of any EXIF in the JPEG
+   *          itself
+   * @return true to go on with cleanup and saveImage(), false
+   *         to stop here
+   */
+  boolean onOriginalImage(PictureTransaction xact, byte[] image,
+                          int orientation);
+
+  /**
+   * Called for each Rendition requested on the
+   * PictureTransaction, once it has been encoded. This will be
+   * called on a background thread, possibly on several at
+   * once for different renditions of the same picture, and
+   * usually before saveImage().
+   * 
+   * @param rendition
+   *          the Rendition that was requested
+   * @param image
+   *          the JPEG data of the rendition
+   */
+  void saveRendition(PictureTransaction xact, Rendition rendition,
+                     byte[] image);
+
   /**
    * @return true if you want the camera to keep the preview
    *         disabled after taking a picture (e.g., you want
@@ -269,8 +337,23 @@ public interface CameraHost extends Camera.AutoFocusCallback {
    *          a FailureReason indicating what went wrong
    */
   void onCameraFail(FailureReason reason);
+
+  /**
+   * Called when the CameraView is paused and has released the
+   * camera, such as from CameraFragment's onPause(), so work
+   * that was being batched up can be finished
+   */
+  void onCameraViewPaused();
   
   boolean useFullBleedPreview();
   
   float maxPictureCleanupHeapUsage();
+
+  /**
+   * @return the CapturePipeline that post-processes and
+   *         saves pictures taken with this host; return the
+   *         same instance every time, as it owns the worker
+   *         threads
+   */
+  CapturePipeline getCapturePipeline();
 }
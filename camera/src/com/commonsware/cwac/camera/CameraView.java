@@ -151,6 +151,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     removeView(previewStrategy.getWidget());
     onOrientationChange.disable();
     lastPictureOrientation=-1;
+    getHost().onCameraViewPaused();
   }
 
   // based on CameraPreview.java from ApiDemos
@@ -850,7 +851,9 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
       camera.setParameters(previewParams);
 
       if (data != null) {
-        new ImageCleanupTask(getContext(), data, cameraId, xact).start();
+        xact.host.getCapturePipeline()
+                 .submit(new ImageCleanupTask(getContext(), data,
+                                              cameraId, xact));
       }
 
       if (!xact.useSingleShotMode()) {
@@ -0,0 +1,457 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Post-processes pictures in a chain of stages, each with its
+ * own small worker pool and bounded queue, so rapid shooting
+ * cannot pile up an unbounded number of threads and decoded
+ * frames. The standard chain is PARSE (camera info and
+ * orientation), TRANSFORM (rotation and mirroring), RENDER
+ * (any Renditions, handed to saveRendition()), ENCODE (the
+ * final JPEG) and SAVE (the CameraHost saveImage() calls).
+ * Use a Builder to add your own stages or to resize the
+ * standard ones.
+ *
+ * When a stage's queue is full, the Backpressure policy
+ * decides what happens to a picture handed to it. The first
+ * stage is fed from the main application thread, where the
+ * camera normally delivers pictures, so it never waits: under
+ * BLOCK and DEGRADE it queues pictures beyond its queue size,
+ * as their JPEGs are already in memory, and only DROP_OLDEST
+ * discards pictures. Each dropped picture is reported to the
+ * CameraHost's handleException() as a
+ * PictureDroppedException.
+ */
+public class CapturePipeline {
+  /**
+   * What to do when a stage's queue is full.
+   */
+  public enum Backpressure {
+    /**
+     * Wait for room, so nothing is lost; the first stage takes
+     * the overflow instead of waiting, and pictures pile up
+     * there until the slowest stage catches up
+     */
+    BLOCK,
+    /**
+     * Discard the oldest picture waiting in that stage
+     */
+    DROP_OLDEST,
+    /**
+     * Like BLOCK, but mark a picture that finds its stage full
+     * degraded, so its rotation is recorded in EXIF instead of
+     * being applied to the pixels (see
+     * PictureTransaction.CleanupMode)
+     */
+    DEGRADE
+  }
+
+  /**
+   * Passed to CameraHost.handleException() for a picture
+   * that was discarded rather than processed, because a
+   * stage was full or the pipeline was shut down.
+   */
+  public static class PictureDroppedException extends Exception {
+    private static final long serialVersionUID=1L;
+    private final PictureTransaction xact;
+    private final Stage stage;
+
+    PictureDroppedException(PictureTransaction xact, Stage stage,
+                            String message) {
+      super(message);
+      this.xact=xact;
+      this.stage=stage;
+    }
+
+    public PictureTransaction getTransaction() {
+      return(xact);
+    }
+
+    /**
+     * @return the stage the picture was waiting for
+     */
+    public Stage getStage() {
+      return(stage);
+    }
+  }
+
+  /**
+   * One step of the pipeline. Implementations may read and
+   * replace the task's JPEG or Bitmap. Each stage runs on its
+   * own worker threads, so a stage with more than one thread
+   * must be safe to call concurrently.
+   */
+  public interface Stage {
+    void process(ImageCleanupTask task) throws Exception;
+  }
+
+  public static final Stage PARSE=new Stage() {
+    @Override
+    public void process(ImageCleanupTask task) {
+      task.parse();
+    }
+
+    @Override
+    public String toString() {
+      return("parse");
+    }
+  };
+
+  public static final Stage TRANSFORM=new Stage() {
+    @Override
+    public void process(ImageCleanupTask task) {
+      task.transform();
+    }
+
+    @Override
+    public String toString() {
+      return("transform");
+    }
+  };
+
+  public static final Stage RENDER=new Stage() {
+    @Override
+    public void process(ImageCleanupTask task) {
+      task.render();
+    }
+
+    @Override
+    public String toString() {
+      return("render");
+    }
+  };
+
+  public static final Stage ENCODE=new Stage() {
+    @Override
+    public void process(ImageCleanupTask task) {
+      task.encode();
+    }
+
+    @Override
+    public String toString() {
+      return("encode");
+    }
+  };
+
+  public static final Stage SAVE=new Stage() {
+    @Override
+    public void process(ImageCleanupTask task) {
+      task.save();
+    }
+
+    @Override
+    public String toString() {
+      return("save");
+    }
+  };
+
+  private static final long IDLE_TIMEOUT_SECONDS=30;
+  private final StageRunner[] runners;
+
+  private CapturePipeline(Builder builder) {
+    runners=new StageRunner[builder.stages.size()];
+
+    for (int i=runners.length - 1; i >= 0; i--) {
+      runners[i]=
+          new StageRunner(builder.stages.get(i), builder.threads.get(i),
+                          builder.queueSizes.get(i),
+                          builder.backpressure,
+                          (i + 1 < runners.length ? runners[i + 1] : null),
+                          i == 0);
+    }
+  }
+
+  /**
+   * Hands a picture to the first stage, subject to the
+   * Backpressure policy.
+   */
+  void submit(ImageCleanupTask task) {
+    if (runners.length == 0) {
+      return;
+    }
+
+    runners[0].submit(task);
+  }
+
+  /**
+   * Stops accepting pictures; those already queued are still
+   * processed.
+   */
+  public void shutdown() {
+    for (StageRunner runner : runners) {
+      runner.executor.shutdown();
+    }
+  }
+
+  public static class Builder {
+    private final ArrayList<Stage> stages=new ArrayList<Stage>();
+    private final ArrayList<Integer> threads=new ArrayList<Integer>();
+    private final ArrayList<Integer> queueSizes=
+        new ArrayList<Integer>();
+    private Backpressure backpressure=Backpressure.BLOCK;
+
+    /**
+     * Starts from the standard stages. TRANSFORM, RENDER and
+     * ENCODE hold decoded frames, so RENDER and ENCODE queue
+     * at most one picture; the others only hold JPEG data.
+     * RENDER spreads its encoding over its own threads, so
+     * one RENDER thread is enough.
+     */
+    public Builder() {
+      addStage(PARSE, 1, 4);
+      addStage(TRANSFORM, 1, 4);
+      addStage(RENDER, 1, 1);
+      addStage(ENCODE, 1, 1);
+      addStage(SAVE, 1, 4);
+    }
+
+    public CapturePipeline build() {
+      return(new CapturePipeline(this));
+    }
+
+    public Builder backpressure(Backpressure backpressure) {
+      this.backpressure=backpressure;
+
+      return(this);
+    }
+
+    /**
+     * Appends a stage to the end of the pipeline.
+     */
+    public Builder addStage(Stage stage, int threadCount, int queueSize) {
+      return(insertStage(stages.size(), stage, threadCount, queueSize));
+    }
+
+    /**
+     * Inserts a stage just before an existing one, such as
+     * ENCODE to work on the transformed Bitmap.
+     */
+    public Builder addStageBefore(Stage existing, Stage stage,
+                                  int threadCount, int queueSize) {
+      return(insertStage(indexOf(existing), stage, threadCount,
+                         queueSize));
+    }
+
+    /**
+     * Changes the pool and queue size of an existing stage.
+     */
+    public Builder configureStage(Stage existing, int threadCount,
+                                  int queueSize) {
+      int i=indexOf(existing);
+
+      checkSizes(threadCount, queueSize);
+      threads.set(i, threadCount);
+      queueSizes.set(i, queueSize);
+
+      return(this);
+    }
+
+    public Builder removeStage(Stage existing) {
+      int i=indexOf(existing);
+
+      stages.remove(i);
+      threads.remove(i);
+      queueSizes.remove(i);
+
+      return(this);
+    }
+
+    private Builder insertStage(int i, Stage stage, int threadCount,
+                                int queueSize) {
+      checkSizes(threadCount, queueSize);
+      stages.add(i, stage);
+      threads.add(i, threadCount);
+      queueSizes.add(i, queueSize);
+
+      return(this);
+    }
+
+    private int indexOf(Stage existing) {
+      int i=stages.indexOf(existing);
+
+      if (i < 0) {
+        throw new IllegalArgumentException("Stage not in pipeline: "
+            + existing);
+      }
+
+      return(i);
+    }
+
+    private static void checkSizes(int threadCount, int queueSize) {
+      if (threadCount < 1 || queueSize < 1) {
+        throw new IllegalArgumentException(
+                                           "Stages need at least one thread and one queue slot");
+      }
+    }
+  }
+
+  private static class StageRunner implements RejectedExecutionHandler {
+    private final Stage stage;
+    private final Backpressure backpressure;
+    private final StageRunner next;
+    private final int queueSize;
+    private final boolean unbounded;
+    private final ThreadPoolExecutor executor;
+
+    StageRunner(final Stage stage, int threadCount, int queueSize,
+                Backpressure backpressure, StageRunner next,
+                boolean intake) {
+      this.stage=stage;
+      this.backpressure=backpressure;
+      this.next=next;
+      this.queueSize=queueSize;
+      unbounded=intake && backpressure != Backpressure.DROP_OLDEST;
+
+      ThreadFactory factory=new ThreadFactory() {
+        private final AtomicInteger count=new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          return(new Thread(r, "CWAC-Camera " + stage + " #"
+              + count.incrementAndGet()));
+        }
+      };
+
+      // the intake is fed from the main application thread,
+      // which must not wait, so unless pictures may be dropped
+      // it queues whatever arrives; the JPEGs are already on
+      // the heap and counted in the HeapBudget
+
+      BlockingQueue<Runnable> queue;
+
+      if (unbounded) {
+        queue=new LinkedBlockingQueue<Runnable>();
+      }
+      else {
+        queue=new ArrayBlockingQueue<Runnable>(queueSize);
+      }
+
+      executor=
+          new ThreadPoolExecutor(threadCount, threadCount,
+                                 IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                                 queue, factory, this);
+      executor.allowCoreThreadTimeOut(true);
+    }
+
+    void submit(ImageCleanupTask task) {
+      // an unbounded intake never rejects, so it applies
+      // DEGRADE itself
+
+      if (unbounded && backpressure == Backpressure.DEGRADE
+          && executor.getQueue().size() >= queueSize) {
+        task.degrade();
+      }
+
+      executor.execute(new Job(task));
+    }
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        drop(((Job)r).task, "Capture pipeline shut down, dropping picture");
+
+        return;
+      }
+
+      if (backpressure == Backpressure.DROP_OLDEST) {
+        Job oldest=(Job)executor.getQueue().poll();
+
+        if (oldest != null) {
+          drop(oldest.task, "Capture pipeline full at " + stage
+              + ", dropping oldest picture");
+        }
+
+        executor.execute(r);
+
+        return;
+      }
+
+      if (backpressure == Backpressure.DEGRADE) {
+        ((Job)r).task.degrade();
+      }
+
+      try {
+        executor.getQueue().put(r);
+        // in case the workers went idle while we waited
+        executor.prestartCoreThread();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        drop(((Job)r).task, "Interrupted waiting for " + stage
+            + ", dropping picture");
+      }
+    }
+
+    private void drop(ImageCleanupTask task, String message) {
+      PictureTransaction xact=task.getTransaction();
+
+      Log.w(CameraView.TAG, message);
+      task.abandon();
+      xact.host.handleException(new PictureDroppedException(xact, stage,
+                                                            message));
+    }
+
+    private class Job implements Runnable {
+      final ImageCleanupTask task;
+
+      Job(ImageCleanupTask task) {
+        this.task=task;
+      }
+
+      @Override
+      public void run() {
+        if (task.isCancelled()) {
+          task.abandon();
+
+          return;
+        }
+
+        try {
+          stage.process(task);
+        }
+        catch (Exception e) {
+          task.abandon();
+          task.getTransaction().host.handleException(e);
+
+          return;
+        }
+        catch (Error e) {
+          // the worker dies either way, but the picture's
+          // budget must not die with it, or every later
+          // picture waits on memory nobody holds
+
+          task.abandon();
+          throw e;
+        }
+
+        if (next != null) {
+          next.submit(task);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import com.android.mms.exif.ExifInterface;
+import com.android.mms.exif.ExifSegmentCopier;
+import com.android.mms.exif.ExifTag;
+
+/**
+ * Writes a picture's final JPEG in one pass: the orientation
+ * and the PictureTransaction's own ExifTags are merged into
+ * the camera's EXIF header as the image streams out, whether
+ * to a buffer for saveImage() or straight into the file from
+ * getDirectSaveFile(). A host that wants GPS data or a
+ * comment in its pictures never has to read a saved file back
+ * to add them.
+ */
+class CaptureWriter {
+  /**
+   * Passed as the orientation to leave the existing one alone
+   */
+  static final short KEEP_ORIENTATION=-1;
+  private final List<ExifTag> tags;
+
+  CaptureWriter(List<ExifTag> tags) {
+    this.tags=tags;
+  }
+
+  /**
+   * @return true if there is nothing to write, so the JPEG
+   *         can be used as it is
+   */
+  boolean isNoOp(short orientation) {
+    return(orientation == KEEP_ORIENTATION && tags.isEmpty());
+  }
+
+  /**
+   * Updates the JPEG's EXIF without moving anything, which
+   * only works if every tag is already there with room for
+   * its new value.
+   *
+   * @return true if the JPEG was updated
+   */
+  boolean rewriteInPlace(byte[] jpeg, short orientation) {
+    ExifInterface exif=new ExifInterface();
+
+    try {
+      return(exif.rewriteExif(ByteBuffer.wrap(jpeg), allTags(exif,
+                                                             orientation)));
+    }
+    catch (IOException e) {
+      return(false);
+    }
+  }
+
+  /**
+   * Copies the JPEG to the stream, with a new EXIF header
+   * carrying over the camera's tags plus the orientation and
+   * the transaction's tags.
+   */
+  void writeJpeg(byte[] jpeg, short orientation, OutputStream out)
+    throws IOException {
+    ExifInterface exif=new ExifInterface();
+
+    exif.readExif(jpeg);
+    exif.setTags(allTags(exif, orientation));
+    exif.writeExif(jpeg, out);
+  }
+
+  /**
+   * Encodes an upright Bitmap to the stream, with the EXIF
+   * header of the JPEG it came from, its orientation reset
+   * and its dimensions updated.
+   */
+  void writeBitmap(Bitmap bitmap, byte[] original, OutputStream out)
+    throws IOException {
+    OutputStream target;
+
+    if (tags.isEmpty()) {
+      // nothing to add, so the camera's EXIF can go over as
+      // raw bytes, patched in place
+
+      byte[] segment=
+          ExifSegmentCopier.copyExifSegment(original,
+                                            ExifInterface.Orientation.TOP_LEFT,
+                                            bitmap.getWidth(),
+                                            bitmap.getHeight(), true);
+
+      target=
+          (segment == null ? out
+              : ExifSegmentCopier.getExifWriterStream(segment, out));
+    }
+    else {
+      ExifInterface exif=new ExifInterface();
+
+      try {
+        exif.readExif(original);
+      }
+      catch (IOException e) {
+        Log.w(CameraView.TAG, "Could not read camera EXIF", e);
+        exif.clearExif();
+      }
+
+      // sizes are only updated where the camera wrote them;
+      // the thumbnail no longer matches the picture
+
+      exif.setTagValue(ExifInterface.TAG_IMAGE_WIDTH, bitmap.getWidth());
+      exif.setTagValue(ExifInterface.TAG_IMAGE_LENGTH, bitmap.getHeight());
+      exif.setTagValue(ExifInterface.TAG_PIXEL_X_DIMENSION,
+                       bitmap.getWidth());
+      exif.setTagValue(ExifInterface.TAG_PIXEL_Y_DIMENSION,
+                       bitmap.getHeight());
+      exif.removeCompressedThumbnail();
+      exif.setTags(allTags(exif, ExifInterface.Orientation.TOP_LEFT));
+      target=exif.getExifWriterStream(out);
+    }
+
+    if (!bitmap.compress(Bitmap.CompressFormat.JPEG, 100, target)) {
+      throw new IOException("Could not encode cleaned-up JPEG");
+    }
+
+    target.flush();
+  }
+
+  private List<ExifTag> allTags(ExifInterface exif, short orientation) {
+    ArrayList<ExifTag> result=new ArrayList<ExifTag>(tags.size() + 1);
+
+    if (orientation != KEEP_ORIENTATION) {
+      result.add(exif.buildTag(ExifInterface.TAG_ORIENTATION, orientation));
+    }
+
+    result.addAll(tags);
+
+    return(result);
+  }
+}
@@ -0,0 +1,232 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * Process-wide accounting of the heap held by pictures being
+ * post-processed: the JPEG of every picture in flight, plus
+ * the decoded frames or coefficients of those being
+ * transformed. Each picture asks for its working memory
+ * before allocating it and either gets it, waits for other
+ * pictures to give some back, or is told to make do with
+ * less. It only waits when pictures already being processed
+ * hold enough to cover the shortfall: the JPEGs of pictures
+ * still queued are not given back until those pictures are
+ * processed, which may well be after the one waiting.
+ *
+ * The budget is a share of the VM's maximum heap, and shrinks
+ * while the system reports memory pressure via
+ * onTrimMemory(). Bitmaps kept in the BitmapPool count
+ * against it as well; being only a cache, they are evicted to
+ * make room before a picture has to wait or is refused.
+ */
+public class HeapBudget {
+  private static final float DEFAULT_SHARE=0.5f;
+  // how long a trim level holds before the full budget can
+  // come back, once nothing is in flight
+  private static final long TRIM_HOLD_MS=10000;
+  private static HeapBudget INSTANCE=null;
+  private final BitmapPool pool=BitmapPool.get();
+  private final long maxBytes;
+  private long limit;
+  private long used=0;
+  private long queued=0;
+  private long trimmedAt=0;
+
+  /**
+   * @return the process-wide HeapBudget, registering for
+   *         memory trim callbacks on first use
+   */
+  public static synchronized HeapBudget get(Context ctxt) {
+    if (INSTANCE == null) {
+      INSTANCE=
+          new HeapBudget(
+                         (long)(Runtime.getRuntime().maxMemory() * DEFAULT_SHARE));
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+        INSTANCE.register(ctxt.getApplicationContext());
+      }
+    }
+
+    return(INSTANCE);
+  }
+
+  HeapBudget(long maxBytes) {
+    this.maxBytes=maxBytes;
+    this.limit=maxBytes;
+  }
+
+  /**
+   * @return the current budget, in bytes
+   */
+  public synchronized long getLimit() {
+    return(limit);
+  }
+
+  /**
+   * @return the bytes currently held by pictures in flight,
+   *         not counting the BitmapPool
+   */
+  public synchronized long getUsed() {
+    return(used);
+  }
+
+  /**
+   * Takes the bytes if they fit in what is left of the
+   * budget, otherwise waits for other pictures being
+   * processed to release memory.
+   *
+   * @param bytes
+   *          memory about to be allocated
+   * @param held
+   *          bytes the caller already holds in the budget,
+   *          which no amount of waiting will free; the caller
+   *          must have passed them to start()
+   * @param timeoutMs
+   *          how long to wait for room; 0 to not wait
+   * @return true if the bytes were granted and must later be
+   *         released, false if they do not fit even once
+   *         every other picture being processed is done, or
+   *         did not fit in time
+   */
+  public synchronized boolean acquire(long bytes, long held,
+                                      long timeoutMs)
+    throws InterruptedException {
+    long deadline=SystemClock.uptimeMillis() + timeoutMs;
+
+    while (used + bytes > limit - pool.getBytes()) {
+      if (used + bytes <= limit) {
+        pool.trimTo(limit - used - bytes);
+
+        continue;
+      }
+
+      long remaining=deadline - SystemClock.uptimeMillis();
+
+      // waiting only helps if other pictures being processed
+      // hold enough to make up the difference
+
+      long releasable=used - queued - held;
+
+      if (releasable < used + bytes - limit || remaining <= 0) {
+        return(false);
+      }
+
+      wait(remaining);
+    }
+
+    used+=bytes;
+
+    return(true);
+  }
+
+  /**
+   * Accounts for memory that is already allocated, such as
+   * the JPEG delivered by the camera, whether or not it fits.
+   * The bytes count as queued, and no picture waits for them,
+   * until start() is called for them.
+   */
+  public synchronized void reserve(long bytes) {
+    used+=bytes;
+    queued+=bytes;
+    pool.trimTo(Math.max(0, limit - used));
+  }
+
+  /**
+   * Marks reserved bytes as held by a picture that is now
+   * being processed, and so will release them when it is
+   * done; other pictures may wait for them from then on.
+   */
+  public synchronized void start(long bytes) {
+    queued=Math.max(0, queued - bytes);
+  }
+
+  public synchronized void release(long bytes) {
+    used=Math.max(0, used - bytes);
+
+    if (used == 0 && limit < maxBytes
+        && SystemClock.uptimeMillis() - trimmedAt > TRIM_HOLD_MS) {
+      limit=maxBytes;
+    }
+
+    notifyAll();
+  }
+
+  /**
+   * Drains the Bitmap and buffer pools according to a
+   * ComponentCallbacks2 trim level and, for the RUNNING_*
+   * levels only, shrinks the budget. The UI_HIDDEN and
+   * background levels leave the budget alone: nothing is
+   * being captured then, and a smaller limit would only
+   * degrade the first burst after the user comes back.
+   * Called automatically on API Level 14+.
+   */
+  public synchronized void onTrimMemory(int level) {
+    BitmapPool.get().trim(level);
+    BufferPool.get().trim(level);
+
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      return;
+    }
+
+    long trimmed;
+
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      trimmed=maxBytes / 4;
+    }
+    else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      trimmed=maxBytes / 2;
+    }
+    else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      trimmed=maxBytes * 3 / 4;
+    }
+    else {
+      return;
+    }
+
+    limit=Math.min(limit, trimmed);
+    trimmedAt=SystemClock.uptimeMillis();
+  }
+
+  @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+  private void register(Context app) {
+    app.registerComponentCallbacks(new ComponentCallbacks2() {
+      @Override
+      public void onTrimMemory(int level) {
+        HeapBudget.this.onTrimMemory(level);
+      }
+
+      @Override
+      public void onLowMemory() {
+        // also sent to foreground processes, so treat it as
+        // pressure while running
+
+        HeapBudget.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+      }
+
+      @Override
+      public void onConfigurationChanged(Configuration config) {
+        // unused
+      }
+    });
+  }
+}
@@ -20,19 +20,67 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.os.Build;
 import android.util.Log;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.android.mms.exif.ExifInterface;
+import com.android.mms.exif.ExifOrientationReader;
+import com.android.mms.exif.ExifSegmentCopier;
 
-public class ImageCleanupTask extends Thread {
+/**
+ * One picture on its way through the CapturePipeline: the
+ * JPEG from the camera, plus whatever the stages have worked
+ * out or produced so far. Running it directly applies every
+ * standard stage in turn on the calling thread.
+ */
+public class ImageCleanupTask implements Runnable {
+  // working memory estimates, per pixel of the picture
+  private static final int FRAME_BYTES_PER_PIXEL=4;
+  private static final long ADMIT_TIMEOUT_MS=5000;
+  private static final int MAX_SAMPLE_SIZE=8;
+  private static final ThreadPoolExecutor RENDITION_ENCODERS=
+      buildRenditionEncoders();
   private byte[] data;
   private int cameraId;
   private PictureTransaction xact=null;
   private boolean applyMatrix=true;
+  private volatile boolean degraded=false;
+  private volatile boolean cancelled=false;
+  private boolean originalShared=false;
+  private SaveWriter.Result savedDirectly=null;
+  private boolean flipped=false;
+  private boolean mirrored=false;
+  private int imageOrientation=0;
+  private byte[] transformed=null;
+  private Matrix matrix=null;
+  private Bitmap cleaned=null;
+  private Bitmap bitmap=null;
+  private HeapBudget budget;
+  private long jpegBytes;
+  private long workBytes=0;
+  private boolean started=false;
+  private int sampleSize=1;
+  private int width=-1;
+  private int height=-1;
+  private boolean skipBitmap=false;
 
   ImageCleanupTask(Context ctxt, byte[] data, int cameraId,
                    PictureTransaction xact) {
@@ -40,133 +88,908 @@ public class ImageCleanupTask extends Thread {
     this.cameraId=cameraId;
     this.xact=xact;
 
+    // the JPEG is already on the heap, so it counts whether
+    // or not it fits
+
+    budget=HeapBudget.get(ctxt);
+    jpegBytes=data.length;
+    budget.reserve(jpegBytes);
+
     float heapPct=(float)data.length / calculateHeapSize(ctxt);
 
-    applyMatrix=(heapPct < xact.host.maxPictureCleanupHeapUsage());
+    // the tiled path never holds two full frames, so the
+    // compressed size says little about its peak heap use
+
+    if (xact.cleanupMode == PictureTransaction.CleanupMode.TILED
+        && TiledTransform.isSupported()) {
+      applyMatrix=true;
+    }
+    else {
+      applyMatrix=(heapPct < xact.host.maxPictureCleanupHeapUsage());
+    }
   }
 
   @Override
   public void run() {
+    parse();
+
+    if (cancelled) {
+      abandon();
+
+      return;
+    }
+
+    transform();
+    render();
+    encode();
+    save();
+  }
+
+  public PictureTransaction getTransaction() {
+    return(xact);
+  }
+
+  /**
+   * @return the JPEG as it stands after the stages run so
+   *         far; after ENCODE, this is what SAVE hands to
+   *         saveImage(), or null if ENCODE wrote it straight
+   *         to the host's getDirectSaveFile()
+   */
+  public byte[] getJpeg() {
+    return(data);
+  }
+
+  public void setJpeg(byte[] data) {
+    this.data=data;
+  }
+
+  /**
+   * @return the transformed Bitmap between TRANSFORM and
+   *         ENCODE, or null if none was needed
+   */
+  public Bitmap getBitmap() {
+    return(cleaned);
+  }
+
+  public void setBitmap(Bitmap cleaned) {
+    if (bitmap == this.cleaned) {
+      bitmap=cleaned;
+    }
+
+    this.cleaned=cleaned;
+  }
+
+  /**
+   * @return true if backpressure downgraded this picture to
+   *         EXIF-only cleanup
+   */
+  public boolean isDegraded() {
+    return(degraded);
+  }
+
+  void degrade() {
+    degraded=true;
+  }
+
+  /**
+   * @return true if the host declined the cleaned result in
+   *         onOriginalImage(), so the remaining stages are
+   *         skipped
+   */
+  public boolean isCancelled() {
+    return(cancelled);
+  }
+
+  private boolean exifOnly() {
+    return(degraded
+        || xact.cleanupMode == PictureTransaction.CleanupMode.EXIF_ONLY);
+  }
+
+  private int degrees() {
+    // flip() is a 180-degree rotation, so it folds into the
+    // angle; mirror() is applied after rotating
+
+    return(imageOrientation + (flipped ? 180 : 0));
+  }
+
+  void parse() {
     Camera.CameraInfo info=new Camera.CameraInfo();
 
     Camera.getCameraInfo(cameraId, info);
 
-    Matrix matrix=null;
-    Bitmap cleaned=null;
-    ExifInterface exif=null;
+    if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+      if (xact.host.getDeviceProfile().portraitFFCFlipped()
+          && (xact.displayOrientation == 90 || xact.displayOrientation == 270)) {
+        flipped=true;
+      }
+      else if (xact.mirrorFFC()) {
+        mirrored=true;
+      }
+    }
+
+    if (xact.host.getDeviceProfile().useDeviceOrientation()) {
+      imageOrientation=xact.displayOrientation;
+    }
+    else {
+      int exifOrientation=ExifOrientationReader.readOrientation(data);
 
-    if (applyMatrix) {
-      if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-        if (xact.host.getDeviceProfile().portraitFFCFlipped()
-            && (xact.displayOrientation == 90 || xact.displayOrientation == 270)) {
-          matrix=flip(new Matrix());
-        }
-        else if (xact.mirrorFFC()) {
-          matrix=mirror(new Matrix());
-        }
+      if (exifOrientation == 6) {
+        imageOrientation=90;
       }
+      else if (exifOrientation == 8) {
+        imageOrientation=270;
+      }
+      else if (exifOrientation == 3) {
+        imageOrientation=180;
+      }
+      else if (exifOrientation == 1) {
+        imageOrientation=0;
+      }
+      else {
+        // imageOrientation=
+        // xact.host.getDeviceProfile().getDefaultOrientation();
+        //
+        // if (imageOrientation == -1) {
+        // imageOrientation=xact.displayOrientation;
+        // }
+      }
+    }
+
+    if (xact.needOriginalImage) {
+      short orientation=
+          ExifInterface.getOrientationValueForRotation(degrees(), mirrored);
+
+      // from here on, the camera's byte[] belongs to the host
+      // as well, so it must not be changed in place
+
+      originalShared=true;
+
+      if (!xact.host.onOriginalImage(xact, data, orientation)) {
+        cancelled=true;
+      }
+    }
+  }
+
+  void transform() {
+    start();
+
+    int degrees=degrees();
+
+    if (applyMatrix && xact.needByteArray && !degraded
+        && xact.cleanupMode == PictureTransaction.CleanupMode.LOSSLESS
+        && (mirrored || degrees % 360 != 0)) {
+      long needed=-1;
 
       try {
-        int imageOrientation=0;
+        needed=JpegTransformer.workingBytes(data);
+      }
+      catch (IOException e) {
+        Log.w(CameraView.TAG, "Lossless transform not possible, using Matrix",
+              e);
+      }
 
-        if (xact.host.getDeviceProfile().useDeviceOrientation()) {
-          imageOrientation=xact.displayOrientation;
+      if (needed >= 0 && admit(needed)) {
+        transformed=transformLossless(data, degrees, mirrored);
+        releaseWork();
+      }
+    }
+
+    Matrix rotation=(applyMatrix ? buildMatrix() : null);
+
+    // in EXIF_ONLY mode, or once the lossless transform has
+    // worked, only a Bitmap shared with saveImage() needs the
+    // full-size Matrix pass
+
+    boolean bytesNeedMatrix=
+        (xact.needByteArray && !exifOnly() && transformed == null);
+
+    if (rotation != null && (bytesNeedMatrix || sharesBitmap())) {
+      matrix=rotation;
+
+      boolean tiled=
+          (xact.cleanupMode == PictureTransaction.CleanupMode.TILED
+              && TiledTransform.isSupported());
+
+      readBounds();
+
+      long frame=pixels() * FRAME_BYTES_PER_PIXEL;
+      long needed=
+          frame + (tiled ? TiledTransform.workingBytes(width, data.length)
+              : frame);
+
+      if (!admit(needed)) {
+        downgrade(needed);
+        tiled=false;
+      }
+
+      if (tiled) {
+        try {
+          cleaned=TiledTransform.apply(data, matrix);
         }
-        else {
-          exif=new ExifInterface();
-          exif.readExif(data);
-
-          Integer exifOrientation=
-              exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-
-          if (exifOrientation != null) {
-            if (exifOrientation == 6) {
-              imageOrientation=90;
-            }
-            else if (exifOrientation == 8) {
-              imageOrientation=270;
-            }
-            else if (exifOrientation == 3) {
-              imageOrientation=180;
-            }
-            else if (exifOrientation == 1) {
-              imageOrientation=0;
-            }
-            else {
-              // imageOrientation=
-              // xact.host.getDeviceProfile().getDefaultOrientation();
-              //
-              // if (imageOrientation == -1) {
-              // imageOrientation=xact.displayOrientation;
-              // }
-            }
+        catch (IOException e) {
+          Log.w(CameraView.TAG, "Tiled transform failed, using Matrix", e);
+
+          // the Matrix needs a second frame instead of bands
+
+          if (!admit(Math.max(0, 2 * frame - workBytes))) {
+            releaseWork();
+            downgrade(2 * frame);
           }
         }
+        catch (OutOfMemoryError e) {
+          Log.w(CameraView.TAG, "Tiled transform ran out of memory", e);
+          releaseWork();
+          matrix=null;
+          degrade();
+        }
+      }
+
+      if (matrix != null && cleaned == null && !skipBitmap) {
+        Bitmap original=decode();
+
+        cleaned=
+            transformBitmap(original, matrix, original.getConfig(),
+                            false);
+        BitmapPool.get().put(original);
+      }
+    }
 
-        if (imageOrientation != 0) {
-          matrix=
-              rotate((matrix == null ? new Matrix() : matrix),
-                     imageOrientation);
+    if (sharesBitmap() && cleaned == null && !skipBitmap) {
+      if (workBytes == 0) {
+        readBounds();
+
+        long frame=pixels() * FRAME_BYTES_PER_PIXEL;
+
+        if (!admit(frame)) {
+          downgrade(frame);
         }
       }
-      catch (IOException e) {
-        Log.e("CWAC-Camera", "Exception parsing JPEG", e);
-        // TODO: ripple to client
+
+      if (!skipBitmap) {
+        cleaned=decode();
       }
+    }
 
-      if (matrix != null) {
-        Bitmap original=
-            BitmapFactory.decodeByteArray(data, 0, data.length);
+    if (xact.needBitmap && !sharesBitmap()) {
+      bitmap=
+          decodeScaled(rotation, xact.bitmapWidth, xact.bitmapHeight,
+                       xact.bitmapConfig);
 
-        cleaned=
-            Bitmap.createBitmap(original, 0, 0, original.getWidth(),
-                                original.getHeight(), matrix, true);
-        original.recycle();
+      if (bitmap == null) {
+        Log.w(CameraView.TAG, "Could not decode within heap budget, skipping Bitmap");
+        skipBitmap=true;
+      }
+    }
+    else if (xact.needBitmap && !skipBitmap) {
+      bitmap=cleaned;
+    }
+  }
+
+  // true if saveImage() gets the same full-size ARGB_8888
+  // Bitmap that the JPEG is encoded from
+
+  private boolean sharesBitmap() {
+    return(xact.needBitmap && !xact.hasBitmapTarget());
+  }
+
+  // decodes straight to the requested size and config: a
+  // power-of-two inSampleSize from the header bounds, then
+  // whatever scaling is left in the same pass as the
+  // rotation; null if the budget cannot cover it or the
+  // JPEG cannot be decoded
+
+  private Bitmap decodeScaled(Matrix rotation, int maxWidth,
+                              int maxHeight, Bitmap.Config config) {
+    readBounds();
+
+    boolean swap=(rotation != null && imageOrientation % 180 != 0);
+    int uprightWidth=(swap ? height : width);
+    int uprightHeight=(swap ? width : height);
+    float scale=1.0f;
+
+    if (maxWidth > 0 && maxHeight > 0) {
+      scale=
+          Math.min(1.0f,
+                   Math.min((float)maxWidth / uprightWidth,
+                            (float)maxHeight / uprightHeight));
+    }
+
+    int targetWidth=Math.max(1, Math.round(uprightWidth * scale));
+    int targetHeight=Math.max(1, Math.round(uprightHeight * scale));
+    int sample=1;
+
+    while (uprightWidth / (sample * 2) >= targetWidth
+        && uprightHeight / (sample * 2) >= targetHeight) {
+      sample*=2;
+    }
+
+    long bytesPerPixel=bytesPerPixel(config);
+    long needed=
+        ((long)(width / sample) * (height / sample) + (long)targetWidth
+            * targetHeight)
+            * bytesPerPixel;
+
+    if (!admit(needed)) {
+      return(null);
+    }
+
+    BitmapFactory.Options opts=new BitmapFactory.Options();
+
+    opts.inSampleSize=sample;
+    opts.inPreferredConfig=config;
+
+    Bitmap decoded=BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+
+    if (decoded == null) {
+      // a JPEG the decoder cannot handle is no different
+      // from one the budget cannot: go on without the Bitmap
+
+      budget.release(needed);
+      workBytes-=needed;
+
+      return(null);
+    }
+
+    int decodedWidth=(swap ? targetHeight : targetWidth);
+    int decodedHeight=(swap ? targetWidth : targetHeight);
+
+    if (rotation == null && decoded.getWidth() == decodedWidth
+        && decoded.getHeight() == decodedHeight) {
+      return(decoded);
+    }
+
+    Matrix m=new Matrix();
+
+    if (rotation != null) {
+      m.set(rotation);
+    }
+
+    m.preScale((float)decodedWidth / decoded.getWidth(),
+               (float)decodedHeight / decoded.getHeight());
+
+    Bitmap result=transformBitmap(decoded, m, config, true);
+
+    decoded.recycle();
+
+    return(result);
+  }
+
+  private static long bytesPerPixel(Bitmap.Config config) {
+    if (config == Bitmap.Config.ALPHA_8) {
+      return(1);
+    }
+
+    if (config == Bitmap.Config.RGB_565
+        || config == Bitmap.Config.ARGB_4444) {
+      return(2);
+    }
+
+    return(4);
+  }
+
+  private Matrix buildMatrix() {
+    Matrix result=null;
+
+    if (flipped) {
+      result=flip(new Matrix());
+    }
+    else if (mirrored) {
+      result=mirror(new Matrix());
+    }
+
+    if (imageOrientation != 0) {
+      result=
+          rotate((result == null ? new Matrix() : result),
+                 imageOrientation);
+    }
+
+    return(result);
+  }
+
+  // called when the budget cannot cover the full-size work:
+  // the JPEG keeps its pixels and gets an EXIF orientation,
+  // and a shared Bitmap is subsampled or skipped
+
+  private void downgrade(long needed) {
+    if (!exifOnly()) {
+      Log.w(CameraView.TAG,
+            "Heap budget exceeded, recording orientation in EXIF");
+      degrade();
+    }
+
+    if (!sharesBitmap()) {
+      matrix=null;
+
+      return;
+    }
+
+    for (int size=2; size <= MAX_SAMPLE_SIZE; size*=2) {
+      if (admit(needed / (size * size), 0)) {
+        sampleSize=size;
+        Log.w(CameraView.TAG, "Heap budget exceeded, subsampling Bitmap by "
+            + size);
+
+        return;
       }
     }
 
-    if (xact.needBitmap) {
-      if (cleaned == null) {
-        cleaned=BitmapFactory.decodeByteArray(data, 0, data.length);
+    Log.w(CameraView.TAG, "Heap budget exceeded, skipping Bitmap");
+    matrix=null;
+    skipBitmap=true;
+  }
+
+  private boolean admit(long bytes) {
+    return(admit(bytes, ADMIT_TIMEOUT_MS));
+  }
+
+  private boolean admit(long bytes, long timeoutMs) {
+    start();
+
+    try {
+      if (budget.acquire(bytes, jpegBytes + workBytes, timeoutMs)) {
+        workBytes+=bytes;
+
+        return(true);
       }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    return(false);
+  }
 
-      xact.host.saveImage(xact, cleaned);
+  // from here on, this picture's JPEG is released once it is
+  // saved, so pictures behind it may wait for it
+
+  private void start() {
+    if (!started) {
+      budget.start(jpegBytes);
+      started=true;
     }
+  }
 
-    if (xact.needByteArray) {
-      if (matrix != null) {
-        ByteArrayOutputStream out=new ByteArrayOutputStream();
+  private void releaseWork() {
+    budget.release(workBytes);
+    workBytes=0;
+  }
 
-        // if (exif == null) {
-        cleaned.compress(Bitmap.CompressFormat.JPEG, 100, out);
-        // }
-        // else {
-        // exif.deleteTag(ExifInterface.TAG_ORIENTATION);
-        //
-        // try {
-        // exif.writeExif(cleaned, out);
-        // }
-        // catch (IOException e) {
-        // Log.e("CWAC-Camera", "Exception writing to JPEG",
-        // e);
-        // // TODO: ripple to client
-        // }
-        // }
+  /**
+   * Gives back everything this picture holds in the
+   * HeapBudget. Called by SAVE, or by the CapturePipeline
+   * when a stage fails or the picture is dropped.
+   */
+  void abandon() {
+    start();
+    releaseWork();
+    budget.release(jpegBytes);
+    jpegBytes=0;
+  }
+
+  private void readBounds() {
+    if (width < 0) {
+      BitmapFactory.Options opts=new BitmapFactory.Options();
+
+      opts.inJustDecodeBounds=true;
+      BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+      width=opts.outWidth;
+      height=opts.outHeight;
+    }
+  }
+
+  private long pixels() {
+    return((long)width * height);
+  }
+
+  private Bitmap decode() {
+    if (sampleSize == 1) {
+      readBounds();
+
+      return(BitmapPool.get().decode(data, width, height));
+    }
+
+    BitmapFactory.Options opts=new BitmapFactory.Options();
+
+    opts.inSampleSize=sampleSize;
+
+    return(BitmapFactory.decodeByteArray(data, 0, data.length, opts));
+  }
+
+  /**
+   * Produces the PictureTransaction's renditions from a
+   * single upright frame: the transformed Bitmap, if
+   * TRANSFORM made one, otherwise one decode sized for the
+   * largest rendition. Each smaller rendition is scaled down
+   * from the one before it, and each is encoded on the
+   * rendition threads while the next is being scaled.
+   */
+  void render() {
+    if (xact.renditions.isEmpty()) {
+      return;
+    }
+
+    Matrix rotation=buildMatrix();
+    long held=workBytes;
+    Bitmap source;
+    boolean ownsSource=false;
+
+    if (cleaned != null && (matrix != null || rotation == null)) {
+      source=cleaned;
+    }
+    else {
+      int maxWidth=0;
+      int maxHeight=0;
+
+      for (Rendition r : xact.renditions) {
+        maxWidth=Math.max(maxWidth, r.getMaxWidth());
+        maxHeight=Math.max(maxHeight, r.getMaxHeight());
+      }
+
+      source=
+          decodeScaled(rotation, maxWidth, maxHeight,
+                       Bitmap.Config.ARGB_8888);
+      ownsSource=true;
+    }
+
+    ArrayList<RenditionTarget> targets=new ArrayList<RenditionTarget>();
+    long needed=0;
+
+    if (source != null) {
+      for (Rendition r : xact.renditions) {
+        RenditionTarget t=new RenditionTarget(r, source);
+
+        targets.add(t);
+        needed+=(long)t.width * t.height * FRAME_BYTES_PER_PIXEL;
+      }
+
+      // plus the first halving step, the largest
+      // intermediate that is not itself a rendition
+
+      needed+=
+          (long)source.getWidth() * source.getHeight()
+              * FRAME_BYTES_PER_PIXEL / 4;
+    }
+
+    if (source == null || !admit(needed)) {
+      Log.w(CameraView.TAG, "Could not decode within heap budget, skipping renditions");
+
+      if (ownsSource && source != null) {
+        BitmapPool.get().put(source);
+      }
+
+      budget.release(workBytes - held);
+      workBytes=held;
+
+      return;
+    }
+
+    // each target fits within the one before it, so the
+    // chain only ever scales down
+
+    Collections.sort(targets);
+
+    ArrayList<Bitmap> owned=new ArrayList<Bitmap>();
+    ArrayList<Future<Void>> encodes=new ArrayList<Future<Void>>();
+    Bitmap current=source;
+
+    try {
+      for (RenditionTarget t : targets) {
+        Bitmap step=current;
+
+        // halving with filtering samples every source pixel,
+        // where one big filtered scale would skip most of
+        // them and alias
+
+        while (step.getWidth() / 2 >= t.width
+            && step.getHeight() / 2 >= t.height) {
+          Bitmap half=scale(step, step.getWidth() / 2, step.getHeight() / 2);
+
+          if (step != current) {
+            BitmapPool.get().put(step);
+          }
+
+          step=half;
+        }
+
+        if (step.getWidth() != t.width || step.getHeight() != t.height) {
+          Bitmap exact=scale(step, t.width, t.height);
 
-        data=out.toByteArray();
+          if (step != current) {
+            BitmapPool.get().put(step);
+          }
+
+          step=exact;
+        }
+
+        if (step != current) {
+          owned.add(step);
+        }
+
+        encodes.add(RENDITION_ENCODERS.submit(new RenditionEncoder(xact,
+                                                                   t.rendition,
+                                                                   step)));
+        current=step;
+      }
+    }
+    catch (OutOfMemoryError e) {
+      Log.w(CameraView.TAG, "Ran out of memory scaling renditions", e);
+    }
+    finally {
+      // the encoders read the Bitmaps, so they must be done
+      // before anything goes back to the pool
+
+      for (Future<Void> encode : encodes) {
+        awaitRendition(encode);
+      }
 
+      for (Bitmap b : owned) {
+        BitmapPool.get().put(b);
+      }
+
+      if (ownsSource) {
+        BitmapPool.get().put(source);
+      }
+
+      budget.release(workBytes - held);
+      workBytes=held;
+    }
+  }
+
+  private void awaitRendition(Future<Void> encode) {
+    boolean interrupted=false;
+
+    try {
+      while (true) {
         try {
-          out.close();
+          encode.get();
+
+          return;
         }
-        catch (IOException e) {
-          Log.e(CameraView.TAG, "Exception in closing a BAOS???", e);
+        catch (InterruptedException e) {
+          interrupted=true;
         }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            xact.host.handleException((Exception)e.getCause());
+          }
+          else {
+            Log.e(CameraView.TAG, "Exception encoding rendition",
+                  e.getCause());
+          }
+
+          return;
+        }
+      }
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // a filtered scale into a pooled Bitmap
+
+  private static Bitmap scale(Bitmap original, int width, int height) {
+    Bitmap result=
+        BitmapPool.get().obtain(width, height, Bitmap.Config.ARGB_8888);
+    Matrix m=new Matrix();
+
+    m.setScale((float)width / original.getWidth(),
+               (float)height / original.getHeight());
+    new Canvas(result).drawBitmap(original, m,
+                                  new Paint(Paint.FILTER_BITMAP_FLAG));
+
+    return(result);
+  }
+
+  void encode() {
+    if (!xact.needByteArray) {
+      return;
+    }
+
+    int degrees=degrees();
+    CaptureWriter writer=new CaptureWriter(xact.exifTags);
+
+    if (transformed != null) {
+      data=transformed;
+      transformed=null;
+      writeJpeg(writer, CaptureWriter.KEEP_ORIENTATION, true);
+    }
+    else if (exifOnly()) {
+      short orientation=CaptureWriter.KEEP_ORIENTATION;
+
+      if (mirrored || degrees % 360 != 0) {
+        orientation=
+            ExifInterface.getOrientationValueForRotation(degrees, mirrored);
+      }
+
+      writeJpeg(writer, orientation, !originalShared);
+    }
+    else if (matrix != null && cleaned != null) {
+      writeCleaned(writer);
+    }
+    else {
+      writeJpeg(writer, CaptureWriter.KEEP_ORIENTATION, !originalShared);
+    }
+
+    // let the frame go before the picture waits to be saved,
+    // unless it is also the Bitmap for saveImage()
+
+    if (cleaned != null && cleaned != bitmap) {
+      BitmapPool.get().put(cleaned);
+    }
+
+    cleaned=null;
+
+    if (bitmap == null) {
+      releaseWork();
+    }
+  }
+
+  // sets the orientation and the transaction's tags without
+  // touching the image data: in place if the JPEG already has
+  // room for them and nobody else holds it, otherwise by
+  // writing a new EXIF header in front of the original
+  // segments
+
+  private void writeJpeg(final CaptureWriter writer,
+                         final short orientation, boolean inPlace) {
+    if (writer.isNoOp(orientation)
+        || (inPlace && writer.rewriteInPlace(data, orientation))) {
+      return;
+    }
+
+    final byte[] jpeg=data;
+
+    emit(new SaveWriter.Encoder() {
+      @Override
+      public void encodeTo(OutputStream out) throws IOException {
+        writer.writeJpeg(jpeg, orientation, out);
       }
+    }, jpeg.length + 1024);
+  }
+
+  // re-encodes the upright frame, with the camera's EXIF
+  // carried over
+
+  private void writeCleaned(final CaptureWriter writer) {
+    final Bitmap upright=cleaned;
+    final byte[] original=data;
+
+    emit(new SaveWriter.Encoder() {
+      @Override
+      public void encodeTo(OutputStream out) throws IOException {
+        writer.writeBitmap(upright, original, out);
+      }
+    }, original.length + 1024);
+  }
+
+  // one pass to the final destination: the host's direct
+  // save file, if it has one, otherwise a byte[] for
+  // saveImage(); a direct save that fails falls back to the
+  // byte[], and if that fails too, the JPEG is left as it was
+
+  private void emit(SaveWriter.Encoder encoder, int expectedSize) {
+    File direct=xact.host.getDirectSaveFile(xact);
+
+    if (direct != null) {
+      savedDirectly=
+          SaveWriter.saveEncoded(xact, direct, encoder, expectedSize);
+
+      if (savedDirectly.isSuccessful()) {
+        data=null;
+
+        return;
+      }
+
+      Log.w(CameraView.TAG, "Direct save failed, using saveImage()",
+            savedDirectly.getException());
+    }
+
+    BufferPool.Buffer out=BufferPool.get().obtain(expectedSize);
+
+    try {
+      encoder.encodeTo(out);
+      data=out.toByteArray();
+    }
+    catch (IOException e) {
+      Log.e(CameraView.TAG, "Exception writing JPEG", e);
+    }
+    finally {
+      BufferPool.get().put(out);
+    }
+  }
+
+  void save() {
+    try {
+      if (bitmap != null) {
+        xact.host.saveImage(xact, bitmap);
+        bitmap=null;
+      }
+
+      if (savedDirectly != null) {
+        xact.host.onImageSaved(savedDirectly);
+      }
+
+      if (xact.needByteArray
+          && (savedDirectly == null || !savedDirectly.isSuccessful())) {
+        xact.host.saveImage(xact, data);
+      }
+    }
+    finally {
+      abandon();
+    }
+  }
+
+  // returns null if the JPEG cannot be transformed this way,
+  // so the caller falls back to the Matrix
+
+  private byte[] transformLossless(byte[] jpeg, int degrees,
+                                   boolean mirrored) {
+    byte[] result=null;
 
-      xact.host.saveImage(xact, data);
+    try {
+      result=
+          JpegTransformer.transform(jpeg,
+                                    JpegTransformer.Transform.forRotation(degrees,
+                                                                          mirrored),
+                                    xact.edgePolicy);
     }
+    catch (IOException e) {
+      Log.w(CameraView.TAG, "Lossless transform not possible, using Matrix",
+            e);
+
+      return(null);
+    }
+
+    // the pixels are upright now, so an existing orientation
+    // tag must not rotate them again (no tag, or no EXIF at
+    // all, means no rotation); as with the Matrix, the sizes
+    // follow the pixels, trimmed edges included, and the
+    // thumbnail no longer matches
+
+    try {
+      JpegCoefficients header=JpegCoefficients.readHeader(result);
+
+      ExifSegmentCopier.patchExifSegment(result,
+                                         ExifInterface.Orientation.TOP_LEFT,
+                                         header.width, header.height, true);
+    }
+    catch (IOException e) {
+      Log.w(CameraView.TAG, "Could not update EXIF of transformed JPEG", e);
+    }
+
+    return(result);
+  }
+
+  // like Bitmap.createBitmap(original, 0, 0, w, h, matrix,
+  // filter), but drawing into a pooled Bitmap; a matrix that
+  // only rotates and mirrors has nothing to filter
+
+  private Bitmap transformBitmap(Bitmap original, Matrix matrix,
+                                 Bitmap.Config config, boolean filter) {
+    RectF bounds=
+        new RectF(0, 0, original.getWidth(), original.getHeight());
+
+    matrix.mapRect(bounds);
+
+    Matrix placed=new Matrix();
+
+    placed.set(matrix);
+    placed.postTranslate(-bounds.left, -bounds.top);
 
-    System.gc();
+    Bitmap result=
+        BitmapPool.get().obtain(Math.round(bounds.width()),
+                                Math.round(bounds.height()),
+                                (config == null ? Bitmap.Config.ARGB_8888
+                                    : config));
+
+    new Canvas(result).drawBitmap(original, placed,
+                                  (filter ? new Paint(Paint.FILTER_BITMAP_FLAG)
+                                      : null));
+
+    return(result);
   }
 
   // from http://stackoverflow.com/a/8347956/115145
@@ -197,6 +1020,87 @@ public class ImageCleanupTask extends Thread {
     return(input);
   }
 
+  private static ThreadPoolExecutor buildRenditionEncoders() {
+    int threads=Runtime.getRuntime().availableProcessors();
+    ThreadFactory factory=new ThreadFactory() {
+      private final AtomicInteger count=new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return(new Thread(r, "CWAC-Camera rendition #"
+            + count.incrementAndGet()));
+      }
+    };
+    ThreadPoolExecutor result=
+        new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               factory);
+
+    result.allowCoreThreadTimeOut(true);
+
+    return(result);
+  }
+
+  // the size one Rendition comes out at, fitted to the
+  // upright frame; ordered largest first
+
+  private static class RenditionTarget implements
+      Comparable<RenditionTarget> {
+    final Rendition rendition;
+    final int width;
+    final int height;
+
+    RenditionTarget(Rendition rendition, Bitmap source) {
+      float scale=
+          Math.min(1.0f,
+                   Math.min((float)rendition.getMaxWidth()
+                       / source.getWidth(),
+                            (float)rendition.getMaxHeight()
+                                / source.getHeight()));
+
+      this.rendition=rendition;
+      width=Math.max(1, Math.round(source.getWidth() * scale));
+      height=Math.max(1, Math.round(source.getHeight() * scale));
+    }
+
+    @Override
+    public int compareTo(RenditionTarget other) {
+      long mine=(long)width * height;
+      long theirs=(long)other.width * other.height;
+
+      return(mine > theirs ? -1 : (mine == theirs ? 0 : 1));
+    }
+  }
+
+  private static class RenditionEncoder implements Callable<Void> {
+    private final PictureTransaction xact;
+    private final Rendition rendition;
+    private final Bitmap bitmap;
+
+    RenditionEncoder(PictureTransaction xact, Rendition rendition,
+                     Bitmap bitmap) {
+      this.xact=xact;
+      this.rendition=rendition;
+      this.bitmap=bitmap;
+    }
+
+    @Override
+    public Void call() {
+      // renditions are small, and a pooled buffer sized for
+      // them would push out the one the full JPEG reuses
+
+      ByteArrayOutputStream out=
+          new ByteArrayOutputStream(bitmap.getWidth() * bitmap.getHeight()
+              / 4);
+
+      bitmap.compress(Bitmap.CompressFormat.JPEG, rendition.getQuality(),
+                      out);
+      xact.host.saveRendition(xact, rendition, out.toByteArray());
+
+      return(null);
+    }
+  }
+
   @TargetApi(Build.VERSION_CODES.HONEYCOMB)
   private static int calculateHeapSize(Context ctxt) {
     ActivityManager am=
@@ -0,0 +1,1197 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The quantized DCT coefficients of a sequential, Huffman-coded
+ * 8-bit JPEG, along with what is needed to write them back out.
+ * Coefficients are never dequantized, so a read followed by a
+ * write loses nothing. Progressive, arithmetic-coded,
+ * lossless and 12-bit JPEGs are rejected with an IOException.
+ *
+ * The written file always has a single scan with optimized
+ * Huffman tables and no restart markers. APPn and COM segments
+ * that appear before the frame header are copied through.
+ */
+class JpegCoefficients {
+  // natural (row-major) index of the k-th coefficient in
+  // zig-zag order
+  static final int[] ZIGZAG= { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24,
+      32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20,
+      13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22,
+      15, 23, 30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53,
+      60, 61, 54, 47, 55, 62, 63 };
+
+  private static final int SOF0=0xC0;
+  private static final int SOF1=0xC1;
+  private static final int DHT=0xC4;
+  private static final int SOI=0xD8;
+  private static final int EOI=0xD9;
+  private static final int SOS=0xDA;
+  private static final int DQT=0xDB;
+  private static final int DRI=0xDD;
+  private static final int COM=0xFE;
+
+  static class Component {
+    int id;
+    int h;
+    int v;
+    int quantTable;
+    // size of the coefficient grid, padded out to whole MCUs
+    int blocksWide;
+    int blocksHigh;
+    // 64 coefficients per block in natural order, blocks in
+    // raster order
+    short[] coefs;
+
+    int dcTable;
+    int acTable;
+    int pred;
+
+    int offset(int bx, int by) {
+      return((by * blocksWide + bx) * 64);
+    }
+  }
+
+  int width;
+  int height;
+  int maxH;
+  int maxV;
+  Component[] components;
+  // quantization tables in natural order, null if undefined
+  int[][] quantTables=new int[4][];
+  // complete APPn/COM segments, marker included
+  ArrayList<byte[]> segments=new ArrayList<byte[]>();
+
+  int mcusWide() {
+    return((width + 8 * maxH - 1) / (8 * maxH));
+  }
+
+  int mcusHigh() {
+    return((height + 8 * maxV - 1) / (8 * maxV));
+  }
+
+  /**
+   * Sizes the coefficient grids of all components from the
+   * frame dimensions and sampling factors, and allocates
+   * them. Existing coefficients are discarded.
+   */
+  void allocate() {
+    layout();
+
+    for (Component c : components) {
+      c.coefs=new short[c.blocksWide * c.blocksHigh * 64];
+    }
+  }
+
+  /**
+   * @return the heap needed for the coefficient grids of all
+   *         components
+   */
+  long coefficientBytes() {
+    long result=0;
+
+    for (Component c : components) {
+      result+=(long)c.blocksWide * c.blocksHigh * 64 * 2;
+    }
+
+    return(result);
+  }
+
+  private void layout() {
+    maxH=1;
+    maxV=1;
+
+    for (Component c : components) {
+      maxH=Math.max(maxH, c.h);
+      maxV=Math.max(maxV, c.v);
+    }
+
+    for (Component c : components) {
+      c.blocksWide=mcusWide() * c.h;
+      c.blocksHigh=mcusHigh() * c.v;
+    }
+  }
+
+  static JpegCoefficients read(byte[] jpeg) throws IOException {
+    return(read(jpeg, false));
+  }
+
+  /**
+   * Parses a JPEG up to and including its frame header: the
+   * size, the components and their grid sizes, but no
+   * coefficients.
+   */
+  static JpegCoefficients readHeader(byte[] jpeg) throws IOException {
+    return(read(jpeg, true));
+  }
+
+  private static JpegCoefficients read(byte[] jpeg, boolean headerOnly)
+    throws IOException {
+    JpegCoefficients result=new JpegCoefficients();
+
+    try {
+      new Decoder(jpeg, result, headerOnly).decode();
+    }
+    catch (RuntimeException e) {
+      // corrupt data that got past the checks and walked off
+      // the end of an array
+      throw new IOException("Corrupt JPEG", e);
+    }
+
+    return(result);
+  }
+
+  byte[] write() throws IOException {
+    return(new Encoder(this).encode());
+  }
+
+  private static class HuffmanDecodeTable {
+    private static final int LOOKAHEAD=9;
+
+    // (code length << 8) | symbol for every LOOKAHEAD-bit
+    // prefix of a short code, 0 if the code is longer
+    final int[] lookup=new int[1 << LOOKAHEAD];
+    final int[] maxCode=new int[18];
+    final int[] valPtr=new int[17];
+    final int[] minCode=new int[17];
+    final int[] values;
+
+    HuffmanDecodeTable(int[] bits, int[] values) throws IOException {
+      this.values=values;
+
+      int code=0;
+      int k=0;
+
+      for (int l=1; l <= 16; l++) {
+        valPtr[l]=k;
+        minCode[l]=code;
+
+        if (code + bits[l] > (1 << l)) {
+          throw new IOException("Bad JPEG Huffman table");
+        }
+
+        for (int i=0; i < bits[l]; i++) {
+          if (l <= LOOKAHEAD) {
+            int shift=LOOKAHEAD - l;
+            int base=code << shift;
+
+            for (int j=0; j < (1 << shift); j++) {
+              lookup[base + j]=(l << 8) | values[k];
+            }
+          }
+
+          code++;
+          k++;
+        }
+
+        maxCode[l]=(bits[l] == 0 ? -1 : code - 1);
+        code<<=1;
+      }
+
+      maxCode[17]=Integer.MAX_VALUE;
+    }
+  }
+
+  private static class Decoder {
+    private final byte[] data;
+    private final JpegCoefficients frame;
+    private final boolean headerOnly;
+    private final HuffmanDecodeTable[] dcTables=
+        new HuffmanDecodeTable[4];
+    private final HuffmanDecodeTable[] acTables=
+        new HuffmanDecodeTable[4];
+    private int pos=0;
+    private int restartInterval=0;
+    private int bitBuf=0;
+    private int bitCount=0;
+    private boolean[] decoded;
+
+    Decoder(byte[] data, JpegCoefficients frame, boolean headerOnly) {
+      this.data=data;
+      this.frame=frame;
+      this.headerOnly=headerOnly;
+    }
+
+    void decode() throws IOException {
+      if (data.length < 4 || u8(0) != 0xFF || u8(1) != SOI) {
+        throw new IOException("Not a JPEG");
+      }
+
+      pos=2;
+
+      while (true) {
+        int marker=nextMarker();
+
+        if (marker < 0 || marker == EOI) {
+          break;
+        }
+
+        if (pos + 2 > data.length) {
+          throw new IOException("Truncated JPEG segment");
+        }
+
+        int length=u16(pos);
+        int start=pos + 2;
+        int end=pos + length;
+
+        if (length < 2 || end > data.length) {
+          throw new IOException("Truncated JPEG segment");
+        }
+
+        if (marker == SOF0 || marker == SOF1) {
+          readFrame(start, end);
+
+          if (headerOnly) {
+            return;
+          }
+        }
+        else if (marker == DHT) {
+          readHuffmanTables(start, end);
+        }
+        else if (marker == DQT) {
+          readQuantTables(start, end);
+        }
+        else if (marker == DRI) {
+          if (length < 4) {
+            throw new IOException("Truncated JPEG segment");
+          }
+
+          restartInterval=u16(start);
+        }
+        else if (marker == SOS) {
+          pos=end;
+          readScan(start, end);
+
+          continue;
+        }
+        else if (isUnsupportedFrame(marker)) {
+          throw new IOException("Unsupported JPEG process: 0x"
+              + Integer.toHexString(marker));
+        }
+        else if ((marker >= 0xE0 && marker <= 0xEF) || marker == COM) {
+          if (frame.components == null) {
+            byte[] segment=new byte[length + 2];
+
+            System.arraycopy(data, pos - 2, segment, 0, segment.length);
+            frame.segments.add(segment);
+          }
+        }
+
+        pos=end;
+      }
+
+      if (decoded == null) {
+        throw new IOException("JPEG has no image data");
+      }
+
+      for (boolean done : decoded) {
+        if (!done) {
+          throw new IOException("JPEG is missing a component scan");
+        }
+      }
+    }
+
+    private static boolean isUnsupportedFrame(int marker) {
+      return(marker >= 0xC2 && marker <= 0xCF && marker != DHT
+          && marker != 0xC8 && marker != 0xCC);
+    }
+
+    // returns the next marker and leaves pos on its segment
+    // length, or -1 at the end of the data
+    private int nextMarker() {
+      while (pos + 1 < data.length) {
+        if (u8(pos) == 0xFF) {
+          int marker=u8(pos + 1);
+
+          if (marker != 0 && marker != 0xFF
+              && !(marker >= 0xD0 && marker <= 0xD7)) {
+            pos+=2;
+
+            return(marker);
+          }
+        }
+
+        pos++;
+      }
+
+      return(-1);
+    }
+
+    private void readFrame(int start, int end) throws IOException {
+      if (frame.components != null) {
+        throw new IOException("JPEG has more than one frame");
+      }
+
+      if (end - start < 6 || end - start < 6 + 3 * u8(start + 5)) {
+        throw new IOException("Truncated JPEG frame header");
+      }
+
+      if (u8(start) != 8) {
+        throw new IOException("Only 8-bit JPEGs are supported");
+      }
+
+      frame.height=u16(start + 1);
+      frame.width=u16(start + 3);
+
+      int count=u8(start + 5);
+
+      if (frame.width == 0 || frame.height == 0 || count == 0) {
+        throw new IOException("Unsupported JPEG frame size");
+      }
+
+      frame.components=new Component[count];
+
+      for (int i=0; i < count; i++) {
+        int p=start + 6 + i * 3;
+        Component c=new Component();
+
+        c.id=u8(p);
+        c.h=u8(p + 1) >> 4;
+        c.v=u8(p + 1) & 15;
+        c.quantTable=u8(p + 2) & 3;
+
+        if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) {
+          throw new IOException("Bad JPEG sampling factors");
+        }
+
+        frame.components[i]=c;
+      }
+
+      if (headerOnly) {
+        frame.layout();
+      }
+      else {
+        frame.allocate();
+      }
+
+      decoded=new boolean[count];
+    }
+
+    private void readHuffmanTables(int p, int end) throws IOException {
+      while (p < end) {
+        if (p + 17 > end) {
+          throw new IOException("Bad JPEG Huffman table");
+        }
+
+        int info=u8(p++);
+        int[] bits=new int[17];
+        int total=0;
+
+        for (int l=1; l <= 16; l++) {
+          bits[l]=u8(p++);
+          total+=bits[l];
+        }
+
+        if (total > 256 || p + total > end) {
+          throw new IOException("Bad JPEG Huffman table");
+        }
+
+        int[] values=new int[total];
+
+        for (int i=0; i < total; i++) {
+          values[i]=u8(p++);
+        }
+
+        HuffmanDecodeTable table=new HuffmanDecodeTable(bits, values);
+
+        if ((info >> 4) == 0) {
+          dcTables[info & 3]=table;
+        }
+        else {
+          acTables[info & 3]=table;
+        }
+      }
+    }
+
+    private void readQuantTables(int p, int end) throws IOException {
+      while (p < end) {
+        int info=u8(p++);
+        boolean wide=(info >> 4) != 0;
+        int[] table=new int[64];
+
+        if (p + 64 * (wide ? 2 : 1) > end) {
+          throw new IOException("Bad JPEG quantization table");
+        }
+
+        for (int k=0; k < 64; k++) {
+          if (wide) {
+            table[ZIGZAG[k]]=u16(p);
+            p+=2;
+          }
+          else {
+            table[ZIGZAG[k]]=u8(p++);
+          }
+        }
+
+        frame.quantTables[info & 3]=table;
+      }
+    }
+
+    private void readScan(int start, int end) throws IOException {
+      if (frame.components == null) {
+        throw new IOException("JPEG scan before frame header");
+      }
+
+      int count=(start < end ? u8(start) : 0);
+
+      if (count < 1 || count > 4 || end - start < 1 + 2 * count + 3) {
+        throw new IOException("Bad JPEG scan header");
+      }
+
+      Component[] scan=new Component[count];
+
+      for (int i=0; i < count; i++) {
+        int id=u8(start + 1 + i * 2);
+        int tables=u8(start + 2 + i * 2);
+        int index=-1;
+
+        for (int j=0; j < frame.components.length; j++) {
+          if (frame.components[j].id == id) {
+            index=j;
+          }
+        }
+
+        if (index < 0) {
+          throw new IOException("JPEG scan refers to unknown component");
+        }
+
+        Component c=frame.components[index];
+
+        c.dcTable=(tables >> 4) & 3;
+        c.acTable=tables & 3;
+
+        if (dcTables[c.dcTable] == null || acTables[c.acTable] == null) {
+          throw new IOException("JPEG scan uses undefined Huffman table");
+        }
+
+        c.pred=0;
+        scan[i]=c;
+        decoded[index]=true;
+      }
+
+      int p=start + 1 + count * 2;
+
+      if (u8(p) != 0 || u8(p + 1) != 63 || u8(p + 2) != 0) {
+        throw new IOException("Unsupported JPEG scan parameters");
+      }
+
+      bitBuf=0;
+      bitCount=0;
+
+      if (count == 1) {
+        Component c=scan[0];
+        int wide=
+            ((frame.width * c.h + frame.maxH - 1) / frame.maxH + 7) / 8;
+        int high=
+            ((frame.height * c.v + frame.maxV - 1) / frame.maxV + 7) / 8;
+        int restartsLeft=restartInterval;
+
+        for (int by=0; by < high; by++) {
+          for (int bx=0; bx < wide; bx++) {
+            if (restartInterval > 0) {
+              if (restartsLeft == 0) {
+                restart(scan);
+                restartsLeft=restartInterval;
+              }
+
+              restartsLeft--;
+            }
+
+            decodeBlock(c, c.offset(bx, by));
+          }
+        }
+      }
+      else {
+        int restartsLeft=restartInterval;
+
+        for (int my=0; my < frame.mcusHigh(); my++) {
+          for (int mx=0; mx < frame.mcusWide(); mx++) {
+            if (restartInterval > 0) {
+              if (restartsLeft == 0) {
+                restart(scan);
+                restartsLeft=restartInterval;
+              }
+
+              restartsLeft--;
+            }
+
+            for (Component c : scan) {
+              for (int v=0; v < c.v; v++) {
+                for (int h=0; h < c.h; h++) {
+                  decodeBlock(c,
+                              c.offset(mx * c.h + h, my * c.v + v));
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+
+    private void restart(Component[] scan) {
+      bitBuf=0;
+      bitCount=0;
+
+      while (pos + 1 < data.length) {
+        if (u8(pos) == 0xFF) {
+          int marker=u8(pos + 1);
+
+          if (marker >= 0xD0 && marker <= 0xD7) {
+            pos+=2;
+            break;
+          }
+          else if (marker != 0 && marker != 0xFF) {
+            // missing RST, decode what follows as best we can
+            break;
+          }
+        }
+
+        pos++;
+      }
+
+      for (Component c : scan) {
+        c.pred=0;
+      }
+    }
+
+    private void decodeBlock(Component c, int offset) throws IOException {
+      short[] coefs=c.coefs;
+      int s=decodeHuffman(dcTables[c.dcTable]);
+
+      if (s > 15) {
+        throw new IOException("Corrupt JPEG data");
+      }
+
+      if (s > 0) {
+        c.pred+=receiveExtend(s);
+      }
+
+      coefs[offset]=(short)c.pred;
+
+      HuffmanDecodeTable ac=acTables[c.acTable];
+
+      for (int k=1; k < 64; k++) {
+        int rs=decodeHuffman(ac);
+        int r=rs >> 4;
+
+        s=rs & 15;
+
+        if (s == 0) {
+          if (r != 15) {
+            break;
+          }
+
+          k+=15;
+        }
+        else {
+          k+=r;
+
+          if (k > 63) {
+            throw new IOException("Corrupt JPEG data");
+          }
+
+          coefs[offset + ZIGZAG[k]]=(short)receiveExtend(s);
+        }
+      }
+    }
+
+    private void fill() {
+      while (bitCount <= 24) {
+        int b=0;
+
+        if (pos < data.length) {
+          b=u8(pos);
+
+          if (b == 0xFF) {
+            int next=(pos + 1 < data.length ? u8(pos + 1) : -1);
+
+            if (next == 0) {
+              pos+=2;
+            }
+            else {
+              // a marker: leave it for the caller and feed zeros
+              b=0;
+            }
+          }
+          else {
+            pos++;
+          }
+        }
+
+        bitBuf=(bitBuf << 8) | b;
+        bitCount+=8;
+      }
+    }
+
+    private int decodeHuffman(HuffmanDecodeTable table)
+      throws IOException {
+      fill();
+
+      int look=
+          (bitBuf >>> (bitCount - HuffmanDecodeTable.LOOKAHEAD))
+              & ((1 << HuffmanDecodeTable.LOOKAHEAD) - 1);
+      int entry=table.lookup[look];
+
+      if (entry != 0) {
+        bitCount-=entry >> 8;
+
+        return(entry & 0xFF);
+      }
+
+      for (int l=HuffmanDecodeTable.LOOKAHEAD + 1; l <= 16; l++) {
+        int code=(bitBuf >>> (bitCount - l)) & ((1 << l) - 1);
+
+        if (code <= table.maxCode[l]) {
+          bitCount-=l;
+
+          return(table.values[table.valPtr[l] + code - table.minCode[l]]);
+        }
+      }
+
+      throw new IOException("Corrupt JPEG Huffman code");
+    }
+
+    private int receiveExtend(int s) {
+      fill();
+
+      int v=(bitBuf >>> (bitCount - s)) & ((1 << s) - 1);
+
+      bitCount-=s;
+
+      if (v < (1 << (s - 1))) {
+        v+=(-1 << s) + 1;
+      }
+
+      return(v);
+    }
+
+    private int u8(int p) {
+      return(data[p] & 0xFF);
+    }
+
+    private int u16(int p) {
+      return(((data[p] & 0xFF) << 8) | (data[p + 1] & 0xFF));
+    }
+  }
+
+  private static class HuffmanEncodeTable {
+    final int[] bits=new int[17];
+    final int[] values;
+    final int[] codes=new int[256];
+    final int[] sizes=new int[256];
+
+    // builds an optimal length-limited code for the symbol
+    // frequencies, as in JPEG Annex K.2
+    HuffmanEncodeTable(int[] counts) {
+      long[] freq=new long[257];
+      int[] codeSize=new int[257];
+      int[] others=new int[257];
+
+      for (int i=0; i < 256; i++) {
+        freq[i]=counts[i];
+      }
+
+      // reserve one code point so no code is all ones
+      freq[256]=1;
+
+      for (int i=0; i < others.length; i++) {
+        others[i]=-1;
+      }
+
+      while (true) {
+        int c1=-1;
+        long least=Long.MAX_VALUE;
+
+        for (int i=0; i <= 256; i++) {
+          if (freq[i] != 0 && freq[i] <= least) {
+            least=freq[i];
+            c1=i;
+          }
+        }
+
+        int c2=-1;
+
+        least=Long.MAX_VALUE;
+
+        for (int i=0; i <= 256; i++) {
+          if (freq[i] != 0 && freq[i] <= least && i != c1) {
+            least=freq[i];
+            c2=i;
+          }
+        }
+
+        if (c2 < 0) {
+          break;
+        }
+
+        freq[c1]+=freq[c2];
+        freq[c2]=0;
+
+        codeSize[c1]++;
+
+        while (others[c1] >= 0) {
+          c1=others[c1];
+          codeSize[c1]++;
+        }
+
+        others[c1]=c2;
+        codeSize[c2]++;
+
+        while (others[c2] >= 0) {
+          c2=others[c2];
+          codeSize[c2]++;
+        }
+      }
+
+      int[] lengthCounts=new int[33];
+
+      for (int i=0; i <= 256; i++) {
+        if (codeSize[i] > 0) {
+          lengthCounts[codeSize[i]]++;
+        }
+      }
+
+      for (int i=32; i > 16; i--) {
+        while (lengthCounts[i] > 0) {
+          int j=i - 2;
+
+          while (lengthCounts[j] == 0) {
+            j--;
+          }
+
+          lengthCounts[i]-=2;
+          lengthCounts[i - 1]++;
+          lengthCounts[j + 1]+=2;
+          lengthCounts[j]--;
+        }
+      }
+
+      int longest=16;
+
+      while (lengthCounts[longest] == 0) {
+        longest--;
+      }
+
+      // drop the reserved code point
+      lengthCounts[longest]--;
+
+      System.arraycopy(lengthCounts, 0, bits, 0, 17);
+
+      int total=0;
+
+      for (int l=1; l <= 16; l++) {
+        total+=bits[l];
+      }
+
+      values=new int[total];
+
+      int k=0;
+
+      for (int size=1; size <= 32 && k < total; size++) {
+        for (int i=0; i < 256; i++) {
+          if (codeSize[i] == size) {
+            values[k++]=i;
+          }
+        }
+      }
+
+      int code=0;
+
+      k=0;
+
+      for (int l=1; l <= 16; l++) {
+        for (int i=0; i < bits[l]; i++) {
+          codes[values[k]]=code++;
+          sizes[values[k]]=l;
+          k++;
+        }
+
+        code<<=1;
+      }
+    }
+  }
+
+  private static class Encoder {
+    private final JpegCoefficients frame;
+    private final int[][] dcCounts;
+    private final int[][] acCounts;
+    private HuffmanEncodeTable[] dcTables;
+    private HuffmanEncodeTable[] acTables;
+    private boolean counting;
+    private byte[] out;
+    private int length=0;
+    private int bitBuf=0;
+    private int bitCount=0;
+
+    Encoder(JpegCoefficients frame) {
+      this.frame=frame;
+
+      int tables=(frame.components.length > 1 ? 2 : 1);
+
+      dcCounts=new int[tables][256];
+      acCounts=new int[tables][256];
+    }
+
+    byte[] encode() throws IOException {
+      int blocksPerMcu=0;
+
+      for (Component c : frame.components) {
+        blocksPerMcu+=c.h * c.v;
+      }
+
+      if (frame.components.length > 4
+          || (frame.components.length > 1 && blocksPerMcu > 10)) {
+        throw new IOException("JPEG sampling cannot be interleaved");
+      }
+
+      counting=true;
+      encodeScan();
+
+      dcTables=new HuffmanEncodeTable[dcCounts.length];
+      acTables=new HuffmanEncodeTable[acCounts.length];
+
+      for (int i=0; i < dcCounts.length; i++) {
+        dcTables[i]=new HuffmanEncodeTable(dcCounts[i]);
+        acTables[i]=new HuffmanEncodeTable(acCounts[i]);
+      }
+
+      int estimate=4096;
+
+      for (Component c : frame.components) {
+        estimate+=c.coefs.length / 8;
+      }
+
+      for (byte[] segment : frame.segments) {
+        estimate+=segment.length;
+      }
+
+      out=new byte[estimate];
+      counting=false;
+
+      putMarker(SOI);
+
+      for (byte[] segment : frame.segments) {
+        put(segment, 0, segment.length);
+      }
+
+      writeQuantTables();
+      writeFrameHeader();
+      writeHuffmanTables();
+      writeScanHeader();
+      encodeScan();
+      flushBits();
+      putMarker(EOI);
+
+      byte[] result=new byte[length];
+
+      System.arraycopy(out, 0, result, 0, length);
+
+      return(result);
+    }
+
+    private void writeQuantTables() throws IOException {
+      boolean[] used=new boolean[4];
+
+      for (Component c : frame.components) {
+        if (frame.quantTables[c.quantTable] == null) {
+          throw new IOException("JPEG uses undefined quantization table");
+        }
+
+        used[c.quantTable]=true;
+      }
+
+      for (int i=0; i < 4; i++) {
+        if (used[i]) {
+          int[] table=frame.quantTables[i];
+          boolean wide=isWide(table);
+
+          putMarker(DQT);
+          putShort(2 + 1 + 64 * (wide ? 2 : 1));
+          putByte((wide ? 0x10 : 0) | i);
+
+          for (int k=0; k < 64; k++) {
+            if (wide) {
+              putShort(table[ZIGZAG[k]]);
+            }
+            else {
+              putByte(table[ZIGZAG[k]]);
+            }
+          }
+        }
+      }
+    }
+
+    private void writeFrameHeader() {
+      boolean baseline=true;
+
+      for (int[] table : frame.quantTables) {
+        if (table != null && isWide(table)) {
+          baseline=false;
+        }
+      }
+
+      putMarker(baseline ? SOF0 : SOF1);
+      putShort(8 + 3 * frame.components.length);
+      putByte(8);
+      putShort(frame.height);
+      putShort(frame.width);
+      putByte(frame.components.length);
+
+      for (Component c : frame.components) {
+        putByte(c.id);
+        putByte((c.h << 4) | c.v);
+        putByte(c.quantTable);
+      }
+    }
+
+    private void writeHuffmanTables() {
+      for (int i=0; i < dcTables.length; i++) {
+        writeHuffmanTable(i, dcTables[i]);
+        writeHuffmanTable(0x10 | i, acTables[i]);
+      }
+    }
+
+    private void writeHuffmanTable(int info, HuffmanEncodeTable table) {
+      putMarker(DHT);
+      putShort(2 + 1 + 16 + table.values.length);
+      putByte(info);
+
+      for (int l=1; l <= 16; l++) {
+        putByte(table.bits[l]);
+      }
+
+      for (int value : table.values) {
+        putByte(value);
+      }
+    }
+
+    private void writeScanHeader() {
+      putMarker(SOS);
+      putShort(6 + 2 * frame.components.length);
+      putByte(frame.components.length);
+
+      for (int i=0; i < frame.components.length; i++) {
+        int table=tableFor(i);
+
+        putByte(frame.components[i].id);
+        putByte((table << 4) | table);
+      }
+
+      putByte(0);
+      putByte(63);
+      putByte(0);
+    }
+
+    private int tableFor(int component) {
+      return(component == 0 ? 0 : 1);
+    }
+
+    private void encodeScan() {
+      Component[] components=frame.components;
+
+      for (Component c : components) {
+        c.pred=0;
+      }
+
+      if (components.length == 1) {
+        Component c=components[0];
+        int wide=
+            ((frame.width * c.h + frame.maxH - 1) / frame.maxH + 7) / 8;
+        int high=
+            ((frame.height * c.v + frame.maxV - 1) / frame.maxV + 7) / 8;
+
+        for (int by=0; by < high; by++) {
+          for (int bx=0; bx < wide; bx++) {
+            encodeBlock(c, c.offset(bx, by), 0);
+          }
+        }
+      }
+      else {
+        int mcusWide=frame.mcusWide();
+        int mcusHigh=frame.mcusHigh();
+
+        for (int my=0; my < mcusHigh; my++) {
+          for (int mx=0; mx < mcusWide; mx++) {
+            for (int i=0; i < components.length; i++) {
+              Component c=components[i];
+              int table=tableFor(i);
+
+              for (int v=0; v < c.v; v++) {
+                for (int h=0; h < c.h; h++) {
+                  encodeBlock(c,
+                              c.offset(mx * c.h + h, my * c.v + v),
+                              table);
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+
+    private void encodeBlock(Component c, int offset, int table) {
+      short[] coefs=c.coefs;
+      int diff=coefs[offset] - c.pred;
+
+      c.pred=coefs[offset];
+
+      if (counting) {
+        int[] ac=acCounts[table];
+        int run=0;
+
+        dcCounts[table][sizeOf(diff)]++;
+
+        for (int k=1; k < 64; k++) {
+          int value=coefs[offset + ZIGZAG[k]];
+
+          if (value == 0) {
+            run++;
+          }
+          else {
+            while (run > 15) {
+              ac[0xF0]++;
+              run-=16;
+            }
+
+            ac[(run << 4) | sizeOf(value)]++;
+            run=0;
+          }
+        }
+
+        if (run > 0) {
+          ac[0x00]++;
+        }
+
+        return;
+      }
+
+      // room for the worst case block, with every byte stuffed
+      ensureCapacity(512);
+
+      HuffmanEncodeTable dc=dcTables[table];
+      HuffmanEncodeTable ac=acTables[table];
+      int size=sizeOf(diff);
+      int run=0;
+
+      putBits(dc.codes[size], dc.sizes[size]);
+
+      if (size > 0) {
+        putBits((diff < 0 ? diff - 1 : diff) & ((1 << size) - 1), size);
+      }
+
+      for (int k=1; k < 64; k++) {
+        int value=coefs[offset + ZIGZAG[k]];
+
+        if (value == 0) {
+          run++;
+        }
+        else {
+          while (run > 15) {
+            putBits(ac.codes[0xF0], ac.sizes[0xF0]);
+            run-=16;
+          }
+
+          int symbol=(run << 4) | (size=sizeOf(value));
+
+          putBits(ac.codes[symbol], ac.sizes[symbol]);
+          putBits((value < 0 ? value - 1 : value) & ((1 << size) - 1),
+                  size);
+          run=0;
+        }
+      }
+
+      if (run > 0) {
+        putBits(ac.codes[0x00], ac.sizes[0x00]);
+      }
+    }
+
+    private static int sizeOf(int value) {
+      return(32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value));
+    }
+
+    // callers make sure there is room in out
+    private void putBits(int bits, int size) {
+      bitBuf=(bitBuf << size) | bits;
+      bitCount+=size;
+
+      while (bitCount >= 8) {
+        bitCount-=8;
+
+        int b=(bitBuf >>> bitCount) & 0xFF;
+
+        out[length++]=(byte)b;
+
+        if (b == 0xFF) {
+          out[length++]=0;
+        }
+      }
+    }
+
+    private void flushBits() {
+      ensureCapacity(2);
+
+      if (bitCount > 0) {
+        putBits(0x7F, 7);
+      }
+
+      bitBuf=0;
+      bitCount=0;
+    }
+
+    private static boolean isWide(int[] table) {
+      for (int q : table) {
+        if (q > 255) {
+          return(true);
+        }
+      }
+
+      return(false);
+    }
+
+    private void putMarker(int marker) {
+      putByte(0xFF);
+      putByte(marker);
+    }
+
+    private void putShort(int value) {
+      putByte(value >> 8);
+      putByte(value);
+    }
+
+    private void putByte(int b) {
+      ensureCapacity(1);
+      out[length++]=(byte)b;
+    }
+
+    private void ensureCapacity(int count) {
+      if (length + count > out.length) {
+        byte[] bigger=new byte[Math.max(out.length * 2, length + count)];
+
+        System.arraycopy(out, 0, bigger, 0, length);
+        out=bigger;
+      }
+    }
+
+    private void put(byte[] b, int offset, int count) {
+      ensureCapacity(count);
+      System.arraycopy(b, offset, out, length, count);
+      length+=count;
+    }
+  }
+}
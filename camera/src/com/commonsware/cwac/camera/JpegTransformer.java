@@ -0,0 +1,292 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import java.io.IOException;
+
+/**
+ * Rotates and mirrors baseline JPEGs without decoding them to
+ * pixels, by rearranging their quantized DCT coefficient
+ * blocks in the manner of jpegtran. Image quality is untouched
+ * and memory use is proportional to the coefficient data,
+ * not to a decoded bitmap.
+ *
+ * Blocks can only be moved in whole MCUs (8 or 16 pixels,
+ * depending on chroma subsampling), so an image whose width or
+ * height is not a multiple of that has a partial MCU on its
+ * right or bottom edge. An EdgePolicy decides what happens to
+ * that edge when it would have to be mirrored.
+ */
+public class JpegTransformer {
+  /**
+   * Transforms, expressed as what to do to the image to get
+   * the result. The rotations are clockwise.
+   */
+  public enum Transform {
+    NONE(false, false, false),
+    FLIP_HORIZONTAL(false, true, false),
+    FLIP_VERTICAL(false, false, true),
+    TRANSPOSE(true, false, false),
+    TRANSVERSE(true, true, true),
+    ROTATE_90(true, false, true),
+    ROTATE_180(false, true, true),
+    ROTATE_270(true, true, false);
+
+    // destination (x, y) comes from source (y, x)
+    final boolean transpose;
+    // source columns, resp. rows, are read in reverse order
+    final boolean mirrorX;
+    final boolean mirrorY;
+
+    Transform(boolean transpose, boolean mirrorX, boolean mirrorY) {
+      this.transpose=transpose;
+      this.mirrorX=mirrorX;
+      this.mirrorY=mirrorY;
+    }
+
+    /**
+     * @param degrees
+     *          clockwise rotation, a multiple of 90
+     * @param mirrored
+     *          true to mirror left-to-right after rotating
+     * @return the equivalent Transform
+     */
+    public static Transform forRotation(int degrees, boolean mirrored) {
+      degrees%=360;
+
+      if (degrees < 0) {
+        degrees+=360;
+      }
+
+      switch (degrees) {
+        case 90:
+          return(mirrored ? TRANSPOSE : ROTATE_90);
+
+        case 180:
+          return(mirrored ? FLIP_VERTICAL : ROTATE_180);
+
+        case 270:
+          return(mirrored ? TRANSVERSE : ROTATE_270);
+
+        default:
+          return(mirrored ? FLIP_HORIZONTAL : NONE);
+      }
+    }
+  }
+
+  /**
+   * What to do with a partial MCU on an edge that has to be
+   * mirrored.
+   */
+  public enum EdgePolicy {
+    /**
+     * Crop the partial MCU, losing up to 15 pixels on that
+     * edge (jpegtran -trim)
+     */
+    TRIM,
+    /**
+     * Leave the partial MCU where it is, untransformed
+     * (jpegtran's default)
+     */
+    KEEP,
+    /**
+     * Throw an IOException, so the caller can fall back to
+     * some other approach (jpegtran -perfect)
+     */
+    FAIL
+  }
+
+  /**
+   * @param jpeg
+   *          a baseline or extended sequential, Huffman-coded,
+   *          8-bit JPEG
+   * @param transform
+   *          what to do to the image
+   * @param policy
+   *          how to handle partial MCUs on mirrored edges
+   * @return the transformed JPEG, or the original array if
+   *         transform is NONE
+   * @throws IOException
+   *           if the JPEG cannot be parsed or is of an
+   *           unsupported kind, or if the policy is FAIL and
+   *           the transform is not perfect
+   */
+  public static byte[] transform(byte[] jpeg, Transform transform,
+                                 EdgePolicy policy) throws IOException {
+    if (transform == Transform.NONE) {
+      return(jpeg);
+    }
+
+    return(transform(JpegCoefficients.read(jpeg), transform, policy).write());
+  }
+
+  /**
+   * @param jpeg
+   *          a JPEG that transform() will be asked to handle
+   * @return the heap that transform() will need for it: the
+   *         source and destination coefficient grids, which
+   *         are both held while blocks move, plus the encoder's
+   *         buffer and the finished copy of it, each about as
+   *         large as the JPEG
+   * @throws IOException
+   *           if the JPEG's frame header cannot be parsed or
+   *           is of an unsupported kind
+   */
+  public static long workingBytes(byte[] jpeg) throws IOException {
+    return(2 * JpegCoefficients.readHeader(jpeg).coefficientBytes() + 2L
+        * jpeg.length);
+  }
+
+  static JpegCoefficients transform(JpegCoefficients src,
+                                    Transform transform,
+                                    EdgePolicy policy)
+    throws IOException {
+    int mcuWidth=8 * src.maxH;
+    int mcuHeight=8 * src.maxV;
+    int width=src.width;
+    int height=src.height;
+    boolean partialX=transform.mirrorX && width % mcuWidth != 0;
+    boolean partialY=transform.mirrorY && height % mcuHeight != 0;
+
+    if ((partialX || partialY) && policy == EdgePolicy.FAIL) {
+      throw new IOException("JPEG size " + width + "x" + height
+          + " is not a multiple of the " + mcuWidth + "x" + mcuHeight
+          + " MCU size");
+    }
+
+    if (policy == EdgePolicy.TRIM) {
+      if (partialX) {
+        width-=width % mcuWidth;
+      }
+
+      if (partialY) {
+        height-=height % mcuHeight;
+      }
+
+      if (width == 0 || height == 0) {
+        throw new IOException("JPEG is too small to trim");
+      }
+    }
+
+    JpegCoefficients dst=new JpegCoefficients();
+
+    dst.width=(transform.transpose ? height : width);
+    dst.height=(transform.transpose ? width : height);
+    dst.segments=src.segments;
+    dst.components=new JpegCoefficients.Component[src.components.length];
+
+    for (int i=0; i < 4; i++) {
+      int[] table=src.quantTables[i];
+
+      if (table != null && transform.transpose) {
+        table=transpose(table);
+      }
+
+      dst.quantTables[i]=table;
+    }
+
+    for (int i=0; i < src.components.length; i++) {
+      JpegCoefficients.Component s=src.components[i];
+      JpegCoefficients.Component d=new JpegCoefficients.Component();
+
+      d.id=s.id;
+      d.h=(transform.transpose ? s.v : s.h);
+      d.v=(transform.transpose ? s.h : s.v);
+      d.quantTable=s.quantTable;
+      dst.components[i]=d;
+    }
+
+    dst.allocate();
+
+    for (int i=0; i < src.components.length; i++) {
+      JpegCoefficients.Component s=src.components[i];
+
+      transformBlocks(s, dst.components[i], transform,
+                      (src.width / mcuWidth) * s.h,
+                      (src.height / mcuHeight) * s.v);
+
+      // let the source go as soon as possible
+      s.coefs=null;
+    }
+
+    return(dst);
+  }
+
+  // fullX and fullY are the number of source blocks in whole
+  // MCUs; only those are mirrored
+  private static void transformBlocks(JpegCoefficients.Component s,
+                                      JpegCoefficients.Component d,
+                                      Transform transform, int fullX,
+                                      int fullY) {
+    int[][] index=new int[4][];
+    boolean[][] negate=new boolean[4][];
+
+    for (int mode=0; mode < 4; mode++) {
+      index[mode]=new int[64];
+      negate[mode]=new boolean[64];
+
+      for (int v=0; v < 8; v++) {
+        for (int u=0; u < 8; u++) {
+          int su=(transform.transpose ? v : u);
+          int sv=(transform.transpose ? u : v);
+          boolean flipX=(mode & 1) != 0 && (su & 1) != 0;
+          boolean flipY=(mode & 2) != 0 && (sv & 1) != 0;
+
+          index[mode][v * 8 + u]=sv * 8 + su;
+          negate[mode][v * 8 + u]=flipX ^ flipY;
+        }
+      }
+    }
+
+    for (int dby=0; dby < d.blocksHigh; dby++) {
+      for (int dbx=0; dbx < d.blocksWide; dbx++) {
+        int a=(transform.transpose ? dby : dbx);
+        int b=(transform.transpose ? dbx : dby);
+        boolean flipX=transform.mirrorX && a < fullX;
+        boolean flipY=transform.mirrorY && b < fullY;
+        int sbx=(flipX ? fullX - 1 - a : a);
+        int sby=(flipY ? fullY - 1 - b : b);
+
+        if (sbx >= s.blocksWide || sby >= s.blocksHigh) {
+          continue;
+        }
+
+        int mode=(flipX ? 1 : 0) | (flipY ? 2 : 0);
+        int[] from=index[mode];
+        boolean[] sign=negate[mode];
+        int sOffset=s.offset(sbx, sby);
+        int dOffset=d.offset(dbx, dby);
+
+        for (int k=0; k < 64; k++) {
+          short value=s.coefs[sOffset + from[k]];
+
+          d.coefs[dOffset + k]=(sign[k] ? (short)-value : value);
+        }
+      }
+    }
+  }
+
+  private static int[] transpose(int[] table) {
+    int[] result=new int[64];
+
+    for (int v=0; v < 8; v++) {
+      for (int u=0; u < 8; u++) {
+        result[v * 8 + u]=table[u * 8 + v];
+      }
+    }
+
+    return(result);
+  }
+}
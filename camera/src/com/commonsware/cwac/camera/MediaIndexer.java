@@ -0,0 +1,114 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Collects the paths of saved pictures and hands them to the
+ * media scanner in batches, one MediaScannerConnection request
+ * per batch rather than one per picture. A batch goes out once
+ * it reaches its maximum size, once its oldest path has waited
+ * for the maximum delay, or when flush() is called, such as
+ * when the CameraView is paused.
+ */
+public class MediaIndexer {
+  private static final int DEFAULT_MAX_BATCH=10;
+  private static final long DEFAULT_MAX_DELAY_MS=1000;
+  private final Context ctxt;
+  private final String mimeType;
+  private final int maxBatch;
+  private final long maxDelayMs;
+  private final Handler handler=new Handler(Looper.getMainLooper());
+  private final ArrayList<String> paths=new ArrayList<String>();
+
+  public MediaIndexer(Context ctxt, String mimeType) {
+    this(ctxt, mimeType, DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MS);
+  }
+
+  /**
+   * @param ctxt
+   *          any Context; the application Context is kept
+   * @param mimeType
+   *          the MIME type of the files, e.g. image/jpeg
+   * @param maxBatch
+   *          how many paths to collect before scanning
+   * @param maxDelayMs
+   *          how long a path may wait for others to join it
+   */
+  public MediaIndexer(Context ctxt, String mimeType, int maxBatch,
+                      long maxDelayMs) {
+    this.ctxt=ctxt.getApplicationContext();
+    this.mimeType=mimeType;
+    this.maxBatch=maxBatch;
+    this.maxDelayMs=maxDelayMs;
+  }
+
+  /**
+   * Queues a saved file to be scanned. Safe to call from any
+   * thread.
+   */
+  public void add(String path) {
+    boolean full;
+
+    synchronized(this) {
+      paths.add(path);
+      full=(paths.size() >= maxBatch);
+
+      if (!full && paths.size() == 1) {
+        handler.postDelayed(flusher, maxDelayMs);
+      }
+    }
+
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Scans whatever has been queued, right away.
+   */
+  public void flush() {
+    String[] batch;
+
+    synchronized(this) {
+      handler.removeCallbacks(flusher);
+
+      if (paths.isEmpty()) {
+        return;
+      }
+
+      batch=paths.toArray(new String[paths.size()]);
+      paths.clear();
+    }
+
+    String[] types=new String[batch.length];
+
+    Arrays.fill(types, mimeType);
+    MediaScannerConnection.scanFile(ctxt, batch, types, null);
+  }
+
+  private final Runnable flusher=new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+}
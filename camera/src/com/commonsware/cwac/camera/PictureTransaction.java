@@ -14,18 +14,62 @@
 
 package com.commonsware.cwac.camera;
 
+import android.graphics.Bitmap;
 import android.hardware.Camera;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import com.android.mms.exif.ExifTag;
 
 public class PictureTransaction implements Camera.ShutterCallback {
+  /**
+   * How ImageCleanupTask applies rotation and front-camera
+   * mirroring to the JPEG handed to saveImage().
+   */
+  public enum CleanupMode {
+    /**
+     * Decode the JPEG, transform the pixels with a Matrix,
+     * and re-encode it
+     */
+    MATRIX,
+    /**
+     * Leave the pixels alone and record the transform in the
+     * EXIF orientation tag instead
+     */
+    EXIF_ONLY,
+    /**
+     * Rearrange the JPEG's DCT coefficients, losslessly and
+     * without a full-size Bitmap, falling back to MATRIX if
+     * the JPEG is not baseline or the edge policy refuses
+     */
+    LOSSLESS,
+    /**
+     * Like MATRIX, but decode the JPEG in bands and draw each
+     * one into the transformed Bitmap, so the untransformed
+     * Bitmap is never held in full; not limited by
+     * maxPictureCleanupHeapUsage()
+     */
+    TILED
+  }
+
   CameraHost host=null;
   boolean needBitmap=false;
   boolean needByteArray=true;
+  boolean needOriginalImage=false;
   private Object tag=null;
   boolean mirrorFFC=false;
   boolean useSingleShotMode=false;
   int displayOrientation=0;
   String flashMode=null;
   CameraView cameraView=null;
+  CleanupMode cleanupMode=CleanupMode.MATRIX;
+  JpegTransformer.EdgePolicy edgePolicy=JpegTransformer.EdgePolicy.TRIM;
+  int bitmapWidth=0;
+  int bitmapHeight=0;
+  Bitmap.Config bitmapConfig=Bitmap.Config.ARGB_8888;
+  ArrayList<Rendition> renditions=new ArrayList<Rendition>();
+  ArrayList<ExifTag> exifTags=new ArrayList<ExifTag>();
+  String saveDigest=null;
 
   public PictureTransaction(CameraHost host) {
     this.host=host;
@@ -43,6 +87,134 @@ public class PictureTransaction implements Camera.ShutterCallback {
     return(this);
   }
 
+  /**
+   * Requests the camera's JPEG, untouched, through
+   * CameraHost.onOriginalImage() as soon as its orientation
+   * is known, ahead of the cleaned-up result in
+   * saveImage(), so it can be shown right away.
+   *
+   * @param needOriginalImage
+   *          true to get the early callback
+   * @return this PictureTransaction
+   */
+  public PictureTransaction needOriginalImage(boolean needOriginalImage) {
+    this.needOriginalImage=needOriginalImage;
+
+    return(this);
+  }
+
+  /**
+   * Requests a smaller Bitmap for saveImage(), for example
+   * one sized to the screen. The picture, once rotated, is
+   * scaled down to fit within these bounds, keeping its
+   * aspect ratio. It is never scaled up.
+   *
+   * @param width
+   *          maximum width of the Bitmap, in pixels
+   * @param height
+   *          maximum height of the Bitmap, in pixels
+   * @return this PictureTransaction
+   */
+  public PictureTransaction bitmapSize(int width, int height) {
+    this.bitmapWidth=width;
+    this.bitmapHeight=height;
+
+    return(this);
+  }
+
+  /**
+   * @param bitmapConfig
+   *          the Bitmap.Config of the Bitmap for
+   *          saveImage(), such as RGB_565 to halve its size
+   * @return this PictureTransaction
+   */
+  public PictureTransaction bitmapConfig(Bitmap.Config bitmapConfig) {
+    this.bitmapConfig=bitmapConfig;
+
+    return(this);
+  }
+
+  /**
+   * Requests a reduced-size JPEG, such as a screen-sized copy
+   * or a thumbnail, in addition to the full picture. All
+   * renditions come from one decode, scaled down from one to
+   * the next, and each is handed to
+   * CameraHost.saveRendition() as soon as it is encoded.
+   *
+   * @param rendition
+   *          the size and quality of the extra JPEG
+   * @return this PictureTransaction
+   */
+  public PictureTransaction addRendition(Rendition rendition) {
+    renditions.add(rendition);
+
+    return(this);
+  }
+
+  /**
+   * Adds a tag, such as GPS coordinates or a user comment, to
+   * the EXIF data of the saved JPEG, replacing any tag of the
+   * same ID that the camera wrote. Build tags with
+   * ExifInterface.buildTag(). They are written in the same
+   * pass as the rest of the picture, so there is no need to
+   * read the saved file back to add them.
+   *
+   * @param tag
+   *          the tag to add
+   * @return this PictureTransaction
+   */
+  public PictureTransaction addExifTag(ExifTag tag) {
+    exifTags.add(tag);
+
+    return(this);
+  }
+
+  /**
+   * Has a digest of the saved JPEG computed as it is written,
+   * for files written by a SaveWriter or through
+   * getDirectSaveFile(), and handed over in
+   * SaveWriter.Result.getDigest().
+   *
+   * @param algorithm
+   *          a MessageDigest algorithm, such as SHA-256, or
+   *          null for no digest
+   * @return this PictureTransaction
+   */
+  public PictureTransaction saveDigest(String algorithm) {
+    if (algorithm != null) {
+      try {
+        MessageDigest.getInstance(algorithm);
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new IllegalArgumentException("Unsupported digest: "
+            + algorithm, e);
+      }
+    }
+
+    this.saveDigest=algorithm;
+
+    return(this);
+  }
+
+  MessageDigest newSaveDigest() {
+    if (saveDigest == null) {
+      return(null);
+    }
+
+    try {
+      return(MessageDigest.getInstance(saveDigest));
+    }
+    catch (NoSuchAlgorithmException e) {
+      // checked in saveDigest()
+      throw new IllegalStateException(e);
+    }
+  }
+
+  boolean hasBitmapTarget() {
+    return((bitmapWidth > 0 && bitmapHeight > 0)
+        || bitmapConfig != Bitmap.Config.ARGB_8888);
+  }
+
   public Object getTag() {
     return(tag);
   }
@@ -79,6 +251,18 @@ public class PictureTransaction implements Camera.ShutterCallback {
     return(this);
   }
 
+  public PictureTransaction cleanupMode(CleanupMode cleanupMode) {
+    this.cleanupMode=cleanupMode;
+
+    return(this);
+  }
+
+  public PictureTransaction edgePolicy(JpegTransformer.EdgePolicy edgePolicy) {
+    this.edgePolicy=edgePolicy;
+
+    return(this);
+  }
+
   PictureTransaction displayOrientation(int displayOrientation) {
     this.displayOrientation=displayOrientation;
 
@@ -0,0 +1,86 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+/**
+ * A reduced-size JPEG to produce alongside the full picture,
+ * such as a screen-sized copy or a thumbnail. Add them to a
+ * PictureTransaction with addRendition(); each one is handed
+ * to CameraHost.saveRendition() once encoded.
+ *
+ * Renditions are upright (rotated and mirrored like the
+ * picture itself), fit within the given bounds keeping the
+ * aspect ratio, are never scaled up, and carry no EXIF data.
+ */
+public class Rendition {
+  private final String name;
+  private final int maxWidth;
+  private final int maxHeight;
+  private final int quality;
+
+  /**
+   * @param name
+   *          identifies the rendition in saveRendition()
+   * @param maxWidth
+   *          maximum width, in pixels
+   * @param maxHeight
+   *          maximum height, in pixels
+   */
+  public Rendition(String name, int maxWidth, int maxHeight) {
+    this(name, maxWidth, maxHeight, 90);
+  }
+
+  /**
+   * @param name
+   *          identifies the rendition in saveRendition()
+   * @param maxWidth
+   *          maximum width, in pixels
+   * @param maxHeight
+   *          maximum height, in pixels
+   * @param quality
+   *          JPEG quality, 0-100
+   */
+  public Rendition(String name, int maxWidth, int maxHeight, int quality) {
+    if (maxWidth < 1 || maxHeight < 1) {
+      throw new IllegalArgumentException("Rendition bounds must be positive");
+    }
+
+    this.name=name;
+    this.maxWidth=maxWidth;
+    this.maxHeight=maxHeight;
+    this.quality=quality;
+  }
+
+  public String getName() {
+    return(name);
+  }
+
+  public int getMaxWidth() {
+    return(maxWidth);
+  }
+
+  public int getMaxHeight() {
+    return(maxHeight);
+  }
+
+  public int getQuality() {
+    return(quality);
+  }
+
+  @Override
+  public String toString() {
+    return(name + " (" + maxWidth + "x" + maxHeight + ")");
+  }
+}
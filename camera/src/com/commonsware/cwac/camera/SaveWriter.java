@@ -0,0 +1,538 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes pictures to disk on its own thread, so saveImage()
+ * can return as soon as a picture is queued. Each picture is
+ * written to a temporary file next to its destination, synced,
+ * and then renamed into place, so a crash never leaves a
+ * partial JPEG under the real name.
+ *
+ * Pictures that queue up during a burst are committed as a
+ * group: all of them are written, then each is synced, then
+ * all are renamed, and on API Level 21 and higher their
+ * directory is synced once for the whole group, so that the
+ * new names survive a crash too. Below that, or where the
+ * file system refuses to sync a directory, a picture reported
+ * as saved has all of its data on disk, but a crash soon
+ * after can still undo its rename.
+ *
+ * The queue is bounded; once it is full, save() waits for
+ * room, which holds up the CapturePipeline's SAVE stage
+ * rather than piling up JPEGs on the heap.
+ */
+public class SaveWriter {
+  /**
+   * Told about each picture once it has been synced and
+   * renamed into place, or once writing it has failed. Called
+   * on the writer thread.
+   */
+  public interface Listener {
+    void onSaveCompleted(Result result);
+  }
+
+  /**
+   * The outcome of saving one picture.
+   */
+  public static class Result {
+    private final PictureTransaction xact;
+    private final File file;
+    private IOException exception=null;
+    private long byteCount=0;
+    private byte[] digest=null;
+
+    Result(PictureTransaction xact, File file) {
+      this.xact=xact;
+      this.file=file;
+    }
+
+    public PictureTransaction getTransaction() {
+      return(xact);
+    }
+
+    public File getFile() {
+      return(file);
+    }
+
+    /**
+     * @return true if the picture is synced to disk and
+     *         renamed into place; the rename is only synced
+     *         as well on API Level 21 and higher
+     */
+    public boolean isSuccessful() {
+      return(exception == null);
+    }
+
+    /**
+     * @return what went wrong, or null if the save worked
+     */
+    public IOException getException() {
+      return(exception);
+    }
+
+    /**
+     * @return the size of the saved file, in bytes
+     */
+    public long getByteCount() {
+      return(byteCount);
+    }
+
+    /**
+     * @return the digest of the saved file, computed as it
+     *         was written, using the algorithm from the
+     *         PictureTransaction's saveDigest(); null if none
+     *         was requested or the save failed
+     */
+    public byte[] getDigest() {
+      return(digest);
+    }
+  }
+
+  private static final int DEFAULT_QUEUE_SIZE=8;
+  private static final long IDLE_TIMEOUT_SECONDS=30;
+  private static final AtomicLong TEMP_COUNTER=new AtomicLong();
+  private final ArrayBlockingQueue<Request> pending;
+  private final int maxGroupSize;
+  private final AtomicBoolean draining=new AtomicBoolean(false);
+  private final ThreadPoolExecutor executor;
+  private volatile boolean preallocate=false;
+
+  public SaveWriter() {
+    this(DEFAULT_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * @param queueSize
+   *          how many pictures may wait to be written before
+   *          save() blocks
+   * @param maxGroupSize
+   *          how many pictures may share one commit
+   */
+  public SaveWriter(int queueSize, int maxGroupSize) {
+    if (queueSize < 1 || maxGroupSize < 1) {
+      throw new IllegalArgumentException(
+                                         "Queue and group sizes must be positive");
+    }
+
+    this.pending=new ArrayBlockingQueue<Request>(queueSize);
+    this.maxGroupSize=maxGroupSize;
+
+    ThreadFactory factory=new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        return(new Thread(r, "CWAC-Camera save writer"));
+      }
+    };
+
+    executor=
+        new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(), factory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Applies to pictures queued with save(). Pictures encoded
+   * straight to their file, through
+   * CameraHost.getDirectSaveFile(), are always preallocated.
+   *
+   * @param preallocate
+   *          true to reserve each file's full size before
+   *          writing it, where the file system supports that
+   *          (API Level 21 and higher)
+   * @return this SaveWriter
+   */
+  public SaveWriter preallocate(boolean preallocate) {
+    this.preallocate=preallocate;
+
+    return(this);
+  }
+
+  /**
+   * Queues a picture to be written to a file, replacing any
+   * existing file of that name. Blocks while the queue is
+   * full.
+   *
+   * @param xact
+   *          the PictureTransaction of the picture
+   * @param image
+   *          the JPEG data; it must not be modified until the
+   *          listener has been called
+   * @param file
+   *          where the picture should end up
+   * @param listener
+   *          told when the picture is on disk, or has failed
+   */
+  public void save(PictureTransaction xact, byte[] image, File file,
+                   Listener listener) {
+    Request request=new Request(xact, image, file, listener);
+
+    try {
+      pending.put(request);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      request.result.exception=
+          new InterruptedIOException("Interrupted queueing " + file);
+      listener.onSaveCompleted(request.result);
+
+      return;
+    }
+
+    if (draining.compareAndSet(false, true)) {
+      executor.execute(drainer);
+    }
+  }
+
+  /**
+   * Writes a picture on the calling thread, the same way the
+   * writer thread would, as a group of one.
+   *
+   * @return the outcome
+   */
+  public static Result saveNow(PictureTransaction xact, byte[] image,
+                               File file) {
+    Request request=new Request(xact, image, file, null);
+
+    commit(Collections.singletonList(request), false);
+
+    return(request.result);
+  }
+
+  private final Runnable drainer=new Runnable() {
+    @Override
+    public void run() {
+      boolean done=false;
+
+      try {
+        drain();
+        done=true;
+      }
+      finally {
+        // if something got past commit() and the listeners,
+        // let the next save() start a fresh drainer rather
+        // than wait on this one forever
+
+        if (!done) {
+          draining.set(false);
+        }
+      }
+    }
+
+    private void drain() {
+      ArrayList<Request> group=new ArrayList<Request>(maxGroupSize);
+
+      while (true) {
+        pending.drainTo(group, maxGroupSize);
+
+        if (group.isEmpty()) {
+          draining.set(false);
+
+          // a save() may have queued a picture after the
+          // drain but before the flag was cleared
+
+          if (pending.isEmpty() || !draining.compareAndSet(false, true)) {
+            return;
+          }
+
+          continue;
+        }
+
+        commit(group, preallocate);
+
+        for (Request request : group) {
+          try {
+            request.listener.onSaveCompleted(request.result);
+          }
+          catch (RuntimeException e) {
+            // keep the writer alive for the rest of the queue
+            Log.e(CameraView.TAG, "Exception in save listener", e);
+          }
+        }
+
+        group.clear();
+      }
+    }
+  };
+
+  private static void commit(List<Request> group, boolean preallocate) {
+    // write everything, sync each file, rename everything,
+    // then sync each directory once for all of its renames
+
+    for (Request request : group) {
+      try {
+        request.open(preallocate ? request.image.length : 0);
+
+        // the caller's array as is, in one channel write
+        // rather than through a stream wrapper
+
+        FileChannel channel=request.out.getChannel();
+        ByteBuffer buffer=ByteBuffer.wrap(request.image);
+
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+
+        // hashed from the same array, while it is still in
+        // cache, rather than read back from the file
+
+        if (request.digest != null) {
+          request.digest.update(request.image);
+        }
+
+        request.result.byteCount=request.image.length;
+      }
+      catch (Exception e) {
+        request.fail(e);
+      }
+    }
+
+    for (Request request : group) {
+      if (request.out != null) {
+        try {
+          request.sync();
+        }
+        catch (Exception e) {
+          request.fail(e);
+        }
+      }
+    }
+
+    LinkedHashSet<File> dirs=new LinkedHashSet<File>();
+
+    for (Request request : group) {
+      if (request.result.isSuccessful()) {
+        request.rename();
+        dirs.add(request.temp.getParentFile());
+      }
+    }
+
+    for (File dir : dirs) {
+      syncDirectory(dir);
+    }
+  }
+
+  /**
+   * Produces a JPEG by writing it to a stream, such as by
+   * Bitmap.compress().
+   */
+  interface Encoder {
+    void encodeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Encodes a picture straight into its file on the calling
+   * thread, with the same temporary file, sync and rename as
+   * any other save, so the JPEG never exists as a byte[].
+   *
+   * There is no SaveWriter behind these saves, so there is no
+   * preallocate() setting to consult: the file is always
+   * preallocated to expectedSize, where the file system
+   * supports that, as the encoder's small writes would
+   * otherwise each stop to allocate.
+   *
+   * @param expectedSize
+   *          a guess at the size of the JPEG, to preallocate
+   *          that much of the file; it is trimmed to the real
+   *          size afterwards; 0 to not preallocate
+   * @return the outcome
+   */
+  static Result saveEncoded(PictureTransaction xact, File file,
+                            Encoder encoder, long expectedSize) {
+    Request request=new Request(xact, null, file, null);
+
+    try {
+      request.open(expectedSize);
+
+      // the digest sees each chunk on its way to the file
+
+      OutputStream target=
+          (request.digest == null ? request.out
+              : new DigestOutputStream(request.out, request.digest));
+
+      encoder.encodeTo(target);
+      target.flush();
+
+      FileChannel channel=request.out.getChannel();
+
+      request.result.byteCount=channel.position();
+      channel.truncate(request.result.byteCount);
+      request.sync();
+      request.rename();
+
+      if (request.result.isSuccessful()) {
+        syncDirectory(request.temp.getParentFile());
+      }
+    }
+    catch (Exception e) {
+      request.fail(e);
+    }
+
+    return(request.result);
+  }
+
+  // reserves the blocks up front, so the file is laid out in
+  // one piece and the writes do not stop to allocate; not
+  // every file system can, so this is best-effort
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private static void preallocate(FileDescriptor fd, long size) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      try {
+        Os.posix_fallocate(fd, 0, size);
+      }
+      catch (ErrnoException e) {
+        Log.d(CameraView.TAG, "Could not preallocate " + size + " bytes", e);
+      }
+    }
+  }
+
+  // makes renames into the directory durable; Java has no
+  // way to open a directory for fsync before API Level 21,
+  // and not every file system allows it, so this is
+  // best-effort
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private static void syncDirectory(File dir) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      try {
+        FileDescriptor fd=Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+
+        try {
+          Os.fsync(fd);
+        }
+        finally {
+          Os.close(fd);
+        }
+      }
+      catch (ErrnoException e) {
+        Log.d(CameraView.TAG, "Could not sync directory " + dir, e);
+      }
+    }
+  }
+
+  private static class Request {
+    final byte[] image;
+    final File temp;
+    final Listener listener;
+    final Result result;
+    final MessageDigest digest;
+    FileOutputStream out=null;
+
+    Request(PictureTransaction xact, byte[] image, File file,
+            Listener listener) {
+      this.image=image;
+      this.listener=listener;
+      this.result=new Result(xact, file);
+      this.digest=(xact == null ? null : xact.newSaveDigest());
+
+      // same directory, so the rename cannot cross file
+      // systems; numbered, as pictures taken within the same
+      // second can share a name
+
+      temp=
+          new File(file.getAbsoluteFile().getParentFile(), "."
+              + file.getName() + "." + TEMP_COUNTER.incrementAndGet()
+              + ".tmp");
+    }
+
+    void open(long size) throws IOException {
+      out=new FileOutputStream(temp);
+
+      if (size > 0) {
+        preallocate(out.getFD(), size);
+      }
+    }
+
+    void sync() throws IOException {
+      out.getFD().sync();
+      out.close();
+      out=null;
+    }
+
+    void rename() {
+      boolean renamed;
+
+      try {
+        renamed=temp.renameTo(result.getFile());
+      }
+      catch (SecurityException e) {
+        fail(e);
+
+        return;
+      }
+
+      if (!renamed) {
+        fail(new IOException("Could not rename " + temp + " to "
+            + result.getFile()));
+      }
+      else if (digest != null) {
+        result.digest=digest.digest();
+      }
+    }
+
+    // anything at all, so a SecurityException or the like
+    // fails this picture rather than the writer thread
+
+    void fail(Exception e) {
+      if (result.exception == null) {
+        result.exception=
+            (e instanceof IOException ? (IOException)e
+                : new IOException("Could not save " + result.getFile(), e));
+      }
+
+      if (out != null) {
+        try {
+          out.close();
+        }
+        catch (IOException ignored) {
+          // already failing
+        }
+
+        out=null;
+      }
+
+      temp.delete();
+    }
+  }
+}
@@ -21,20 +21,17 @@ import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaActionSound;
 import android.media.MediaRecorder;
-import android.media.MediaScannerConnection;
 import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
 public class SimpleCameraHost implements CameraHost {
-  private static final String[] SCAN_TYPES= { "image/jpeg" };
+  private static final String SCAN_TYPE="image/jpeg";
   private Context ctxt=null;
   private int cameraId=-1;
   private DeviceProfile profile=null;
@@ -44,9 +41,22 @@ public class SimpleCameraHost implements CameraHost {
   protected boolean mirrorFFC=false;
   private boolean useFrontFacingCamera=false;
   private boolean scanSavedImage=true;
+  private boolean encodeToFile=false;
   private boolean useFullBleedPreview=true;
   private boolean useSingleShotMode=false;
   protected Camera.Size previewSize;
+  private CapturePipeline.Backpressure captureBackpressure=
+      CapturePipeline.Backpressure.BLOCK;
+  private CapturePipeline capturePipeline=null;
+  private SaveWriter saveWriter=null;
+  private MediaIndexer mediaIndexer=null;
+  private final SaveWriter.Listener saveListener=
+      new SaveWriter.Listener() {
+        @Override
+        public void onSaveCompleted(SaveWriter.Result result) {
+          onImageSaved(result);
+        }
+      };
 
     public SimpleCameraHost(Context _ctxt) {
     this.ctxt=_ctxt.getApplicationContext();
@@ -247,31 +257,50 @@ public class SimpleCameraHost implements CameraHost {
   @Override
   public void saveImage(PictureTransaction xact, byte[] image) {
     File photo=getPhotoPath();
+    SaveWriter writer=getSaveWriter();
 
-    if (photo.exists()) {
-      photo.delete();
+    if (writer == null) {
+      onImageSaved(SaveWriter.saveNow(xact, image, photo));
     }
+    else {
+      writer.save(xact, image, photo, saveListener);
+    }
+  }
 
-    try {
-      FileOutputStream fos=new FileOutputStream(photo.getPath());
-      BufferedOutputStream bos=new BufferedOutputStream(fos);
-
-      bos.write(image);
-      bos.flush();
-      fos.getFD().sync();
-      bos.close();
-
-      if (scanSavedImage()) {
-        MediaScannerConnection.scanFile(ctxt,
-                                        new String[] { photo.getPath() },
-                                        SCAN_TYPES, null);
-      }
+  /**
+   * Called once a picture from saveImage() or
+   * getDirectSaveFile() is on disk under its final name, or
+   * has failed to get there. With a SaveWriter, this is
+   * called on its writer thread, after saveImage() has
+   * returned.
+   */
+  @Override
+  public void onImageSaved(SaveWriter.Result result) {
+    if (!result.isSuccessful()) {
+      handleException(result.getException());
     }
-    catch (java.io.IOException e) {
-      handleException(e);
+    else if (scanSavedImage()) {
+      getMediaIndexer().add(result.getFile().getPath());
     }
   }
 
+  @Override
+  public File getDirectSaveFile(PictureTransaction xact) {
+    return(encodeToFile ? getPhotoPath() : null);
+  }
+
+  @Override
+  public boolean onOriginalImage(PictureTransaction xact, byte[] image,
+                                 int orientation) {
+    return(true);
+  }
+
+  @Override
+  public void saveRendition(PictureTransaction xact, Rendition rendition,
+                            byte[] image) {
+    // no-op
+  }
+
   @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
   @Override
   public void onAutoFocus(boolean success, Camera camera) {
@@ -319,6 +348,19 @@ public class SimpleCameraHost implements CameraHost {
           String.format("Camera access failed: %d", reason.value));
   }
 
+  @Override
+  public void onCameraViewPaused() {
+    MediaIndexer indexer;
+
+    synchronized(this) {
+      indexer=mediaIndexer;
+    }
+
+    if (indexer != null) {
+      indexer.flush();
+    }
+  }
+
   @Override
   public boolean useFullBleedPreview() {
     return(useFullBleedPreview);
@@ -328,6 +370,17 @@ public class SimpleCameraHost implements CameraHost {
   public float maxPictureCleanupHeapUsage() {
     return(1.0f);
   }
+
+  @Override
+  public synchronized CapturePipeline getCapturePipeline() {
+    if (capturePipeline == null) {
+      capturePipeline=
+          new CapturePipeline.Builder().backpressure(captureBackpressure)
+                                       .build();
+    }
+
+    return(capturePipeline);
+  }
   
   protected File getPhotoPath() {
     File dir=getPhotoDirectory();
@@ -393,6 +446,27 @@ public class SimpleCameraHost implements CameraHost {
     return(scanSavedImage);
   }
 
+  /**
+   * @return the MediaIndexer that saved pictures are handed
+   *         to, if scanSavedImage() is true
+   */
+  protected synchronized MediaIndexer getMediaIndexer() {
+    if (mediaIndexer == null) {
+      mediaIndexer=new MediaIndexer(ctxt, SCAN_TYPE);
+    }
+
+    return(mediaIndexer);
+  }
+
+  /**
+   * @return the SaveWriter that saveImage() queues pictures
+   *         on, or null to write each one before saveImage()
+   *         returns
+   */
+  protected SaveWriter getSaveWriter() {
+    return(saveWriter);
+  }
+
   public static class Builder {
     private SimpleCameraHost host=null;
 
@@ -408,6 +482,18 @@ public class SimpleCameraHost implements CameraHost {
       return(host);
     }
 
+    public Builder captureBackpressure(CapturePipeline.Backpressure captureBackpressure) {
+      host.captureBackpressure=captureBackpressure;
+
+      return(this);
+    }
+
+    public Builder capturePipeline(CapturePipeline capturePipeline) {
+      host.capturePipeline=capturePipeline;
+
+      return(this);
+    }
+
     public Builder cameraId(int cameraId) {
       host.cameraId=cameraId;
 
@@ -420,6 +506,18 @@ public class SimpleCameraHost implements CameraHost {
       return(this);
     }
 
+    public Builder encodeToFile(boolean encodeToFile) {
+      host.encodeToFile=encodeToFile;
+
+      return(this);
+    }
+
+    public Builder mediaIndexer(MediaIndexer mediaIndexer) {
+      host.mediaIndexer=mediaIndexer;
+
+      return(this);
+    }
+
     public Builder mirrorFFC(boolean mirrorFFC) {
       host.mirrorFFC=mirrorFFC;
 
@@ -438,6 +536,12 @@ public class SimpleCameraHost implements CameraHost {
       return(this);
     }
 
+    public Builder saveWriter(SaveWriter saveWriter) {
+      host.saveWriter=saveWriter;
+
+      return(this);
+    }
+
     public Builder scanSavedImage(boolean scanSavedImage) {
       host.scanSavedImage=scanSavedImage;
 
@@ -0,0 +1,243 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a rotate/mirror Matrix to a JPEG by decoding it in
+ * horizontal bands with BitmapRegionDecoder and drawing each
+ * band straight into the transformed Bitmap, so the full-size
+ * untransformed Bitmap never exists. Bands are spread over one
+ * worker per core, each with its own decoder.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+class TiledTransform {
+  // a multiple of the largest JPEG MCU height, so bands start
+  // on MCU rows
+  static final int BAND_HEIGHT=256;
+
+  /**
+   * @return the memory held by the workers, on top of the
+   *         transformed Bitmap itself, for a picture of the
+   *         given width: one band in flight per worker, plus
+   *         the copy of the JPEG that each worker's decoder
+   *         makes on platform versions that ignore
+   *         isShareable
+   */
+  static long workingBytes(int width, int jpegLength) {
+    return(((long)width * BAND_HEIGHT * 4 + jpegLength)
+        * Runtime.getRuntime().availableProcessors());
+  }
+
+  static boolean isSupported() {
+    return(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1);
+  }
+
+  /**
+   * @param jpeg
+   *          the JPEG to decode
+   * @param matrix
+   *          a transform made of 90-degree rotations and
+   *          mirroring, so every pixel lands on a pixel
+   * @return the transformed Bitmap
+   * @throws IOException
+   *           if the JPEG cannot be decoded
+   */
+  static Bitmap apply(byte[] jpeg, Matrix matrix) throws IOException {
+    // shareable, as the JPEG is not touched until the
+    // decoders are done with it
+
+    BitmapRegionDecoder decoder=
+        BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, true);
+    int width=decoder.getWidth();
+    int height=decoder.getHeight();
+    RectF bounds=new RectF(0, 0, width, height);
+
+    matrix.mapRect(bounds);
+
+    Matrix placed=new Matrix();
+
+    placed.set(matrix);
+    placed.postTranslate(-bounds.left, -bounds.top);
+
+    Bitmap result=
+        BitmapPool.get().obtain(Math.round(bounds.width()),
+                                Math.round(bounds.height()),
+                                Bitmap.Config.ARGB_8888);
+    int bands=(height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+    int threads=
+        Math.max(1,
+                 Math.min(Runtime.getRuntime().availableProcessors(),
+                          bands));
+    AtomicInteger nextBand=new AtomicInteger();
+    ExecutorService pool=Executors.newFixedThreadPool(threads);
+    ArrayList<Future<Void>> futures=new ArrayList<Future<Void>>();
+    boolean done=false;
+
+    try {
+      for (int i=0; i < threads; i++) {
+        BitmapRegionDecoder own=
+            (i == 0 ? decoder : BitmapRegionDecoder.newInstance(jpeg, 0,
+                                                                jpeg.length,
+                                                                true));
+
+        futures.add(pool.submit(new BandWorker(own, result, placed,
+                                               nextBand)));
+      }
+
+      for (Future<Void> f : futures) {
+        f.get();
+      }
+
+      done=true;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while transforming bands");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+
+      if (e.getCause() instanceof OutOfMemoryError) {
+        throw (OutOfMemoryError)e.getCause();
+      }
+
+      throw new IOException("Exception transforming bands: "
+          + e.getCause());
+    }
+    finally {
+      if (done) {
+        pool.shutdown();
+      }
+      else {
+        // no worker takes another band after this, but
+        // decodeRegion() and drawBitmap() ignore interrupts, so
+        // the bands in flight are waited out before the Bitmap
+        // can go back to the pool and be handed out again
+
+        nextBand.set(bands);
+        pool.shutdownNow();
+        awaitWorkers(pool);
+        BitmapPool.get().put(result);
+      }
+    }
+
+    return(result);
+  }
+
+  private static void awaitWorkers(ExecutorService pool) {
+    boolean interrupted=false;
+
+    while (true) {
+      try {
+        if (pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+          break;
+        }
+      }
+      catch (InterruptedException e) {
+        interrupted=true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class BandWorker implements Callable<Void> {
+    private final BitmapRegionDecoder decoder;
+    private final Bitmap result;
+    private final Matrix placed;
+    private final AtomicInteger nextBand;
+
+    BandWorker(BitmapRegionDecoder decoder, Bitmap result,
+               Matrix placed, AtomicInteger nextBand) {
+      this.decoder=decoder;
+      this.result=result;
+      this.placed=placed;
+      this.nextBand=nextBand;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      // each band lands in its own strip of the result, rows
+      // or, under a 90 or 270 degree rotation, columns; but
+      // Canvas makes no promise about drawing into one Bitmap
+      // from several threads, so the draws take turns on the
+      // result while the decoding stays parallel
+
+      Canvas canvas=new Canvas(result);
+      BitmapFactory.Options opts=new BitmapFactory.Options();
+      Matrix bandMatrix=new Matrix();
+      Rect region=new Rect();
+      int width=decoder.getWidth();
+      int height=decoder.getHeight();
+
+      opts.inPreferredConfig=Bitmap.Config.ARGB_8888;
+
+      try {
+        int top;
+
+        while ((top=nextBand.getAndIncrement() * BAND_HEIGHT) < height) {
+          region.set(0, top, width, Math.min(top + BAND_HEIGHT, height));
+
+          Bitmap band=decoder.decodeRegion(region, opts);
+
+          if (band == null) {
+            throw new IOException("Could not decode rows " + region.top
+                + "-" + region.bottom);
+          }
+
+          bandMatrix.set(placed);
+          bandMatrix.preTranslate(0, top);
+
+          // no Paint, so no filtering: pixels map one to one
+
+          synchronized(result) {
+            canvas.drawBitmap(band, bandMatrix, null);
+          }
+
+          band.recycle();
+        }
+      }
+      finally {
+        decoder.recycle();
+      }
+
+      return(null);
+    }
+  }
+}
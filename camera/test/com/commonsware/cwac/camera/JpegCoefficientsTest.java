@@ -0,0 +1,228 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class JpegCoefficientsTest {
+  @Test
+  public void writeKeepsEveryCoefficient() throws IOException {
+    checkRoundTrip(new JpegSamples(64, 48, JpegSamples.COLOR));
+    checkRoundTrip(new JpegSamples(64, 48, JpegSamples.COLOR).sampling(2, 1));
+    checkRoundTrip(new JpegSamples(64, 48, JpegSamples.COLOR).sampling(1, 1));
+    checkRoundTrip(new JpegSamples(64, 48, JpegSamples.GRAY));
+  }
+
+  @Test
+  public void writeKeepsPartialMcus() throws IOException {
+    checkRoundTrip(new JpegSamples(37, 29, JpegSamples.COLOR));
+    checkRoundTrip(new JpegSamples(37, 29, JpegSamples.GRAY));
+  }
+
+  @Test
+  public void writtenJpegDecodesToTheSamePixels() throws IOException {
+    byte[] jpeg=new JpegSamples(37, 29, JpegSamples.COLOR).encode();
+    byte[] written=JpegCoefficients.read(jpeg).write();
+    BufferedImage expected=JpegSamples.decode(jpeg);
+    BufferedImage actual=JpegSamples.decode(written);
+
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+
+    for (int y=0; y < expected.getHeight(); y++) {
+      for (int x=0; x < expected.getWidth(); x++) {
+        assertEquals("pixel " + x + "," + y, expected.getRGB(x, y),
+                     actual.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void restartIntervalsDecodeLikeOneScan() throws IOException {
+    checkRestarts(new JpegSamples(64, 48, JpegSamples.COLOR), 1);
+    checkRestarts(new JpegSamples(64, 48, JpegSamples.COLOR), 5);
+    checkRestarts(new JpegSamples(37, 29, JpegSamples.GRAY), 3);
+  }
+
+  @Test
+  public void progressiveIsRejected() throws IOException {
+    byte[] jpeg=
+        new JpegSamples(32, 32, JpegSamples.COLOR).progressive().encode();
+
+    try {
+      JpegCoefficients.read(jpeg);
+      fail("Progressive JPEG was accepted");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    try {
+      JpegCoefficients.readHeader(jpeg);
+      fail("Progressive JPEG header was accepted");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void headerMatchesFullRead() throws IOException {
+    byte[] jpeg=new JpegSamples(37, 29, JpegSamples.COLOR).encode();
+    JpegCoefficients header=JpegCoefficients.readHeader(jpeg);
+    JpegCoefficients full=JpegCoefficients.read(jpeg);
+
+    assertEquals(full.width, header.width);
+    assertEquals(full.height, header.height);
+    assertEquals(full.coefficientBytes(), header.coefficientBytes());
+
+    long total=0;
+
+    for (JpegCoefficients.Component c : full.components) {
+      total+=c.coefs.length * 2;
+    }
+
+    assertEquals(total, full.coefficientBytes());
+  }
+
+  @Test
+  public void damagedDataOnlyThrowsIOException() {
+    byte[] jpeg;
+
+    try {
+      jpeg=new JpegSamples(24, 16, JpegSamples.COLOR).restartInterval(2)
+                                                      .encode();
+    }
+    catch (IOException e) {
+      throw new AssertionError(e);
+    }
+
+    for (int length=0; length < jpeg.length; length++) {
+      checkDamaged(Arrays.copyOf(jpeg, length), "truncated to " + length);
+    }
+
+    for (int i=2; i < jpeg.length; i++) {
+      byte[] damaged=jpeg.clone();
+
+      damaged[i]^=0x5A;
+      checkDamaged(damaged, "byte " + i + " changed");
+
+      damaged[i]=(byte)0xFF;
+      checkDamaged(damaged, "byte " + i + " set to 0xFF");
+    }
+  }
+
+  @Test
+  public void segmentsCutShortOnlyThrowIOException() {
+    // each segment claims less than its contents need and ends
+    // the data, so reading its contents runs off the array
+    int[][] jpegs=
+        { { 0xFF, 0xD8, 0xFF, 0xC0, 0x00, 0x02 },
+            { 0xFF, 0xD8, 0xFF, 0xC0, 0x00, 0x08, 0x08, 0x00, 0x10, 0x00,
+                0x10, 0x03 },
+            { 0xFF, 0xD8, 0xFF, 0xDB, 0x00, 0x03, 0x00 },
+            { 0xFF, 0xD8, 0xFF, 0xC4, 0x00, 0x03, 0x00 },
+            { 0xFF, 0xD8, 0xFF, 0xDD, 0x00, 0x02 },
+            { 0xFF, 0xD8, 0xFF, 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00,
+                0x10, 0x01, 0x01, 0x11, 0x00, 0xFF, 0xDA, 0x00, 0x02 } };
+
+    for (int[] values : jpegs) {
+      byte[] jpeg=new byte[values.length];
+
+      for (int i=0; i < values.length; i++) {
+        jpeg[i]=(byte)values[i];
+      }
+
+      try {
+        JpegCoefficients.read(jpeg);
+        fail("Accepted " + Arrays.toString(values));
+      }
+      catch (IOException e) {
+        // expected
+      }
+      catch (RuntimeException e) {
+        throw new AssertionError(Arrays.toString(values) + ": " + e);
+      }
+    }
+  }
+
+  static void assertSameCoefficients(JpegCoefficients expected,
+                                     JpegCoefficients actual) {
+    assertEquals(expected.width, actual.width);
+    assertEquals(expected.height, actual.height);
+    assertEquals(expected.components.length, actual.components.length);
+
+    for (int i=0; i < expected.components.length; i++) {
+      JpegCoefficients.Component e=expected.components[i];
+      JpegCoefficients.Component a=actual.components[i];
+
+      assertEquals(e.id, a.id);
+      assertEquals(e.h, a.h);
+      assertEquals(e.v, a.v);
+      assertEquals(e.blocksWide, a.blocksWide);
+      assertEquals(e.blocksHigh, a.blocksHigh);
+      assertArrayEquals(expected.quantTables[e.quantTable],
+                        actual.quantTables[a.quantTable]);
+      assertArrayEquals("component " + i, e.coefs, a.coefs);
+    }
+  }
+
+  private void checkRoundTrip(JpegSamples sample) throws IOException {
+    JpegCoefficients original=JpegCoefficients.read(sample.encode());
+    JpegCoefficients copy=JpegCoefficients.read(original.write());
+
+    assertSameCoefficients(original, copy);
+  }
+
+  private void checkRestarts(JpegSamples sample, int interval)
+    throws IOException {
+    JpegCoefficients plain=JpegCoefficients.read(sample.encode());
+    byte[] jpeg=sample.restartInterval(interval).encode();
+
+    assertTrue("no restart markers", hasRestartMarker(jpeg));
+    assertSameCoefficients(plain, JpegCoefficients.read(jpeg));
+  }
+
+  private static boolean hasRestartMarker(byte[] jpeg) {
+    for (int i=0; i + 1 < jpeg.length; i++) {
+      int marker=jpeg[i + 1] & 0xFF;
+
+      if ((jpeg[i] & 0xFF) == 0xFF && marker >= 0xD0 && marker <= 0xD7) {
+        return(true);
+      }
+    }
+
+    return(false);
+  }
+
+  private static void checkDamaged(byte[] jpeg, String what) {
+    try {
+      JpegCoefficients.read(jpeg).write();
+    }
+    catch (IOException e) {
+      // expected, or the damage went unnoticed
+    }
+    catch (RuntimeException e) {
+      throw new AssertionError(what + ": " + e);
+    }
+  }
+}
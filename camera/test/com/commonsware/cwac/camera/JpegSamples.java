@@ -0,0 +1,159 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Builds JPEGs for the tests with the JDK's own encoder, so
+ * the input never comes from the code under test.
+ */
+class JpegSamples {
+  private static final String NATIVE_FORMAT="javax_imageio_jpeg_image_1.0";
+
+  static final int GRAY=BufferedImage.TYPE_BYTE_GRAY;
+  static final int COLOR=BufferedImage.TYPE_INT_RGB;
+
+  private final BufferedImage image;
+  private int lumaH=2;
+  private int lumaV=2;
+  private int restartInterval=0;
+  private boolean progressive=false;
+
+  /**
+   * @param type
+   *          GRAY or COLOR
+   */
+  JpegSamples(int width, int height, int type) {
+    image=new BufferedImage(width, height, type);
+
+    // gradients for the low frequencies, noise for the high
+    // ones, so most coefficients are non-zero
+
+    Random random=new Random(width * 31 + height);
+
+    for (int y=0; y < height; y++) {
+      for (int x=0; x < width; x++) {
+        int r=(x * 255 / width + random.nextInt(48)) & 0xFF;
+        int g=(y * 255 / height + random.nextInt(48)) & 0xFF;
+        int b=((x + y) * 4 + random.nextInt(48)) & 0xFF;
+
+        image.setRGB(x, y, (r << 16) | (g << 8) | b);
+      }
+    }
+  }
+
+  /**
+   * Sets the luma sampling factors of a COLOR JPEG: 2x2 for
+   * 4:2:0 (the default), 2x1 for 4:2:2, 1x1 for 4:4:4.
+   */
+  JpegSamples sampling(int lumaH, int lumaV) {
+    this.lumaH=lumaH;
+    this.lumaV=lumaV;
+
+    return(this);
+  }
+
+  JpegSamples restartInterval(int restartInterval) {
+    this.restartInterval=restartInterval;
+
+    return(this);
+  }
+
+  JpegSamples progressive() {
+    progressive=true;
+
+    return(this);
+  }
+
+  BufferedImage getImage() {
+    return(image);
+  }
+
+  byte[] encode() throws IOException {
+    ImageWriter writer=ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param=writer.getDefaultWriteParam();
+
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(0.9f);
+
+    if (progressive) {
+      param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+    }
+
+    IIOMetadata meta=
+        writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+    IIOMetadataNode root=(IIOMetadataNode)meta.getAsTree(NATIVE_FORMAT);
+    IIOMetadataNode markers=
+        (IIOMetadataNode)root.getElementsByTagName("markerSequence")
+                             .item(0);
+
+    if (image.getType() == COLOR) {
+      Node luma=
+          markers.getElementsByTagName("componentSpec").item(0);
+
+      ((IIOMetadataNode)luma).setAttribute("HsamplingFactor",
+                                           String.valueOf(lumaH));
+      ((IIOMetadataNode)luma).setAttribute("VsamplingFactor",
+                                           String.valueOf(lumaV));
+    }
+
+    if (restartInterval > 0) {
+      IIOMetadataNode dri=new IIOMetadataNode("dri");
+
+      dri.setAttribute("interval", String.valueOf(restartInterval));
+      markers.insertBefore(dri, markers.getFirstChild());
+    }
+
+    meta.setFromTree(NATIVE_FORMAT, root);
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    ImageOutputStream ios=ImageIO.createImageOutputStream(out);
+
+    try {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, meta), param);
+    }
+    finally {
+      ios.close();
+      writer.dispose();
+    }
+
+    return(out.toByteArray());
+  }
+
+  static BufferedImage decode(byte[] jpeg) throws IOException {
+    BufferedImage result=ImageIO.read(new ByteArrayInputStream(jpeg));
+
+    if (result == null) {
+      throw new IOException("Not decodable");
+    }
+
+    return(result);
+  }
+}
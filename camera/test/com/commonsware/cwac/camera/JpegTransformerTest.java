@@ -0,0 +1,306 @@
+/***
+  Copyright (c) 2015 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import org.junit.Test;
+import com.commonsware.cwac.camera.JpegTransformer.EdgePolicy;
+import com.commonsware.cwac.camera.JpegTransformer.Transform;
+
+public class JpegTransformerTest {
+  // the decoder's rounding can differ by a level or two once
+  // the blocks are transposed
+  private static final int TOLERANCE=3;
+
+  @Test
+  public void transformThenInverseIsIdentity() throws IOException {
+    byte[][] jpegs=
+        { new JpegSamples(64, 48, JpegSamples.COLOR).encode(),
+            new JpegSamples(64, 48, JpegSamples.COLOR).sampling(2, 1)
+                                                      .encode(),
+            new JpegSamples(64, 48, JpegSamples.COLOR).sampling(1, 1)
+                                                      .encode(),
+            new JpegSamples(64, 48, JpegSamples.GRAY).encode() };
+
+    for (byte[] jpeg : jpegs) {
+      JpegCoefficients original=JpegCoefficients.read(jpeg);
+
+      for (Transform t : Transform.values()) {
+        byte[] there=JpegTransformer.transform(jpeg, t, EdgePolicy.FAIL);
+        byte[] back=
+            JpegTransformer.transform(there, inverse(t), EdgePolicy.FAIL);
+
+        JpegCoefficientsTest.assertSameCoefficients(original,
+                                                    JpegCoefficients.read(back));
+      }
+    }
+  }
+
+  @Test
+  public void fourQuarterTurnsAreIdentity() throws IOException {
+    byte[] jpeg=new JpegSamples(64, 48, JpegSamples.COLOR).encode();
+    byte[] turned=jpeg;
+
+    for (int i=0; i < 4; i++) {
+      turned=
+          JpegTransformer.transform(turned, Transform.ROTATE_90,
+                                    EdgePolicy.FAIL);
+    }
+
+    JpegCoefficientsTest.assertSameCoefficients(JpegCoefficients.read(jpeg),
+                                                JpegCoefficients.read(turned));
+  }
+
+  @Test
+  public void pixelsMoveAsEachTransformSays() throws IOException {
+    JpegSamples sample=new JpegSamples(32, 24, JpegSamples.GRAY);
+    byte[] jpeg=sample.encode();
+    BufferedImage source=JpegSamples.decode(jpeg);
+
+    for (Transform t : Transform.values()) {
+      BufferedImage result=
+          JpegSamples.decode(JpegTransformer.transform(jpeg, t,
+                                                       EdgePolicy.FAIL));
+
+      assertEquals(t.toString(), t.transpose ? 24 : 32, result.getWidth());
+      assertEquals(t.toString(), t.transpose ? 32 : 24, result.getHeight());
+      assertRegion(t.toString(), source, result, t, 0, 0,
+                   result.getWidth(), result.getHeight(), 32, 24);
+    }
+  }
+
+  @Test
+  public void noneReturnsTheSameArray() throws IOException {
+    byte[] jpeg=new JpegSamples(16, 16, JpegSamples.GRAY).encode();
+
+    assertSame(jpeg,
+               JpegTransformer.transform(jpeg, Transform.NONE,
+                                         EdgePolicy.FAIL));
+  }
+
+  @Test
+  public void forRotationMatchesTheTransforms() {
+    assertSame(Transform.ROTATE_90, Transform.forRotation(90, false));
+    assertSame(Transform.ROTATE_90, Transform.forRotation(-270, false));
+    assertSame(Transform.ROTATE_180, Transform.forRotation(540, false));
+    assertSame(Transform.ROTATE_270, Transform.forRotation(270, false));
+    assertSame(Transform.FLIP_HORIZONTAL, Transform.forRotation(0, true));
+    assertSame(Transform.TRANSPOSE, Transform.forRotation(90, true));
+    assertSame(Transform.FLIP_VERTICAL, Transform.forRotation(180, true));
+    assertSame(Transform.TRANSVERSE, Transform.forRotation(270, true));
+  }
+
+  @Test
+  public void trimCropsPartialMcusOnMirroredEdges() throws IOException {
+    // 8x8 MCUs: 21 = 16 + 5 and 13 = 8 + 5
+
+    byte[] jpeg=new JpegSamples(21, 13, JpegSamples.GRAY).encode();
+    BufferedImage source=JpegSamples.decode(jpeg);
+
+    // ROTATE_90 mirrors rows: 13 -> 8, then transposes
+    BufferedImage rotated=
+        JpegSamples.decode(JpegTransformer.transform(jpeg,
+                                                     Transform.ROTATE_90,
+                                                     EdgePolicy.TRIM));
+
+    assertEquals(8, rotated.getWidth());
+    assertEquals(21, rotated.getHeight());
+    assertRegion("rotated", source, rotated, Transform.ROTATE_90, 0, 0, 8,
+                 21, 21, 8);
+
+    // FLIP_HORIZONTAL mirrors columns: 21 -> 16
+    BufferedImage flipped=
+        JpegSamples.decode(JpegTransformer.transform(jpeg,
+                                                     Transform.FLIP_HORIZONTAL,
+                                                     EdgePolicy.TRIM));
+
+    assertEquals(16, flipped.getWidth());
+    assertEquals(13, flipped.getHeight());
+    assertRegion("flipped", source, flipped, Transform.FLIP_HORIZONTAL, 0,
+                 0, 16, 13, 16, 13);
+
+    // a 4:2:0 MCU is 16x16: 37 -> 32, 29 -> 16
+    JpegCoefficients color=
+        JpegCoefficients.read(JpegTransformer.transform(new JpegSamples(37,
+                                                                        29,
+                                                                        JpegSamples.COLOR).encode(),
+                                                        Transform.ROTATE_180,
+                                                        EdgePolicy.TRIM));
+
+    assertEquals(32, color.width);
+    assertEquals(16, color.height);
+  }
+
+  @Test
+  public void keepLeavesPartialMcusInPlace() throws IOException {
+    byte[] jpeg=new JpegSamples(21, 13, JpegSamples.GRAY).encode();
+    BufferedImage source=JpegSamples.decode(jpeg);
+
+    // rows 0-7 are mirrored into columns 7-0; rows 8-12 are
+    // only transposed, into columns 8-12
+    BufferedImage rotated=
+        JpegSamples.decode(JpegTransformer.transform(jpeg,
+                                                     Transform.ROTATE_90,
+                                                     EdgePolicy.KEEP));
+
+    assertEquals(13, rotated.getWidth());
+    assertEquals(21, rotated.getHeight());
+    assertRegion("rotated whole MCUs", source, rotated,
+                 Transform.ROTATE_90, 0, 0, 8, 21, 21, 8);
+    assertRegion("rotated partial MCU", source, rotated,
+                 Transform.TRANSPOSE, 8, 0, 13, 21, 21, 13);
+
+    // columns 0-15 are mirrored, 16-20 stay put
+    BufferedImage flipped=
+        JpegSamples.decode(JpegTransformer.transform(jpeg,
+                                                     Transform.FLIP_HORIZONTAL,
+                                                     EdgePolicy.KEEP));
+
+    assertEquals(21, flipped.getWidth());
+    assertEquals(13, flipped.getHeight());
+    assertRegion("flipped whole MCUs", source, flipped,
+                 Transform.FLIP_HORIZONTAL, 0, 0, 16, 13, 16, 13);
+    assertRegion("flipped partial MCU", source, flipped, Transform.NONE,
+                 16, 0, 21, 13, 21, 13);
+  }
+
+  @Test
+  public void failRefusesPartialMcusOnMirroredEdges() throws IOException {
+    byte[] jpeg=new JpegSamples(21, 13, JpegSamples.GRAY).encode();
+
+    try {
+      JpegTransformer.transform(jpeg, Transform.ROTATE_90, EdgePolicy.FAIL);
+      fail("Imperfect transform was not refused");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    // TRANSPOSE mirrors nothing, so it is always perfect
+    JpegCoefficients transposed=
+        JpegCoefficients.read(JpegTransformer.transform(jpeg,
+                                                        Transform.TRANSPOSE,
+                                                        EdgePolicy.FAIL));
+
+    assertEquals(13, transposed.width);
+    assertEquals(21, transposed.height);
+  }
+
+  @Test
+  public void progressiveIsRejected() throws IOException {
+    byte[] jpeg=
+        new JpegSamples(32, 32, JpegSamples.COLOR).progressive().encode();
+
+    try {
+      JpegTransformer.transform(jpeg, Transform.ROTATE_90, EdgePolicy.KEEP);
+      fail("Progressive JPEG was transformed");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    try {
+      JpegTransformer.workingBytes(jpeg);
+      fail("Progressive JPEG was given a budget");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void workingBytesCoversBothGridsAndTheOutput() throws IOException {
+    byte[] jpeg=
+        new JpegSamples(64, 48, JpegSamples.COLOR).sampling(1, 1).encode();
+
+    // 4:4:4 is three full-size grids of 2-byte coefficients,
+    // twice as much as 4:2:0 would need
+    long grids=3L * 64 * 48 * 2;
+
+    assertEquals(2 * grids + 2L * jpeg.length,
+                 JpegTransformer.workingBytes(jpeg));
+  }
+
+  private static Transform inverse(Transform t) {
+    if (t == Transform.ROTATE_90) {
+      return(Transform.ROTATE_270);
+    }
+
+    if (t == Transform.ROTATE_270) {
+      return(Transform.ROTATE_90);
+    }
+
+    return(t);
+  }
+
+  // where result pixel (x, y) comes from in a source of the
+  // given size, spelled out per transform rather than derived
+  // from the Transform's own flags
+
+  private static int[] sourceOf(Transform t, int x, int y, int width,
+                                int height) {
+    switch (t) {
+      case FLIP_HORIZONTAL:
+        return(new int[] { width - 1 - x, y });
+
+      case FLIP_VERTICAL:
+        return(new int[] { x, height - 1 - y });
+
+      case TRANSPOSE:
+        return(new int[] { y, x });
+
+      case TRANSVERSE:
+        return(new int[] { width - 1 - y, height - 1 - x });
+
+      case ROTATE_90:
+        return(new int[] { y, height - 1 - x });
+
+      case ROTATE_180:
+        return(new int[] { width - 1 - x, height - 1 - y });
+
+      case ROTATE_270:
+        return(new int[] { width - 1 - y, x });
+
+      default:
+        return(new int[] { x, y });
+    }
+  }
+
+  // checks result pixels [left, right) x [top, bottom) against
+  // the source, as transformed within a source area of
+  // sourceWidth x sourceHeight at its top left
+
+  private static void assertRegion(String what, BufferedImage source,
+                                   BufferedImage result, Transform t,
+                                   int left, int top, int right,
+                                   int bottom, int sourceWidth,
+                                   int sourceHeight) {
+    for (int y=top; y < bottom; y++) {
+      for (int x=left; x < right; x++) {
+        int[] from=sourceOf(t, x, y, sourceWidth, sourceHeight);
+        int expected=source.getRaster().getSample(from[0], from[1], 0);
+        int actual=result.getRaster().getSample(x, y, 0);
+
+        assertTrue(what + " at " + x + "," + y + ": expected " + expected
+            + ", got " + actual, Math.abs(expected - actual) <= TOLERANCE);
+      }
+    }
+  }
+}
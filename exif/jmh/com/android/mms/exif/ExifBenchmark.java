@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Parse and write throughput of the Exif codec. Point {@code corpus} at a
+ * directory of camera JPEGs (for example {@code -Pcorpus=/path/to/dcim}); if
+ * it is left empty a single synthetic camera-sized JPEG is used instead.
+ * Each invocation works on the next image of the corpus in turn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExifBenchmark {
+    @Param("")
+    public String corpus;
+
+    private byte[][] mImages;
+    private ExifInterface[] mExif;
+    private ArrayList<List<ExifTag>> mRewriteTags;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<byte[]> images = new ArrayList<byte[]>();
+        if (corpus != null && corpus.length() > 0) {
+            File[] files = new File(corpus).listFiles();
+            if (files == null) {
+                throw new IOException("Not a directory: " + corpus);
+            }
+            Arrays.sort(files);
+            for (File f : files) {
+                String name = f.getName().toLowerCase();
+                if (f.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg"))) {
+                    images.add(readFully(f));
+                }
+            }
+            if (images.isEmpty()) {
+                throw new IOException("No JPEGs found in " + corpus);
+            }
+        } else {
+            images.add(synthesize(2048, 1536));
+        }
+
+        int count = images.size();
+        mImages = new byte[count][];
+        mExif = new ExifInterface[count];
+        mRewriteTags = new ArrayList<List<ExifTag>>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] jpeg = withOrientation(images.get(i));
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(jpeg);
+            mImages[i] = jpeg;
+            mExif[i] = exif;
+            // Rewriting the existing value keeps every run identical.
+            ExifTag orientation = exif.getTag(ExifInterface.TAG_ORIENTATION);
+            mRewriteTags.add(Collections.singletonList(orientation));
+        }
+    }
+
+    private int next() {
+        int index = mNext;
+        mNext = (index + 1) % mImages.length;
+        return index;
+    }
+
+    @Benchmark
+    public void readExifBytes(Blackhole bh) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(mImages[next()]);
+        bh.consume(exif.getAllTags());
+    }
+
+    @Benchmark
+    public void readExifBytesLazy(Blackhole bh) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setLazyDecoding(true);
+        exif.readExif(mImages[next()]);
+        bh.consume(exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+    }
+
+    @Benchmark
+    public void readExifStream(Blackhole bh) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(new ByteArrayInputStream(mImages[next()]));
+        bh.consume(exif.getAllTags());
+    }
+
+    @Benchmark
+    public long writeExif() throws IOException {
+        int index = next();
+        CountingOutputStream out = new CountingOutputStream();
+        mExif[index].writeExif(mImages[index], out);
+        return out.mCount;
+    }
+
+    @Benchmark
+    public boolean rewriteExif() throws IOException {
+        int index = next();
+        ByteBuffer buf = ByteBuffer.wrap(mImages[index]);
+        return mExif[index].rewriteExif(buf, mRewriteTags.get(index));
+    }
+
+    @Benchmark
+    public boolean modifier() throws IOException, ExifInvalidFormatException {
+        int index = next();
+        ByteBuffer buf = ByteBuffer.wrap(mImages[index]);
+        ExifModifier modifier = new ExifModifier(buf, mExif[index]);
+        for (ExifTag tag : mRewriteTags.get(index)) {
+            modifier.modifyTag(tag);
+        }
+        return modifier.commit();
+    }
+
+    /**
+     * Makes sure the image carries an orientation tag so that the rewrite
+     * benchmarks have something to modify in place.
+     */
+    private static byte[] withOrientation(byte[] jpeg) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        if (exif.getTag(ExifInterface.TAG_ORIENTATION) != null) {
+            return jpeg;
+        }
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.TOP_LEFT));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length + 1024);
+        exif.writeExif(jpeg, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] synthesize(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 7) ^ (y * 13) ^ (x * y));
+            }
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", jpeg);
+
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Synthetic"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_WIDTH, width));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_LENGTH, height));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.TOP_LEFT));
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, 0L, TimeZone.getDefault());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.size() + 1024);
+        exif.writeExif(jpeg.toByteArray(), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] readFully(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) f.length());
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads or rewrites the exif tags of many jpeg files on a bounded pool of
+ * worker threads.
+ * <p>
+ * An {@link ExifInterface} is not safe to share between threads, so every
+ * file is handled by its own instance. Tags passed to
+ * {@link #rewrite(List, Collection)} are copied for each file on the calling
+ * thread before any work is submitted, and are not modified.
+ *
+ * <pre>
+ * ExifBatch batch = new ExifBatch(4);
+ * ExifBatch.Report report = batch.rewrite(files, tags);
+ * for (ExifBatch.Result r : report.getResults()) {
+ *     if (r.getStatus() == ExifBatch.Result.STATUS_FAILED) {
+ *         Log.w(TAG, r.getFile() + ": " + r.getError());
+ *     }
+ * }
+ * </pre>
+ */
+public class ExifBatch {
+    private static final String TEMP_SUFFIX = ".exif.tmp";
+
+    private final int mThreadCount;
+
+    /**
+     * @param threadCount the maximum number of files handled at once.
+     */
+    public ExifBatch(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Reads the exif tags of each file.
+     *
+     * @param files the jpeg files to read.
+     * @return a report with one {@link Result} per file, in the same order.
+     * @throws InterruptedException if interrupted while waiting for the
+     *             workers; files not yet handled are left untouched.
+     */
+    public Report read(List<File> files) throws InterruptedException {
+        List<Callable<Result>> jobs = new ArrayList<Callable<Result>>(files.size());
+        for (final File file : files) {
+            jobs.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return readFile(file);
+                }
+            });
+        }
+        return run(files, jobs);
+    }
+
+    /**
+     * Writes the given tags into each file. The tags are first overwritten in
+     * place with {@link ExifInterface#rewriteExif(String, Collection)}; only
+     * if that is not possible, because a tag is missing or changes size, is
+     * the file rewritten through a temporary file in the same directory that
+     * then replaces the original.
+     *
+     * @param files the jpeg files to rewrite.
+     * @param tags the tags to set in every file.
+     * @return a report with one {@link Result} per file, in the same order.
+     * @throws InterruptedException if interrupted while waiting for the
+     *             workers; files not yet handled are left untouched.
+     */
+    public Report rewrite(List<File> files, Collection<ExifTag> tags)
+            throws InterruptedException {
+        List<Callable<Result>> jobs = new ArrayList<Callable<Result>>(files.size());
+        for (final File file : files) {
+            final List<ExifTag> copies = new ArrayList<ExifTag>(tags.size());
+            for (ExifTag t : tags) {
+                copies.add(new ExifTag(t));
+            }
+            jobs.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return rewriteFile(file, copies);
+                }
+            });
+        }
+        return run(files, jobs);
+    }
+
+    private Report run(List<File> files, List<Callable<Result>> jobs)
+            throws InterruptedException {
+        ArrayList<Result> results = new ArrayList<Result>(jobs.size());
+        long start = System.nanoTime();
+        if (!jobs.isEmpty()) {
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.min(mThreadCount, jobs.size()));
+            try {
+                List<Future<Result>> futures = pool.invokeAll(jobs);
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        results.add(futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        // Workers catch their own exceptions, only an Error gets here.
+                        results.add(new Result(files.get(i), Result.STATUS_FAILED, null,
+                                e.getCause(), 0, 0));
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        return new Report(results, System.nanoTime() - start);
+    }
+
+    private static Result readFile(File file) {
+        long start = System.nanoTime();
+        long length = file.length();
+        try {
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(file.getPath());
+            return new Result(file, Result.STATUS_READ, exif.getAllTags(), null, length,
+                    System.nanoTime() - start);
+        } catch (Exception e) {
+            return new Result(file, Result.STATUS_FAILED, null, e, length,
+                    System.nanoTime() - start);
+        }
+    }
+
+    private static Result rewriteFile(File file, List<ExifTag> tags) {
+        long start = System.nanoTime();
+        long length = file.length();
+        try {
+            // rewriteExif opens the file read-write, which would create it.
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            ExifInterface exif = new ExifInterface();
+            if (exif.rewriteExif(file.getPath(), tags)) {
+                return new Result(file, Result.STATUS_REWRITTEN_IN_PLACE, null, null, length,
+                        System.nanoTime() - start);
+            }
+            exif.readExif(file.getPath());
+            exif.setTags(tags);
+            File temp = new File(file.getPath() + TEMP_SUFFIX);
+            try {
+                exif.writeExif(file.getPath(), temp.getPath());
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            } finally {
+                if (temp.exists()) {
+                    temp.delete();
+                }
+            }
+            return new Result(file, Result.STATUS_REWRITTEN, null, null, length,
+                    System.nanoTime() - start);
+        } catch (Exception e) {
+            return new Result(file, Result.STATUS_FAILED, null, e, length,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The outcome for a single file.
+     */
+    public static class Result {
+        /** The file could not be read or written, see {@link #getError()}. */
+        public static final int STATUS_FAILED = 0;
+        /** The tags were read, see {@link #getTags()}. */
+        public static final int STATUS_READ = 1;
+        /** The tag values were overwritten inside the existing exif header. */
+        public static final int STATUS_REWRITTEN_IN_PLACE = 2;
+        /** The file was rewritten with a new exif header. */
+        public static final int STATUS_REWRITTEN = 3;
+
+        private final File mFile;
+        private final int mStatus;
+        private final List<ExifTag> mTags;
+        private final Throwable mError;
+        private final long mByteCount;
+        private final long mElapsedNanos;
+
+        Result(File file, int status, List<ExifTag> tags, Throwable error, long byteCount,
+                long elapsedNanos) {
+            mFile = file;
+            mStatus = status;
+            mTags = tags;
+            mError = error;
+            mByteCount = byteCount;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * Returns the tags read from the file, or null if this was not a read
+         * or the file had no exif tags.
+         */
+        public List<ExifTag> getTags() {
+            return mTags;
+        }
+
+        /**
+         * Returns the reason for {@link #STATUS_FAILED}, or null.
+         */
+        public Throwable getError() {
+            return mError;
+        }
+
+        /**
+         * Returns the size of the file before it was handled.
+         */
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+    }
+
+    /**
+     * The per-file results of a batch together with aggregate throughput.
+     */
+    public static class Report {
+        private final List<Result> mResults;
+        private final long mElapsedNanos;
+        private final int mFailureCount;
+        private final long mByteCount;
+
+        Report(List<Result> results, long elapsedNanos) {
+            mResults = Collections.unmodifiableList(results);
+            mElapsedNanos = elapsedNanos;
+            int failures = 0;
+            long bytes = 0;
+            for (Result r : results) {
+                if (r.getStatus() == Result.STATUS_FAILED) {
+                    failures++;
+                }
+                bytes += r.getByteCount();
+            }
+            mFailureCount = failures;
+            mByteCount = bytes;
+        }
+
+        /**
+         * Returns one result per file, in the order the files were given.
+         */
+        public List<Result> getResults() {
+            return mResults;
+        }
+
+        public int getFileCount() {
+            return mResults.size();
+        }
+
+        public int getFailureCount() {
+            return mFailureCount;
+        }
+
+        /**
+         * Returns the total size of all files in the batch.
+         */
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        /**
+         * Returns the wall-clock time of the whole batch.
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public double getFilesPerSecond() {
+            return mElapsedNanos == 0 ? 0 : mResults.size() * 1e9 / mElapsedNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return mElapsedNanos == 0 ? 0 : mByteCount * 1e9 / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d files (%d failed), %d bytes in %.1f ms, %.1f files/s",
+                    mResults.size(), mFailureCount, mByteCount, mElapsedNanos / 1e6,
+                    getFilesPerSecond());
+        }
+    }
+}
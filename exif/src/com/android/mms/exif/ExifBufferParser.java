@@ -0,0 +1,558 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * This class provides a random-access EXIF parsing API for a JPEG image that
+ * is already held in memory. Unlike {@link ExifParser}, which has to follow
+ * the forward-only order of an InputStream, this parser reads IFDs and tag
+ * values directly at their offsets, so it needs no pending-event map, no
+ * stream wrappers and no skipping.
+ * <p>
+ * The IFDs are located when the parser is created. Tags are then read by IFD
+ * and index:
+ *
+ * <pre>
+ * ExifBufferParser parser = ExifBufferParser.parse(buffer, iRef);
+ * for (int i = 0, n = parser.getTagCount(IfdId.TYPE_IFD_0); i &lt; n; i++) {
+ *     ExifTag tag = parser.readTag(IfdId.TYPE_IFD_0, i);
+ *     if (tag != null) {
+ *         processTag(tag);
+ *     }
+ * }
+ * </pre>
+ *
+ * The position, limit and byte order of the given buffer are never changed.
+ */
+class ExifBufferParser {
+    private static final String TAG = "ExifBufferParser";
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final short TAG_EXIF_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+
+    private final ByteBuffer mBuffer;
+    private final ExifInterface mInterface;
+    private final int mBase;
+    private final boolean mLazyDecoding;
+    private final int[] mIfdOffsets = new int[IfdId.TYPE_IFD_COUNT];
+    private final int[] mIfdOrder = new int[IfdId.TYPE_IFD_COUNT];
+    private int mIfdCount = 0;
+    private boolean mContainExifData = false;
+    private int mTiffStart;
+    private int mTiffLength;
+    private int mApp1End;
+
+    private ExifBufferParser(ByteBuffer buffer, ExifInterface iRef)
+            throws ExifInvalidFormatException {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Null argument buffer to ExifBufferParser");
+        }
+        mInterface = iRef;
+        mLazyDecoding = iRef.isLazyDecoding();
+        mBuffer = buffer.duplicate();
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mBase = buffer.position();
+        for (int i = 0; i < mIfdOffsets.length; i++) {
+            mIfdOffsets[i] = -1;
+        }
+        mContainExifData = seekTiffData();
+        if (!mContainExifData) {
+            return;
+        }
+
+        parseTiffHeader();
+        long offset = getUnsignedInt(4);
+        if (offset > Integer.MAX_VALUE) {
+            throw new ExifInvalidFormatException("Invalid offset " + offset);
+        }
+        registerIfd(IfdId.TYPE_IFD_0, offset);
+        // IFDs registered while scanning are appended to mIfdOrder, so this
+        // visits every reachable IFD once.
+        for (int i = 0; i < mIfdCount; i++) {
+            scanOffsetTags(mIfdOrder[i]);
+        }
+    }
+
+    /**
+     * Parses the JPEG image that starts at the current position of the given
+     * ByteBuffer.
+     *
+     * @exception ExifInvalidFormatException
+     */
+    protected static ExifBufferParser parse(ByteBuffer buffer, ExifInterface iRef)
+            throws ExifInvalidFormatException {
+        return new ExifBufferParser(buffer, iRef);
+    }
+
+    /**
+     * Returns the number of bytes at the start of the given JPEG file that
+     * have to be read to parse its Exif data. That is everything up to the end
+     * of the Exif APP1 segment or, if there is none, up to the marker that
+     * ends the search. Only the segment headers are read, with positional
+     * reads that do not change the position of the channel.
+     *
+     * @exception IOException
+     */
+    protected static int getExifRegionLength(FileChannel channel) throws IOException {
+        long size = Math.min(channel.size(), Integer.MAX_VALUE);
+        ByteBuffer header = ByteBuffer.allocate(10);
+        if (readFully(channel, header, 0) < 2 || header.getShort(0) != JpegHeader.SOI) {
+            return (int) Math.min(size, 2);
+        }
+
+        long pos = 2;
+        while (pos + 4 <= size) {
+            int n = readFully(channel, header, pos);
+            short marker = header.getShort(0);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                break;
+            }
+            int length = header.getShort(2) & 0xffff;
+            if (length < 2) {
+                break;
+            }
+            if (marker == JpegHeader.APP1 && length >= 8 && n == header.capacity()
+                    && header.getInt(4) == ExifParser.EXIF_HEADER
+                    && header.getShort(8) == ExifParser.EXIF_HEADER_TAIL) {
+                return (int) Math.min(size, pos + 2 + length);
+            }
+            pos += 2 + length;
+        }
+        return (int) Math.min(size, pos + 4);
+    }
+
+    protected static int readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                break;
+            }
+        }
+        return buf.position();
+    }
+
+    /**
+     * Returns true if the image contains an Exif APP1 segment.
+     */
+    protected boolean containsExifData() {
+        return mContainExifData;
+    }
+
+    /**
+     * Gets the byte order of the TIFF data.
+     */
+    protected ByteOrder getByteOrder() {
+        return mBuffer.order();
+    }
+
+    /**
+     * Gets the position of the TIFF header relative to the SOI marker.
+     */
+    protected int getTiffStartPosition() {
+        return mTiffStart - mBase;
+    }
+
+    /**
+     * Gets the position of the end of the Exif APP1 segment relative to the
+     * SOI marker.
+     */
+    protected int getOffsetToExifEndFromSOF() {
+        return mApp1End - mBase;
+    }
+
+    /**
+     * Returns true if the given IFD was found in the image.
+     *
+     * @see IfdId#TYPE_IFD_0
+     * @see IfdId#TYPE_IFD_1
+     * @see IfdId#TYPE_IFD_EXIF
+     * @see IfdId#TYPE_IFD_GPS
+     * @see IfdId#TYPE_IFD_INTEROPERABILITY
+     */
+    protected boolean hasIfd(int ifd) {
+        return mIfdOffsets[ifd] >= 0;
+    }
+
+    /**
+     * Gets the number of tag entries in the given IFD, or 0 if the IFD was not
+     * found.
+     */
+    protected int getTagCount(int ifd) {
+        int offset = mIfdOffsets[ifd];
+        if (offset < 0) {
+            return 0;
+        }
+        return getUnsignedShort(offset);
+    }
+
+    /**
+     * Gets the ID of the tag stored in the given entry of an IFD.
+     */
+    protected short getTagId(int ifd, int index) {
+        return getShort(getEntryOffset(ifd, index));
+    }
+
+    /**
+     * Gets the data type stored in the given entry of an IFD. The type is not
+     * validated.
+     */
+    protected short getDataType(int ifd, int index) {
+        return getShort(getEntryOffset(ifd, index) + 2);
+    }
+
+    /**
+     * Gets the component count stored in the given entry of an IFD.
+     */
+    protected long getComponentCount(int ifd, int index) {
+        return getUnsignedInt(getEntryOffset(ifd, index) + 4);
+    }
+
+    /**
+     * Gets the offset of the value of the given entry, relative to the TIFF
+     * header. Values of 4 bytes or less are stored in the entry itself.
+     * Returns -1 if the type is invalid or the value lies outside the Exif
+     * data.
+     */
+    protected int getValueOffset(int ifd, int index) {
+        int entry = getEntryOffset(ifd, index);
+        short type = getShort(entry + 2);
+        if (!ExifTag.isValidType(type)) {
+            return -1;
+        }
+        long dataSize = getUnsignedInt(entry + 4) * ExifTag.getElementSize(type);
+        if (dataSize <= 4) {
+            return entry + 8;
+        }
+        long offset = getUnsignedInt(entry + 8);
+        if (offset + dataSize > mTiffLength) {
+            return -1;
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Reads the given entry of an IFD together with its value. Returns null if
+     * the entry is invalid.
+     */
+    protected ExifTag readTag(int ifd, int index) {
+        int entry = getEntryOffset(ifd, index);
+        short tagId = getShort(entry);
+        short dataFormat = getShort(entry + 2);
+        long numOfComp = getUnsignedInt(entry + 4);
+        // Some invalid image file contains invalid data type. Ignore those tags
+        if (!ExifTag.isValidType(dataFormat)) {
+            Log.w(TAG, String.format("Tag %04x: Invalid data type %d", tagId, dataFormat));
+            return null;
+        }
+        if (numOfComp > Integer.MAX_VALUE) {
+            Log.w(TAG, String.format("Tag %04x: Invalid number of component %d", tagId,
+                    numOfComp));
+            return null;
+        }
+        ExifTag tag = new ExifTag(tagId, dataFormat, (int) numOfComp, ifd,
+                ((int) numOfComp) != ExifTag.SIZE_UNDEFINED);
+        long dataSize = numOfComp * ExifTag.getElementSize(dataFormat);
+        int valueOffset = entry + 8;
+        if (dataSize > 4) {
+            long offset = getUnsignedInt(entry + 8);
+            if (offset + dataSize > mTiffLength) {
+                if (ExifTag.getElementSize(dataFormat) == 1 && offset < mTiffLength) {
+                    // Tag value runs past the end of APP1, shorten count
+                    int size = mTiffLength - (int) offset;
+                    Log.w(TAG, "Invalid size of tag: \n" + tag.toString()
+                            + " setting count to: " + size);
+                    tag.forceSetComponentCount(size);
+                } else {
+                    Log.w(TAG, "Failed to read data at: " + offset + " for tag: \n"
+                            + tag.toString() + ", the file may be broken.");
+                    return null;
+                }
+            }
+            valueOffset = (int) offset;
+        }
+        tag.setOffset(valueOffset);
+        if (mLazyDecoding) {
+            tag.setValueSource(mBuffer, mTiffStart + valueOffset);
+        } else {
+            readValue(tag, mBuffer, mTiffStart + valueOffset);
+        }
+        return tag;
+    }
+
+    /**
+     * Decodes the value of the given tag, which starts at the given absolute
+     * position of the buffer, in the byte order of the buffer.
+     */
+    protected static void readValue(ExifTag tag, ByteBuffer buffer, int position) {
+        if (tag.getDataSize() <= 4) {
+            boolean defCount = tag.hasDefinedCount();
+            // Set defined count to 0 so we can add \0 to non-terminated strings
+            tag.setHasDefinedCount(false);
+            readFullTagValue(tag, buffer, position);
+            tag.setHasDefinedCount(defCount);
+        } else {
+            readFullTagValue(tag, buffer, position);
+        }
+    }
+
+    /**
+     * Reads length bytes at the given offset relative to the TIFF header.
+     * Returns null if the range lies outside the Exif data.
+     */
+    protected byte[] readBytes(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > mTiffLength) {
+            return null;
+        }
+        byte buf[] = new byte[(int) length];
+        mBuffer.position(mTiffStart + (int) offset);
+        mBuffer.get(buf);
+        return buf;
+    }
+
+    /**
+     * Returns true if the given tag is defined for the given IFD.
+     */
+    protected boolean checkAllowed(int ifd, int tagId) {
+        int info = mInterface.getTagInfo().get(tagId);
+        if (info == ExifInterface.DEFINITION_NULL) {
+            return false;
+        }
+        return ExifInterface.isIfdAllowed(info, ifd);
+    }
+
+    private static void readFullTagValue(ExifTag tag, ByteBuffer buffer, int pos) {
+        int count = tag.getComponentCount();
+        switch (tag.getDataType()) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED:
+                if (buffer.hasArray()) {
+                    tag.setValue(buffer.array(), buffer.arrayOffset() + pos, count);
+                } else {
+                    tag.setValue(getBytes(buffer, pos, count));
+                }
+                break;
+            case ExifTag.TYPE_ASCII:
+                if (count == 0) {
+                    tag.setValue("");
+                } else if (buffer.hasArray()) {
+                    tag.setValue(new String(buffer.array(), buffer.arrayOffset() + pos,
+                            count, US_ASCII));
+                } else {
+                    tag.setValue(new String(getBytes(buffer, pos, count), US_ASCII));
+                }
+                break;
+            case ExifTag.TYPE_UNSIGNED_LONG: {
+                long value[] = new long[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = buffer.getInt(pos + i * 4) & 0xffffffffL;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
+                Rational value[] = new Rational[count];
+                for (int i = 0; i < count; i++) {
+                    long nomi = buffer.getInt(pos + i * 8) & 0xffffffffL;
+                    long denomi = buffer.getInt(pos + i * 8 + 4) & 0xffffffffL;
+                    value[i] = new Rational(nomi, denomi);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_SHORT: {
+                int value[] = new int[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = buffer.getShort(pos + i * 2) & 0xffff;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_LONG: {
+                int value[] = new int[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = buffer.getInt(pos + i * 4);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_RATIONAL: {
+                Rational value[] = new Rational[count];
+                for (int i = 0; i < count; i++) {
+                    int nomi = buffer.getInt(pos + i * 8);
+                    int denomi = buffer.getInt(pos + i * 8 + 4);
+                    value[i] = new Rational(nomi, denomi);
+                }
+                tag.setValue(value);
+            }
+                break;
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int pos, int count) {
+        byte buf[] = new byte[count];
+        for (int i = 0; i < count; i++) {
+            buf[i] = buffer.get(pos + i);
+        }
+        return buf;
+    }
+
+    private boolean seekTiffData() throws ExifInvalidFormatException {
+        int limit = mBuffer.limit();
+        if (limit - mBase < 2 || mBuffer.getShort(mBase) != JpegHeader.SOI) {
+            throw new ExifInvalidFormatException("Invalid JPEG format");
+        }
+
+        int pos = mBase + 2;
+        while (pos + 4 <= limit) {
+            short marker = mBuffer.getShort(pos);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                return false;
+            }
+            int length = mBuffer.getShort(pos + 2) & 0xffff;
+            if (length < 2) {
+                break;
+            }
+            // Some invalid formatted image contains multiple APP1,
+            // try to find the one with Exif data.
+            if (marker == JpegHeader.APP1 && length >= 8 && pos + 10 <= limit
+                    && mBuffer.getInt(pos + 4) == ExifParser.EXIF_HEADER
+                    && mBuffer.getShort(pos + 8) == ExifParser.EXIF_HEADER_TAIL) {
+                mTiffStart = pos + 10;
+                mApp1End = pos + 2 + length;
+                mTiffLength = Math.min(mApp1End, limit) - mTiffStart;
+                return true;
+            }
+            pos += 2 + length;
+        }
+        Log.w(TAG, "Invalid JPEG format.");
+        return false;
+    }
+
+    private void parseTiffHeader() throws ExifInvalidFormatException {
+        if (mTiffLength < ExifParser.DEFAULT_IFD0_OFFSET) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        short byteOrder = mBuffer.getShort(mTiffStart);
+        if (ExifParser.LITTLE_ENDIAN_TAG == byteOrder) {
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (ExifParser.BIG_ENDIAN_TAG == byteOrder) {
+            mBuffer.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+
+        if (getShort(2) != ExifParser.TIFF_HEADER_TAIL) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+    }
+
+    /**
+     * Registers the IFDs pointed to by the offset tags of the given IFD.
+     */
+    private void scanOffsetTags(int ifd) {
+        int numOfTags = getTagCount(ifd);
+        for (int i = 0; i < numOfTags; i++) {
+            int entry = getEntryOffset(ifd, i);
+            short tid = getShort(entry);
+            if (tid == TAG_EXIF_IFD && checkAllowed(ifd, ExifInterface.TAG_EXIF_IFD)) {
+                registerIfd(IfdId.TYPE_IFD_EXIF, getOffsetTagValue(entry));
+            } else if (tid == TAG_GPS_IFD && checkAllowed(ifd, ExifInterface.TAG_GPS_IFD)) {
+                registerIfd(IfdId.TYPE_IFD_GPS, getOffsetTagValue(entry));
+            } else if (tid == TAG_INTEROPERABILITY_IFD
+                    && checkAllowed(ifd, ExifInterface.TAG_INTEROPERABILITY_IFD)) {
+                registerIfd(IfdId.TYPE_IFD_INTEROPERABILITY, getOffsetTagValue(entry));
+            }
+        }
+        // There is a link to ifd1 at the end of ifd0
+        if (ifd == IfdId.TYPE_IFD_0) {
+            long ifdOffset = getUnsignedInt(getEntryOffset(ifd, numOfTags));
+            if (ifdOffset != 0) {
+                registerIfd(IfdId.TYPE_IFD_1, ifdOffset);
+            }
+        }
+    }
+
+    private long getOffsetTagValue(int entry) {
+        short type = getShort(entry + 2);
+        if (getUnsignedInt(entry + 4) == 0) {
+            return -1;
+        }
+        if (type == ExifTag.TYPE_UNSIGNED_LONG || type == ExifTag.TYPE_LONG) {
+            return getUnsignedInt(entry + 8);
+        } else if (type == ExifTag.TYPE_UNSIGNED_SHORT) {
+            return getUnsignedShort(entry + 8);
+        }
+        Log.w(TAG, "Invalid type of offset tag: " + type);
+        return -1;
+    }
+
+    private void registerIfd(int ifdType, long offset) {
+        if (mIfdOffsets[ifdType] >= 0 || offset < 0) {
+            return;
+        }
+        if (offset + ExifParser.OFFSET_SIZE > mTiffLength) {
+            Log.w(TAG, "Invalid offset of IFD " + ifdType + ": " + offset);
+            return;
+        }
+        int numOfTags = getUnsignedShort((int) offset);
+        long endOfTags = offset + ExifParser.OFFSET_SIZE + numOfTags * ExifParser.TAG_SIZE;
+        // Only the link at the end of ifd0 is read, other IFDs may omit it
+        if (ifdType == IfdId.TYPE_IFD_0) {
+            endOfTags += 4;
+        }
+        if (endOfTags > mTiffLength) {
+            Log.w(TAG, "Invalid size of IFD " + ifdType);
+            return;
+        }
+        for (int i = 0; i < mIfdCount; i++) {
+            if (mIfdOffsets[mIfdOrder[i]] == offset) {
+                Log.w(TAG, "Ifd " + ifdType + " overlaps Ifd " + mIfdOrder[i]);
+                return;
+            }
+        }
+        mIfdOffsets[ifdType] = (int) offset;
+        mIfdOrder[mIfdCount++] = ifdType;
+    }
+
+    private int getEntryOffset(int ifd, int index) {
+        return mIfdOffsets[ifd] + ExifParser.OFFSET_SIZE + index * ExifParser.TAG_SIZE;
+    }
+
+    private short getShort(int offset) {
+        return mBuffer.getShort(mTiffStart + offset);
+    }
+
+    private int getUnsignedShort(int offset) {
+        return mBuffer.getShort(mTiffStart + offset) & 0xffff;
+    }
+
+    private long getUnsignedInt(int offset) {
+        return mBuffer.getInt(mTiffStart + offset) & 0xffffffffL;
+    }
+}
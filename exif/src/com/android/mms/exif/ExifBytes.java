@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+/**
+ * Helpers shared by the classes that work on the raw bytes of a JPEG's Exif
+ * header instead of parsing it: locating the APP1 segment, checking the TIFF
+ * header and reading or writing values in either byte order.
+ */
+final class ExifBytes {
+    static final int EXIF_HEADER_SIZE = 6; // "Exif\0\0"
+    static final int TIFF_HEADER_SIZE = 8;
+
+    private ExifBytes() {
+    }
+
+    /**
+     * Returns the position of the marker of the Exif APP1 segment of the JPEG
+     * stored in the given range of the array, or -1 if the image has none
+     * before its first frame or is not a valid JPEG. The whole segment is
+     * known to lie within the range.
+     */
+    static int findExifSegment(byte[] jpeg, int offset, int end) {
+        if (offset < 0 || end > jpeg.length || end - offset < 4
+                || readShort(jpeg, offset, false) != JpegHeader.SOI) {
+            return -1;
+        }
+
+        int pos = offset + 2;
+        while (pos + 4 <= end) {
+            short marker = readShort(jpeg, pos, false);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                return -1;
+            }
+            int segmentLength = readShort(jpeg, pos + 2, false) & 0xffff;
+            if (segmentLength < 2) {
+                return -1;
+            }
+            int segmentEnd = pos + 2 + segmentLength;
+            if (marker == JpegHeader.APP1
+                    && segmentLength >= 2 + EXIF_HEADER_SIZE + TIFF_HEADER_SIZE
+                    && segmentEnd <= end
+                    && readInt(jpeg, pos + 4, false) == ExifParser.EXIF_HEADER
+                    && readShort(jpeg, pos + 8, false) == ExifParser.EXIF_HEADER_TAIL) {
+                return pos;
+            }
+            pos = segmentEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if a TIFF header in either byte order starts at the given
+     * position.
+     */
+    static boolean isTiffHeader(byte[] buf, int tiff) {
+        short byteOrder = readShort(buf, tiff, false);
+        if (byteOrder != ExifParser.LITTLE_ENDIAN_TAG && byteOrder != ExifParser.BIG_ENDIAN_TAG) {
+            return false;
+        }
+        return readShort(buf, tiff + 2, isLittleEndian(buf, tiff)) == ExifParser.TIFF_HEADER_TAIL;
+    }
+
+    /**
+     * Returns true if the TIFF header at the given position is little endian.
+     */
+    static boolean isLittleEndian(byte[] buf, int tiff) {
+        return readShort(buf, tiff, false) == ExifParser.LITTLE_ENDIAN_TAG;
+    }
+
+    static short readShort(byte[] buf, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return (short) ((buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8);
+        }
+        return (short) ((buf[pos] & 0xff) << 8 | (buf[pos + 1] & 0xff));
+    }
+
+    static int readInt(byte[] buf, int pos, boolean littleEndian) {
+        if (littleEndian) {
+            return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8
+                    | (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24;
+        }
+        return (buf[pos] & 0xff) << 24 | (buf[pos + 1] & 0xff) << 16
+                | (buf[pos + 2] & 0xff) << 8 | (buf[pos + 3] & 0xff);
+    }
+
+    static void writeShort(byte[] buf, int pos, short value, boolean littleEndian) {
+        if (littleEndian) {
+            buf[pos] = (byte) value;
+            buf[pos + 1] = (byte) (value >> 8);
+        } else {
+            buf[pos] = (byte) (value >> 8);
+            buf[pos + 1] = (byte) value;
+        }
+    }
+
+    static void writeInt(byte[] buf, int pos, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(buf, pos, (short) value, true);
+            writeShort(buf, pos + 2, (short) (value >> 16), true);
+        } else {
+            writeShort(buf, pos, (short) (value >> 16), false);
+            writeShort(buf, pos + 2, (short) value, false);
+        }
+    }
+}
@@ -16,8 +16,6 @@
 
 package com.android.mms.exif;
 
-import android.util.Log;
-
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -256,11 +254,8 @@ class ExifData {
         ArrayList<ExifTag> ret = new ArrayList<ExifTag>();
         for (IfdData d : mIfdDatas) {
             if (d != null) {
-                ExifTag[] tags = d.getAllTags();
-                if (tags != null) {
-                    for (ExifTag t : tags) {
-                        ret.add(t);
-                    }
+                for (int i = 0, n = d.getTagCount(); i < n; i++) {
+                    ret.add(d.getTagAt(i));
                 }
             }
         }
@@ -279,13 +274,9 @@ class ExifData {
         if (d == null) {
             return null;
         }
-        ExifTag[] tags = d.getAllTags();
-        if (tags == null) {
-            return null;
-        }
-        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(tags.length);
-        for (ExifTag t : tags) {
-            ret.add(t);
+        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(d.getTagCount());
+        for (int i = 0, n = d.getTagCount(); i < n; i++) {
+            ret.add(d.getTagAt(i));
         }
         if (ret.size() == 0) {
             return null;
@@ -16,15 +16,9 @@
 
 package com.android.mms.exif;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.SparseIntArray;
-
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -34,6 +28,8 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -708,10 +704,35 @@ public class ExifInterface {
 
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
+    private boolean mLazyDecoding = false;
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
     public ExifInterface() {
-        mGPSDateStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Sets whether tag values are decoded only when they are first accessed.
+     * When enabled, {@link #readExif(byte[])}, {@link #readExif(ByteBuffer)},
+     * {@link #readExif(String)} and {@link #readExif(FileDescriptor)} only
+     * record where each value is stored, so values that are never requested
+     * (such as large maker notes) are never copied. The tags then refer to the
+     * source of the image until their values are read, so a byte array or
+     * ByteBuffer passed to readExif must not be modified while the tags are in
+     * use. Reading from an InputStream always decodes all values.
+     *
+     * @param lazy true to decode tag values on first access.
+     */
+    public void setLazyDecoding(boolean lazy) {
+        mLazyDecoding = lazy;
+    }
+
+    /**
+     * Returns true if tag values are decoded on first access.
+     *
+     * @see #setLazyDecoding(boolean)
+     */
+    public boolean isLazyDecoding() {
+        return mLazyDecoding;
     }
 
     /**
@@ -722,7 +743,31 @@ public class ExifInterface {
      * @throws IOException
      */
     public void readExif(byte[] jpeg) throws IOException {
-        readExif(new ByteArrayInputStream(jpeg));
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        readExif(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Reads the exif tags from a ByteBuffer, clearing this ExifInterface
+     * object's existing exif tags. The jpeg image must start at the current
+     * position of the buffer. The position of the buffer is not changed.
+     *
+     * @param jpeg a ByteBuffer containing a jpeg compressed image.
+     * @throws IOException
+     */
+    public void readExif(ByteBuffer jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ExifData d = null;
+        try {
+            d = new ExifReader(this).read(jpeg);
+        } catch (ExifInvalidFormatException e) {
+            throw new IOException("Invalid exif format : " + e);
+        }
+        mData = d;
     }
 
     /**
@@ -747,7 +792,8 @@ public class ExifInterface {
 
     /**
      * Reads the exif tags from a file, clearing this ExifInterface object's
-     * existing exif tags.
+     * existing exif tags. Only the beginning of the file up to the end of the
+     * exif header is mapped into memory and parsed in place.
      *
      * @param inFileName a string representing the filepath to jpeg file.
      * @throws FileNotFoundException
@@ -757,15 +803,38 @@ public class ExifInterface {
         if (inFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        InputStream is = null;
+        RandomAccessFile file = null;
         try {
-            is = new BufferedInputStream(new FileInputStream(inFileName));
-            readExif(is);
+            file = new RandomAccessFile(inFileName, "r");
+            FileChannel channel = file.getChannel();
+            int exifSize = ExifBufferParser.getExifRegionLength(channel);
+            readExif(channel.map(MapMode.READ_ONLY, 0, exifSize));
         } catch (IOException e) {
-            closeSilently(is);
+            closeSilently(file);
             throw e;
         }
-        is.close();
+        file.close();
+    }
+
+    /**
+     * Reads the exif tags from an open file, clearing this ExifInterface
+     * object's existing exif tags. Only the beginning of the file up to the
+     * end of the exif header is read, using positional reads. The file offset
+     * of the descriptor is not changed and the descriptor is not closed.
+     *
+     * @param fd a FileDescriptor for a jpeg file, for example one obtained
+     *            from a ParcelFileDescriptor.
+     * @throws IOException
+     */
+    public void readExif(FileDescriptor fd) throws IOException {
+        if (fd == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        FileChannel channel = new FileInputStream(fd).getChannel();
+        ByteBuffer buf = ByteBuffer.allocate(ExifBufferParser.getExifRegionLength(channel));
+        ExifBufferParser.readFully(channel, buf, 0);
+        buf.flip();
+        readExif(buf);
     }
 
     /**
@@ -804,24 +873,6 @@ public class ExifInterface {
         s.flush();
     }
 
-    /**
-     * Writes the tags from this ExifInterface object into a jpeg compressed
-     * bitmap, removing prior exif tags.
-     *
-     * @param bmap a bitmap to compress and write exif into.
-     * @param exifOutStream the OutputStream to which the jpeg image with added
-     *            exif tags will be written.
-     * @throws IOException
-     */
-    public void writeExif(Bitmap bmap, OutputStream exifOutStream) throws IOException {
-        if (bmap == null || exifOutStream == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
-        }
-        OutputStream s = getExifWriterStream(exifOutStream);
-        bmap.compress(Bitmap.CompressFormat.JPEG, 90, s);
-        s.flush();
-    }
-
     /**
      * Writes the tags from this ExifInterface object into a jpeg stream,
      * removing prior exif tags.
@@ -867,36 +918,11 @@ public class ExifInterface {
         s.close();
     }
 
-    /**
-     * Writes the tags from this ExifInterface object into a jpeg compressed
-     * bitmap, removing prior exif tags.
-     *
-     * @param bmap a bitmap to compress and write exif into.
-     * @param exifOutFileName a String containing the filepath to which the jpeg
-     *            image with added exif tags will be written.
-     * @throws FileNotFoundException
-     * @throws IOException
-     */
-    public void writeExif(Bitmap bmap, String exifOutFileName) throws FileNotFoundException,
-            IOException {
-        if (bmap == null || exifOutFileName == null) {
-            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
-        }
-        OutputStream s = null;
-        try {
-            s = getExifWriterStream(exifOutFileName);
-            bmap.compress(Bitmap.CompressFormat.JPEG, 90, s);
-            s.flush();
-        } catch (IOException e) {
-            closeSilently(s);
-            throw e;
-        }
-        s.close();
-    }
-
     /**
      * Writes the tags from this ExifInterface object into a jpeg stream,
-     * removing prior exif tags.
+     * removing prior exif tags. A FileInputStream positioned at the start of
+     * its file is copied with {@link FileChannel#transferTo} past the exif
+     * header, as in {@link #writeExif(String, String)}.
      *
      * @param jpegStream an InputStream containing a jpeg compressed image.
      * @param exifOutFileName a String containing the filepath to which the jpeg
@@ -909,6 +935,21 @@ public class ExifInterface {
         if (jpegStream == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
+        if (jpegStream instanceof FileInputStream) {
+            FileChannel in = ((FileInputStream) jpegStream).getChannel();
+            if (in.position() == 0) {
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(exifOutFileName);
+                    spliceExif(in, out);
+                } catch (IOException e) {
+                    closeSilently(out);
+                    throw e;
+                }
+                out.close();
+                return;
+            }
+        }
         OutputStream s = null;
         try {
             s = getExifWriterStream(exifOutFileName);
@@ -923,7 +964,9 @@ public class ExifInterface {
 
     /**
      * Writes the tags from this ExifInterface object into a jpeg file, removing
-     * prior exif tags.
+     * prior exif tags. Only the segments before the image data are rewritten,
+     * the image data itself is copied between the files with
+     * {@link FileChannel#transferTo}.
      *
      * @param jpegFileName a String containing the filepath for a jpeg file.
      * @param exifOutFileName a String containing the filepath to which the jpeg
@@ -936,15 +979,53 @@ public class ExifInterface {
         if (jpegFileName == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        InputStream is = null;
+        FileInputStream is = null;
+        FileOutputStream os = null;
         try {
             is = new FileInputStream(jpegFileName);
-            writeExif(is, exifOutFileName);
+            os = new FileOutputStream(exifOutFileName);
+            spliceExif(is.getChannel(), os);
         } catch (IOException e) {
             closeSilently(is);
+            closeSilently(os);
             throw e;
         }
         is.close();
+        os.close();
+    }
+
+    /**
+     * Copies a jpeg file to the output with this object's exif header in
+     * place of the old one. Only the segments up to the end of the old exif
+     * header go through an {@link ExifOutputStream}; the rest of the file is
+     * handed to {@link FileChannel#transferTo} so the entropy-coded image
+     * data never enters user space. On return the input channel is positioned
+     * at its end.
+     */
+    private void spliceExif(FileChannel in, FileOutputStream out) throws IOException {
+        long size = in.size();
+        ByteBuffer header = ByteBuffer.allocate(ExifBufferParser.getExifRegionLength(in));
+        long pos = ExifBufferParser.readFully(in, header, 0);
+        ExifOutputStream eos = new ExifOutputStream(out, this);
+        eos.setExifData(mData);
+        eos.write(header.array(), 0, header.position());
+        if (!eos.isPassThrough()) {
+            // Unusual segment layout, let the stream see the rest as well.
+            in.position(pos);
+            doExifStreamIO(Channels.newInputStream(in), eos);
+            eos.flush();
+            return;
+        }
+        eos.flush();
+        FileChannel outChannel = out.getChannel();
+        while (pos < size) {
+            long n = in.transferTo(pos, size - pos, outChannel);
+            if (n <= 0) {
+                throw new IOException("Could not copy jpeg data past offset " + pos);
+            }
+            pos += n;
+        }
+        in.position(size);
     }
 
     /**
@@ -1010,34 +1091,17 @@ public class ExifInterface {
     public boolean rewriteExif(String filename, Collection<ExifTag> tags)
             throws FileNotFoundException, IOException {
         RandomAccessFile file = null;
-        InputStream is = null;
         boolean ret;
         try {
-            File temp = new File(filename);
-            is = new BufferedInputStream(new FileInputStream(temp));
-
-            // Parse beginning of APP1 in exif to find size of exif header.
-            ExifParser parser = null;
-            try {
-                parser = ExifParser.parse(is, this);
-            } catch (ExifInvalidFormatException e) {
-                throw new IOException("Invalid exif format : ", e);
-            }
-            long exifSize = parser.getOffsetToExifEndFromSOF();
-
-            // Free up resources
-            is.close();
-            is = null;
-
             // Open file for memory mapping.
-            file = new RandomAccessFile(temp, "rw");
-            long fileLength = file.length();
-            if (fileLength < exifSize) {
-                throw new IOException("Filesize changed during operation");
-            }
+            file = new RandomAccessFile(filename, "rw");
+            FileChannel channel = file.getChannel();
+
+            // Read the segment headers to find the end of the exif header.
+            int exifSize = ExifBufferParser.getExifRegionLength(channel);
 
             // Map only exif header into memory.
-            ByteBuffer buf = file.getChannel().map(MapMode.READ_WRITE, 0, exifSize);
+            ByteBuffer buf = channel.map(MapMode.READ_WRITE, 0, exifSize);
 
             // Attempt to overwrite tag values without changing lengths (avoids
             // file copy).
@@ -1045,8 +1109,6 @@ public class ExifInterface {
         } catch (IOException e) {
             closeSilently(file);
             throw e;
-        } finally {
-            closeSilently(is);
         }
         file.close();
         return ret;
@@ -1667,7 +1729,8 @@ public class ExifInterface {
                     }
                 }
             }
-            getTagInfo().put(tagDef, ifdFlags << 24 | (tagType << 16) | defaultComponentCount);
+            getWritableTagInfo().put(tagDef,
+                    ifdFlags << 24 | (tagType << 16) | defaultComponentCount);
             return tagDef;
         }
         return TAG_NULL;
@@ -1736,7 +1799,7 @@ public class ExifInterface {
      * @param tagId a defined tag constant, e.g. {@link #TAG_IMAGE_WIDTH}.
      */
     public void removeTagDefinition(int tagId) {
-        getTagInfo().delete(tagId);
+        getWritableTagInfo().delete(tagId);
     }
 
     /**
@@ -1746,21 +1809,6 @@ public class ExifInterface {
         mTagInfo = null;
     }
 
-    /**
-     * Returns the thumbnail from IFD1 as a bitmap, or null if none exists.
-     *
-     * @return the thumbnail as a bitmap.
-     */
-    public Bitmap getThumbnailBitmap() {
-        if (mData.hasCompressedThumbnail()) {
-            byte[] thumb = mData.getCompressedThumbnail();
-            return BitmapFactory.decodeByteArray(thumb, 0, thumb.length);
-        } else if (mData.hasUncompressedStrip()) {
-            // TODO: implement uncompressed
-        }
-        return null;
-    }
-
     /**
      * Returns the thumbnail from IFD1 as a byte array, or null if none exists.
      * The bytes may either be an uncompressed strip as specified in the exif
@@ -1820,21 +1868,6 @@ public class ExifInterface {
         return true;
     }
 
-    /**
-     * Sets the thumbnail to be a jpeg compressed bitmap. Clears any prior
-     * thumbnail.
-     *
-     * @param thumb a bitmap to compress to a jpeg thumbnail.
-     * @return true if the thumbnail was set.
-     */
-    public boolean setCompressedThumbnail(Bitmap thumb) {
-        ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
-        if (!thumb.compress(Bitmap.CompressFormat.JPEG, 90, thumbnail)) {
-            return false;
-        }
-        return setCompressedThumbnail(thumbnail.toByteArray());
-    }
-
     /**
      * Clears the compressed thumbnail if it exists.
      */
@@ -1873,6 +1906,31 @@ public class ExifInterface {
         }
     }
 
+    /**
+     * Returns the Orientation ExifTag value for an image that is rotated
+     * clockwise by a given number of degrees and then, optionally, mirrored
+     * left to right.
+     *
+     * @param degrees the amount an image is rotated in degrees.
+     * @param mirrored true if the rotated image is mirrored horizontally.
+     */
+    public static short getOrientationValueForRotation(int degrees, boolean mirrored) {
+        short orientation = getOrientationValueForRotation(degrees);
+        if (!mirrored) {
+            return orientation;
+        }
+        switch (orientation) {
+            case Orientation.RIGHT_TOP:
+                return Orientation.LEFT_TOP; // 90 degrees cw, mirrored
+            case Orientation.BOTTOM_LEFT:
+                return Orientation.BOTTOM_RIGHT; // 180 degrees, mirrored
+            case Orientation.RIGHT_BOTTOM:
+                return Orientation.LEFT_BOTTOM; // 270 degrees cw, mirrored
+            default:
+                return Orientation.TOP_RIGHT; // 0 degrees, mirrored
+        }
+    }
+
     /**
      * Returns the rotation degrees corresponding to an ExifTag Orientation
      * value.
@@ -1912,7 +1970,8 @@ public class ExifInterface {
             double minutes = coordinate[1].toDouble();
             double seconds = coordinate[2].toDouble();
             double result = degrees + minutes / 60.0 + seconds / 3600.0;
-            if ((reference.equals("S") || reference.equals("W"))) {
+            // ASCII values read from an image keep their terminating NUL
+            if ((reference.startsWith("S") || reference.startsWith("W"))) {
                 return -result;
             }
             return result;
@@ -1946,10 +2005,10 @@ public class ExifInterface {
 
     private static final String GPS_DATE_FORMAT_STR = "yyyy:MM:dd";
     private static final String DATETIME_FORMAT_STR = "yyyy:MM:dd kk:mm:ss";
-    private final DateFormat mDateTimeStampFormat = new SimpleDateFormat(DATETIME_FORMAT_STR);
-    private final DateFormat mGPSDateStampFormat = new SimpleDateFormat(GPS_DATE_FORMAT_STR);
-    private final Calendar mGPSTimeStampCalendar = Calendar
-            .getInstance(TimeZone.getTimeZone("UTC"));
+    // Created on first use, most instances never format a timestamp
+    private DateFormat mDateTimeStampFormat = null;
+    private DateFormat mGPSDateStampFormat = null;
+    private Calendar mGPSTimeStampCalendar = null;
 
     /**
      * Creates, formats, and sets the DateTimeStamp tag for one of:
@@ -1964,6 +2023,9 @@ public class ExifInterface {
     public boolean addDateTimeStampTag(int tagId, long timestamp, TimeZone timezone) {
         if (tagId == TAG_DATE_TIME || tagId == TAG_DATE_TIME_DIGITIZED
                 || tagId == TAG_DATE_TIME_ORIGINAL) {
+            if (mDateTimeStampFormat == null) {
+                mDateTimeStampFormat = new SimpleDateFormat(DATETIME_FORMAT_STR);
+            }
             mDateTimeStampFormat.setTimeZone(timezone);
             ExifTag t = buildTag(tagId, mDateTimeStampFormat.format(timestamp));
             if (t == null) {
@@ -2009,6 +2071,11 @@ public class ExifInterface {
      * @return true if success, false if could not be created or set.
      */
     public boolean addGpsDateTimeStampTag(long timestamp) {
+        if (mGPSDateStampFormat == null) {
+            mGPSDateStampFormat = new SimpleDateFormat(GPS_DATE_FORMAT_STR);
+            mGPSDateStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            mGPSTimeStampCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        }
         ExifTag t = buildTag(TAG_GPS_DATE_STAMP, mGPSDateStampFormat.format(timestamp));
         if (t == null) {
             return false;
@@ -2059,17 +2126,39 @@ public class ExifInterface {
         }
     }
 
+    // The default tag definitions, shared by all instances and never modified
+    private static final SparseIntArray sDefaultTagInfo = new SparseIntArray();
+    static {
+        initTagInfo(sDefaultTagInfo);
+    }
+
+    // A private copy of the definitions, made when they are first modified
     private SparseIntArray mTagInfo = null;
 
+    /**
+     * Returns the tag definitions of this instance. The returned table may be
+     * shared with other instances and must not be modified; use
+     * {@link #getWritableTagInfo()} for that.
+     */
     protected SparseIntArray getTagInfo() {
         if (mTagInfo == null) {
-            mTagInfo = new SparseIntArray();
-            initTagInfo();
+            return sDefaultTagInfo;
+        }
+        return mTagInfo;
+    }
+
+    private SparseIntArray getWritableTagInfo() {
+        if (mTagInfo == null) {
+            SparseIntArray infos = new SparseIntArray(sDefaultTagInfo.size());
+            for (int i = 0, n = sDefaultTagInfo.size(); i < n; i++) {
+                infos.append(sDefaultTagInfo.keyAt(i), sDefaultTagInfo.valueAt(i));
+            }
+            mTagInfo = infos;
         }
         return mTagInfo;
     }
 
-    private void initTagInfo() {
+    private static void initTagInfo(SparseIntArray tagInfo) {
         /**
          * We put tag information in a 4-bytes integer. The first byte a bitmask
          * representing the allowed IFDs of the tag, the second byte is the data
@@ -2081,265 +2170,265 @@ public class ExifInterface {
                 IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1
         };
         int ifdFlags = getFlagsFromAllowedIfds(ifdAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_MAKE,
+        tagInfo.put(ExifInterface.TAG_MAKE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_WIDTH,
+        tagInfo.put(ExifInterface.TAG_IMAGE_WIDTH,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_LENGTH,
+        tagInfo.put(ExifInterface.TAG_IMAGE_LENGTH,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_BITS_PER_SAMPLE,
+        tagInfo.put(ExifInterface.TAG_BITS_PER_SAMPLE,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_COMPRESSION,
+        tagInfo.put(ExifInterface.TAG_COMPRESSION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PHOTOMETRIC_INTERPRETATION,
+        tagInfo.put(ExifInterface.TAG_PHOTOMETRIC_INTERPRETATION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_ORIENTATION, ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16
+        tagInfo.put(ExifInterface.TAG_ORIENTATION, ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16
                 | 1);
-        mTagInfo.put(ExifInterface.TAG_SAMPLES_PER_PIXEL,
+        tagInfo.put(ExifInterface.TAG_SAMPLES_PER_PIXEL,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PLANAR_CONFIGURATION,
+        tagInfo.put(ExifInterface.TAG_PLANAR_CONFIGURATION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_SUB_SAMPLING,
+        tagInfo.put(ExifInterface.TAG_Y_CB_CR_SUB_SAMPLING,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_POSITIONING,
+        tagInfo.put(ExifInterface.TAG_Y_CB_CR_POSITIONING,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_X_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_X_RESOLUTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_Y_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_Y_RESOLUTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_RESOLUTION_UNIT,
+        tagInfo.put(ExifInterface.TAG_RESOLUTION_UNIT,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_STRIP_OFFSETS,
+        tagInfo.put(ExifInterface.TAG_STRIP_OFFSETS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_ROWS_PER_STRIP,
+        tagInfo.put(ExifInterface.TAG_ROWS_PER_STRIP,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_STRIP_BYTE_COUNTS,
+        tagInfo.put(ExifInterface.TAG_STRIP_BYTE_COUNTS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_TRANSFER_FUNCTION,
+        tagInfo.put(ExifInterface.TAG_TRANSFER_FUNCTION,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 3 * 256);
-        mTagInfo.put(ExifInterface.TAG_WHITE_POINT,
+        tagInfo.put(ExifInterface.TAG_WHITE_POINT,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_PRIMARY_CHROMATICITIES,
+        tagInfo.put(ExifInterface.TAG_PRIMARY_CHROMATICITIES,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 6);
-        mTagInfo.put(ExifInterface.TAG_Y_CB_CR_COEFFICIENTS,
+        tagInfo.put(ExifInterface.TAG_Y_CB_CR_COEFFICIENTS,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_REFERENCE_BLACK_WHITE,
+        tagInfo.put(ExifInterface.TAG_REFERENCE_BLACK_WHITE,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 6);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME,
+        tagInfo.put(ExifInterface.TAG_DATE_TIME,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_DESCRIPTION,
+        tagInfo.put(ExifInterface.TAG_IMAGE_DESCRIPTION,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_MAKE,
+        tagInfo.put(ExifInterface.TAG_MAKE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_MODEL,
+        tagInfo.put(ExifInterface.TAG_MODEL,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SOFTWARE,
+        tagInfo.put(ExifInterface.TAG_SOFTWARE,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_ARTIST,
+        tagInfo.put(ExifInterface.TAG_ARTIST,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_COPYRIGHT,
+        tagInfo.put(ExifInterface.TAG_COPYRIGHT,
                 ifdFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_EXIF_IFD,
+        tagInfo.put(ExifInterface.TAG_EXIF_IFD,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_IFD,
+        tagInfo.put(ExifInterface.TAG_GPS_IFD,
                 ifdFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // IFD1 tags
         int[] ifd1AllowedIfds = {
             IfdId.TYPE_IFD_1
         };
         int ifdFlags1 = getFlagsFromAllowedIfds(ifd1AllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+        tagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
                 ifdFlags1 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+        tagInfo.put(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
                 ifdFlags1 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // Exif tags
         int[] exifAllowedIfds = {
             IfdId.TYPE_IFD_EXIF
         };
         int exifFlags = getFlagsFromAllowedIfds(exifAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_EXIF_VERSION,
+        tagInfo.put(ExifInterface.TAG_EXIF_VERSION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_FLASHPIX_VERSION,
+        tagInfo.put(ExifInterface.TAG_FLASHPIX_VERSION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_COLOR_SPACE,
+        tagInfo.put(ExifInterface.TAG_COLOR_SPACE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_COMPONENTS_CONFIGURATION,
+        tagInfo.put(ExifInterface.TAG_COMPONENTS_CONFIGURATION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_COMPRESSED_BITS_PER_PIXEL,
+        tagInfo.put(ExifInterface.TAG_COMPRESSED_BITS_PER_PIXEL,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PIXEL_X_DIMENSION,
+        tagInfo.put(ExifInterface.TAG_PIXEL_X_DIMENSION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_PIXEL_Y_DIMENSION,
+        tagInfo.put(ExifInterface.TAG_PIXEL_Y_DIMENSION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_MAKER_NOTE,
+        tagInfo.put(ExifInterface.TAG_MAKER_NOTE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_USER_COMMENT,
+        tagInfo.put(ExifInterface.TAG_USER_COMMENT,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_RELATED_SOUND_FILE,
+        tagInfo.put(ExifInterface.TAG_RELATED_SOUND_FILE,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 13);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME_ORIGINAL,
+        tagInfo.put(ExifInterface.TAG_DATE_TIME_ORIGINAL,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_DATE_TIME_DIGITIZED,
+        tagInfo.put(ExifInterface.TAG_DATE_TIME_DIGITIZED,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 20);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME,
+        tagInfo.put(ExifInterface.TAG_SUB_SEC_TIME,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_ORIGINAL,
+        tagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_ORIGINAL,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_DIGITIZED,
+        tagInfo.put(ExifInterface.TAG_SUB_SEC_TIME_DIGITIZED,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_IMAGE_UNIQUE_ID,
+        tagInfo.put(ExifInterface.TAG_IMAGE_UNIQUE_ID,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | 33);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_TIME,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_TIME,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_F_NUMBER,
+        tagInfo.put(ExifInterface.TAG_F_NUMBER,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_PROGRAM,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_PROGRAM,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SPECTRAL_SENSITIVITY,
+        tagInfo.put(ExifInterface.TAG_SPECTRAL_SENSITIVITY,
                 exifFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_ISO_SPEED_RATINGS,
+        tagInfo.put(ExifInterface.TAG_ISO_SPEED_RATINGS,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_OECF,
+        tagInfo.put(ExifInterface.TAG_OECF,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SHUTTER_SPEED_VALUE,
+        tagInfo.put(ExifInterface.TAG_SHUTTER_SPEED_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_APERTURE_VALUE,
+        tagInfo.put(ExifInterface.TAG_APERTURE_VALUE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_BRIGHTNESS_VALUE,
+        tagInfo.put(ExifInterface.TAG_BRIGHTNESS_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
                 exifFlags | ExifTag.TYPE_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_MAX_APERTURE_VALUE,
+        tagInfo.put(ExifInterface.TAG_MAX_APERTURE_VALUE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_METERING_MODE,
+        tagInfo.put(ExifInterface.TAG_METERING_MODE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_LIGHT_SOURCE,
+        tagInfo.put(ExifInterface.TAG_LIGHT_SOURCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FLASH,
+        tagInfo.put(ExifInterface.TAG_FLASH,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_LENGTH,
+        tagInfo.put(ExifInterface.TAG_FOCAL_LENGTH,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_AREA,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_AREA,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_FLASH_ENERGY,
+        tagInfo.put(ExifInterface.TAG_FLASH_ENERGY,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SPATIAL_FREQUENCY_RESPONSE,
+        tagInfo.put(ExifInterface.TAG_SPATIAL_FREQUENCY_RESPONSE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_X_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_FOCAL_PLANE_X_RESOLUTION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_Y_RESOLUTION,
+        tagInfo.put(ExifInterface.TAG_FOCAL_PLANE_Y_RESOLUTION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_PLANE_RESOLUTION_UNIT,
+        tagInfo.put(ExifInterface.TAG_FOCAL_PLANE_RESOLUTION_UNIT,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_LOCATION,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_LOCATION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_INDEX,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_INDEX,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SENSING_METHOD,
+        tagInfo.put(ExifInterface.TAG_SENSING_METHOD,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FILE_SOURCE,
+        tagInfo.put(ExifInterface.TAG_FILE_SOURCE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SCENE_TYPE,
+        tagInfo.put(ExifInterface.TAG_SCENE_TYPE,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_CFA_PATTERN,
+        tagInfo.put(ExifInterface.TAG_CFA_PATTERN,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_CUSTOM_RENDERED,
+        tagInfo.put(ExifInterface.TAG_CUSTOM_RENDERED,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_EXPOSURE_MODE,
+        tagInfo.put(ExifInterface.TAG_EXPOSURE_MODE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_WHITE_BALANCE,
+        tagInfo.put(ExifInterface.TAG_WHITE_BALANCE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_DIGITAL_ZOOM_RATIO,
+        tagInfo.put(ExifInterface.TAG_DIGITAL_ZOOM_RATIO,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_FOCAL_LENGTH_IN_35_MM_FILE,
+        tagInfo.put(ExifInterface.TAG_FOCAL_LENGTH_IN_35_MM_FILE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SCENE_CAPTURE_TYPE,
+        tagInfo.put(ExifInterface.TAG_SCENE_CAPTURE_TYPE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GAIN_CONTROL,
+        tagInfo.put(ExifInterface.TAG_GAIN_CONTROL,
                 exifFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_CONTRAST,
+        tagInfo.put(ExifInterface.TAG_CONTRAST,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SATURATION,
+        tagInfo.put(ExifInterface.TAG_SATURATION,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_SHARPNESS,
+        tagInfo.put(ExifInterface.TAG_SHARPNESS,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_DEVICE_SETTING_DESCRIPTION,
+        tagInfo.put(ExifInterface.TAG_DEVICE_SETTING_DESCRIPTION,
                 exifFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE_RANGE,
+        tagInfo.put(ExifInterface.TAG_SUBJECT_DISTANCE_RANGE,
                 exifFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_INTEROPERABILITY_IFD, exifFlags
+        tagInfo.put(ExifInterface.TAG_INTEROPERABILITY_IFD, exifFlags
                 | ExifTag.TYPE_UNSIGNED_LONG << 16 | 1);
         // GPS tag
         int[] gpsAllowedIfds = {
             IfdId.TYPE_IFD_GPS
         };
         int gpsFlags = getFlagsFromAllowedIfds(gpsAllowedIfds) << 24;
-        mTagInfo.put(ExifInterface.TAG_GPS_VERSION_ID,
+        tagInfo.put(ExifInterface.TAG_GPS_VERSION_ID,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_BYTE << 16 | 4);
-        mTagInfo.put(ExifInterface.TAG_GPS_LATITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_LATITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_LONGITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_LONGITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_LATITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_LATITUDE,
                 gpsFlags | ExifTag.TYPE_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_LONGITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_LONGITUDE,
                 gpsFlags | ExifTag.TYPE_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_ALTITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_ALTITUDE_REF,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_BYTE << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_ALTITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_ALTITUDE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_TIME_STAMP,
+        tagInfo.put(ExifInterface.TAG_GPS_TIME_STAMP,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 3);
-        mTagInfo.put(ExifInterface.TAG_GPS_SATTELLITES,
+        tagInfo.put(ExifInterface.TAG_GPS_SATTELLITES,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_STATUS,
+        tagInfo.put(ExifInterface.TAG_GPS_STATUS,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_MEASURE_MODE,
+        tagInfo.put(ExifInterface.TAG_GPS_MEASURE_MODE,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DOP,
+        tagInfo.put(ExifInterface.TAG_GPS_DOP,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_SPEED_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_SPEED_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_SPEED,
+        tagInfo.put(ExifInterface.TAG_GPS_SPEED,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_TRACK_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_TRACK_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_TRACK,
+        tagInfo.put(ExifInterface.TAG_GPS_TRACK,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION,
+        tagInfo.put(ExifInterface.TAG_GPS_IMG_DIRECTION,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_MAP_DATUM,
+        tagInfo.put(ExifInterface.TAG_GPS_MAP_DATUM,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_LATITUDE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_BEARING,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE_REF,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 2);
-        mTagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE,
+        tagInfo.put(ExifInterface.TAG_GPS_DEST_DISTANCE,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_RATIONAL << 16 | 1);
-        mTagInfo.put(ExifInterface.TAG_GPS_PROCESSING_METHOD,
+        tagInfo.put(ExifInterface.TAG_GPS_PROCESSING_METHOD,
                 gpsFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_AREA_INFORMATION,
+        tagInfo.put(ExifInterface.TAG_GPS_AREA_INFORMATION,
                 gpsFlags | ExifTag.TYPE_UNDEFINED << 16 | ExifTag.SIZE_UNDEFINED);
-        mTagInfo.put(ExifInterface.TAG_GPS_DATE_STAMP,
+        tagInfo.put(ExifInterface.TAG_GPS_DATE_STAMP,
                 gpsFlags | ExifTag.TYPE_ASCII << 16 | 11);
-        mTagInfo.put(ExifInterface.TAG_GPS_DIFFERENTIAL,
+        tagInfo.put(ExifInterface.TAG_GPS_DIFFERENTIAL,
                 gpsFlags | ExifTag.TYPE_UNSIGNED_SHORT << 16 | 11);
         // Interoperability tag
         int[] interopAllowedIfds = {
             IfdId.TYPE_IFD_INTEROPERABILITY
         };
         int interopFlags = getFlagsFromAllowedIfds(interopAllowedIfds) << 24;
-        mTagInfo.put(TAG_INTEROPERABILITY_INDEX, interopFlags | ExifTag.TYPE_ASCII << 16
+        tagInfo.put(TAG_INTEROPERABILITY_INDEX, interopFlags | ExifTag.TYPE_ASCII << 16
                 | ExifTag.SIZE_UNDEFINED);
     }
 
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+class ExifModifier {
+    public static final String TAG = "ExifModifier";
+    public static final boolean DEBUG = false;
+    private final ByteBuffer mByteBuffer;
+    private final ExifData mTagToModified;
+    private final List<TagOffset> mTagOffsets = new ArrayList<TagOffset>();
+    private final ExifInterface mInterface;
+    private final ExifBufferParser mParser;
+    private int mOffsetBase;
+
+    private static class TagOffset {
+        final int mOffset;
+        final ExifTag mTag;
+
+        TagOffset(ExifTag tag, int offset) {
+            mTag = tag;
+            mOffset = offset;
+        }
+    }
+
+    protected ExifModifier(ByteBuffer byteBuffer, ExifInterface iRef) throws IOException,
+            ExifInvalidFormatException {
+        mByteBuffer = byteBuffer;
+        mOffsetBase = byteBuffer.position();
+        mInterface = iRef;
+        mParser = ExifBufferParser.parse(byteBuffer, mInterface);
+        mTagToModified = new ExifData(mParser.getByteOrder());
+        mOffsetBase += mParser.getTiffStartPosition();
+    }
+
+    protected ByteOrder getByteOrder() {
+        return mTagToModified.getByteOrder();
+    }
+
+    protected boolean commit() throws IOException, ExifInvalidFormatException {
+        IfdData[] ifdDatas = new IfdData[] {
+                mTagToModified.getIfdData(IfdId.TYPE_IFD_0),
+                mTagToModified.getIfdData(IfdId.TYPE_IFD_1),
+                mTagToModified.getIfdData(IfdId.TYPE_IFD_EXIF),
+                mTagToModified.getIfdData(IfdId.TYPE_IFD_INTEROPERABILITY),
+                mTagToModified.getIfdData(IfdId.TYPE_IFD_GPS)
+        };
+
+        for (int ifd = 0; ifd < ifdDatas.length; ifd++) {
+            IfdData currIfd = ifdDatas[ifd];
+            if (currIfd == null) {
+                continue;
+            }
+            for (int i = 0, n = mParser.getTagCount(ifd); i < n; i++) {
+                ExifTag newTag = currIfd.getTag(mParser.getTagId(ifd, i));
+                if (newTag == null) {
+                    continue;
+                }
+                if (newTag.getComponentCount() != mParser.getComponentCount(ifd, i)
+                        || newTag.getDataType() != mParser.getDataType(ifd, i)) {
+                    return false;
+                }
+                int offset = mParser.getValueOffset(ifd, i);
+                if (offset < 0) {
+                    return false;
+                }
+                mTagOffsets.add(new TagOffset(newTag, offset));
+                currIfd.removeTag(newTag.getTagId());
+                if (currIfd.getTagCount() == 0) {
+                    break;
+                }
+            }
+        }
+        for (IfdData ifd : ifdDatas) {
+            if (ifd != null && ifd.getTagCount() > 0) {
+                return false;
+            }
+        }
+        modify();
+        return true;
+    }
+
+    private void modify() {
+        mByteBuffer.order(getByteOrder());
+        for (TagOffset tagOffset : mTagOffsets) {
+            writeTagValue(tagOffset.mTag, tagOffset.mOffset);
+        }
+    }
+
+    private void writeTagValue(ExifTag tag, int offset) {
+        if (DEBUG) {
+            Log.v(TAG, "modifying tag to: \n" + tag.toString());
+            Log.v(TAG, "at offset: " + offset);
+        }
+        mByteBuffer.position(offset + mOffsetBase);
+        ExifOutputStream.writeTagValue(tag, mByteBuffer);
+    }
+
+    public void modifyTag(ExifTag tag) {
+        mTagToModified.addTag(tag);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import static com.android.mms.exif.ExifBytes.EXIF_HEADER_SIZE;
+import static com.android.mms.exif.ExifBytes.TIFF_HEADER_SIZE;
+import static com.android.mms.exif.ExifBytes.isLittleEndian;
+import static com.android.mms.exif.ExifBytes.isTiffHeader;
+import static com.android.mms.exif.ExifBytes.readInt;
+import static com.android.mms.exif.ExifBytes.readShort;
+
+/**
+ * This class reads the orientation tag of a JPEG image without building an
+ * {@link ExifData}. It walks the JPEG markers up to the Exif APP1 segment,
+ * jumps straight to IFD0 and returns as soon as the orientation entry is
+ * found. No {@link ExifTag} or other per-image objects are allocated.
+ * <p>
+ * Use {@link ExifInterface} instead if any tag other than the orientation is
+ * needed.
+ */
+public final class ExifOrientationReader {
+    private static final short TAG_ORIENTATION =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+
+    private ExifOrientationReader() {
+    }
+
+    /**
+     * Returns the value of {@link ExifInterface#TAG_ORIENTATION} in IFD0 of
+     * the given JPEG, or 0 if the image has no Exif data, no orientation tag,
+     * or is not a valid JPEG.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @see ExifInterface.Orientation
+     */
+    public static int readOrientation(byte[] jpeg) {
+        return readOrientation(jpeg, 0, jpeg.length);
+    }
+
+    /**
+     * Returns the value of {@link ExifInterface#TAG_ORIENTATION} in IFD0 of
+     * the JPEG stored in the given range of the array, or 0 if it cannot be
+     * found.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param offset the position of the SOI marker in the array.
+     * @param length the number of bytes of the image.
+     * @see ExifInterface.Orientation
+     */
+    public static int readOrientation(byte[] jpeg, int offset, int length) {
+        int segment = ExifBytes.findExifSegment(jpeg, offset, offset + length);
+        if (segment < 0) {
+            return 0;
+        }
+        int segmentEnd = segment + 2 + (readShort(jpeg, segment + 2, false) & 0xffff);
+        return readOrientationFromTiff(jpeg, segment + 4 + EXIF_HEADER_SIZE, segmentEnd);
+    }
+
+    private static int readOrientationFromTiff(byte[] jpeg, int tiff, int end) {
+        if (!isTiffHeader(jpeg, tiff)) {
+            return 0;
+        }
+        boolean littleEndian = isLittleEndian(jpeg, tiff);
+
+        long ifd0Offset = readInt(jpeg, tiff + 4, littleEndian) & 0xffffffffL;
+        if (ifd0Offset < TIFF_HEADER_SIZE || tiff + ifd0Offset + ExifParser.OFFSET_SIZE > end) {
+            return 0;
+        }
+        int ifd0 = tiff + (int) ifd0Offset;
+        int numOfTags = readShort(jpeg, ifd0, littleEndian) & 0xffff;
+        int entry = ifd0 + ExifParser.OFFSET_SIZE;
+        for (int i = 0; i < numOfTags && entry + ExifParser.TAG_SIZE <= end; i++) {
+            if (readShort(jpeg, entry, littleEndian) == TAG_ORIENTATION) {
+                short type = readShort(jpeg, entry + 2, littleEndian);
+                int count = readInt(jpeg, entry + 4, littleEndian);
+                if (type != ExifTag.TYPE_UNSIGNED_SHORT || count < 1) {
+                    return 0;
+                }
+                return readShort(jpeg, entry + 8, littleEndian) & 0xffff;
+            }
+            entry += ExifParser.TAG_SIZE;
+        }
+        return 0;
+    }
+}
@@ -16,8 +16,6 @@
 
 package com.android.mms.exif;
 
-import android.util.Log;
-
 import java.io.BufferedOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -73,8 +71,11 @@ class ExifOutputStream extends FilterOutputStream {
     private static final short TAG_SIZE = 12;
     private static final short TIFF_HEADER_SIZE = 8;
     private static final int MAX_EXIF_SIZE = 65535;
+    // APP1 marker, segment length and the "Exif\0\0" identifier.
+    private static final int APP1_HEADER_SIZE = 10;
 
     private ExifData mExifData;
+    private byte[] mExifSegment;
     private int mState = STATE_SOI;
     private int mByteToSkip;
     private int mByteToCopy;
@@ -95,6 +96,14 @@ class ExifOutputStream extends FilterOutputStream {
         mExifData = exifData;
     }
 
+    /**
+     * Sets a complete APP1 segment, marker included, to be written into the
+     * JPEG file as is instead of serializing an ExifData.
+     */
+    protected void setExifSegment(byte[] segment) {
+        mExifSegment = segment;
+    }
+
     /**
      * Gets the Exif header to be written into the JPEF file.
      */
@@ -102,6 +111,14 @@ class ExifOutputStream extends FilterOutputStream {
         return mExifData;
     }
 
+    /**
+     * Returns true once the Exif header has been replaced and everything
+     * written from now on is copied to the output unchanged.
+     */
+    protected boolean isPassThrough() {
+        return mState == STATE_JPEG_DATA && mByteToSkip == 0 && mByteToCopy == 0;
+    }
+
     private int requestByteToBuffer(int requestByteCount, byte[] buffer
             , int offset, int length) {
         int byteNeeded = requestByteCount - mBuffer.position();
@@ -207,6 +224,10 @@ class ExifOutputStream extends FilterOutputStream {
     }
 
     private void writeExifData() throws IOException {
+        if (mExifSegment != null) {
+            out.write(mExifSegment);
+            return;
+        }
         if (mExifData == null) {
             return;
         }
@@ -219,22 +240,25 @@ class ExifOutputStream extends FilterOutputStream {
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
-        OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
-        dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
-        dataOutputStream.writeShort(JpegHeader.APP1);
-        dataOutputStream.writeShort((short) (exifSize + 8));
-        dataOutputStream.writeInt(EXIF_HEADER);
-        dataOutputStream.writeShort((short) 0x0000);
+        // The offset pass fixes the size of the whole segment, so serialize
+        // it into one buffer and hand it to the stream in a single write.
+        ByteBuffer segment = ByteBuffer.allocate(APP1_HEADER_SIZE + exifSize);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segment.putShort(JpegHeader.APP1);
+        segment.putShort((short) (exifSize + 8));
+        segment.putInt(EXIF_HEADER);
+        segment.putShort((short) 0x0000);
         if (mExifData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
-            dataOutputStream.writeShort(TIFF_BIG_ENDIAN);
+            segment.putShort(TIFF_BIG_ENDIAN);
         } else {
-            dataOutputStream.writeShort(TIFF_LITTLE_ENDIAN);
+            segment.putShort(TIFF_LITTLE_ENDIAN);
         }
-        dataOutputStream.setByteOrder(mExifData.getByteOrder());
-        dataOutputStream.writeShort(TIFF_HEADER);
-        dataOutputStream.writeInt(8);
-        writeAllTags(dataOutputStream);
-        writeThumbnail(dataOutputStream);
+        segment.order(mExifData.getByteOrder());
+        segment.putShort(TIFF_HEADER);
+        segment.putInt(8);
+        writeAllTags(segment);
+        writeThumbnail(segment);
+        out.write(segment.array(), 0, segment.position());
         for (ExifTag t : nullTags) {
             mExifData.addTag(t);
         }
@@ -251,65 +275,66 @@ class ExifOutputStream extends FilterOutputStream {
         return nullTags;
     }
 
-    private void writeThumbnail(OrderedDataOutputStream dataOutputStream) throws IOException {
+    private void writeThumbnail(ByteBuffer segment) {
         if (mExifData.hasCompressedThumbnail()) {
-            dataOutputStream.write(mExifData.getCompressedThumbnail());
+            segment.put(mExifData.getCompressedThumbnail());
         } else if (mExifData.hasUncompressedStrip()) {
             for (int i = 0; i < mExifData.getStripCount(); i++) {
-                dataOutputStream.write(mExifData.getStrip(i));
+                segment.put(mExifData.getStrip(i));
             }
         }
     }
 
-    private void writeAllTags(OrderedDataOutputStream dataOutputStream) throws IOException {
-        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_0), dataOutputStream);
-        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_EXIF), dataOutputStream);
+    private void writeAllTags(ByteBuffer segment) {
+        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_0), segment);
+        writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_EXIF), segment);
         IfdData interoperabilityIfd = mExifData.getIfdData(IfdId.TYPE_IFD_INTEROPERABILITY);
         if (interoperabilityIfd != null) {
-            writeIfd(interoperabilityIfd, dataOutputStream);
+            writeIfd(interoperabilityIfd, segment);
         }
         IfdData gpsIfd = mExifData.getIfdData(IfdId.TYPE_IFD_GPS);
         if (gpsIfd != null) {
-            writeIfd(gpsIfd, dataOutputStream);
+            writeIfd(gpsIfd, segment);
         }
         IfdData ifd1 = mExifData.getIfdData(IfdId.TYPE_IFD_1);
         if (ifd1 != null) {
-            writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_1), dataOutputStream);
+            writeIfd(mExifData.getIfdData(IfdId.TYPE_IFD_1), segment);
         }
     }
 
-    private void writeIfd(IfdData ifd, OrderedDataOutputStream dataOutputStream)
-            throws IOException {
-        ExifTag[] tags = ifd.getAllTags();
-        dataOutputStream.writeShort((short) tags.length);
-        for (ExifTag tag : tags) {
-            dataOutputStream.writeShort(tag.getTagId());
-            dataOutputStream.writeShort(tag.getDataType());
-            dataOutputStream.writeInt(tag.getComponentCount());
+    private void writeIfd(IfdData ifd, ByteBuffer segment) {
+        int tagCount = ifd.getTagCount();
+        segment.putShort((short) tagCount);
+        for (int index = 0; index < tagCount; index++) {
+            ExifTag tag = ifd.getTagAt(index);
+            segment.putShort(tag.getTagId());
+            segment.putShort(tag.getDataType());
+            segment.putInt(tag.getComponentCount());
             if (DEBUG) {
                 Log.v(TAG, "\n" + tag.toString());
             }
             if (tag.getDataSize() > 4) {
-                dataOutputStream.writeInt(tag.getOffset());
+                segment.putInt(tag.getOffset());
             } else {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
-                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
-                    dataOutputStream.write(0);
-                }
+                int valueEnd = segment.position() + 4;
+                ExifOutputStream.writeTagValue(tag, segment);
+                // The buffer starts zeroed, so skipping leaves the padding.
+                segment.position(valueEnd);
             }
         }
-        dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
-        for (ExifTag tag : tags) {
+        segment.putInt(ifd.getOffsetToNextIfd());
+        for (int index = 0; index < tagCount; index++) {
+            ExifTag tag = ifd.getTagAt(index);
             if (tag.getDataSize() > 4) {
-                ExifOutputStream.writeTagValue(tag, dataOutputStream);
+                ExifOutputStream.writeTagValue(tag, segment);
             }
         }
     }
 
     private int calculateOffsetOfIfd(IfdData ifd, int offset) {
         offset += 2 + ifd.getTagCount() * TAG_SIZE + 4;
-        ExifTag[] tags = ifd.getAllTags();
-        for (ExifTag tag : tags) {
+        for (int i = 0, n = ifd.getTagCount(); i < n; i++) {
+            ExifTag tag = ifd.getTagAt(i);
             if (tag.getDataSize() > 4) {
                 tag.setOffset(offset);
                 offset += tag.getDataSize();
@@ -477,40 +502,45 @@ class ExifOutputStream extends FilterOutputStream {
         return offset;
     }
 
-    static void writeTagValue(ExifTag tag, OrderedDataOutputStream dataOutputStream)
-            throws IOException {
+    /**
+     * Puts the value of the tag at the current position of the buffer, in the
+     * buffer's byte order.
+     */
+    static void writeTagValue(ExifTag tag, ByteBuffer buffer) {
         switch (tag.getDataType()) {
             case ExifTag.TYPE_ASCII:
                 byte buf[] = tag.getStringByte();
                 if (buf.length == tag.getComponentCount()) {
                     buf[buf.length - 1] = 0;
-                    dataOutputStream.write(buf);
+                    buffer.put(buf);
                 } else {
-                    dataOutputStream.write(buf);
-                    dataOutputStream.write(0);
+                    buffer.put(buf);
+                    buffer.put((byte) 0);
                 }
                 break;
             case ExifTag.TYPE_LONG:
             case ExifTag.TYPE_UNSIGNED_LONG:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeInt((int) tag.getValueAt(i));
+                    buffer.putInt((int) tag.getValueAt(i));
                 }
                 break;
             case ExifTag.TYPE_RATIONAL:
             case ExifTag.TYPE_UNSIGNED_RATIONAL:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeRational(tag.getRational(i));
+                    Rational v = tag.getRational(i);
+                    buffer.putInt((int) v.getNumerator());
+                    buffer.putInt((int) v.getDenominator());
                 }
                 break;
             case ExifTag.TYPE_UNDEFINED:
             case ExifTag.TYPE_UNSIGNED_BYTE:
                 buf = new byte[tag.getComponentCount()];
                 tag.getBytes(buf);
-                dataOutputStream.write(buf);
+                buffer.put(buf);
                 break;
             case ExifTag.TYPE_UNSIGNED_SHORT:
                 for (int i = 0, n = tag.getComponentCount(); i < n; i++) {
-                    dataOutputStream.writeShort((short) tag.getValueAt(i));
+                    buffer.putShort((short) tag.getValueAt(i));
                 }
                 break;
         }
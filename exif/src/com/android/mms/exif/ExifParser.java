@@ -16,8 +16,6 @@
 
 package com.android.mms.exif;
 
-import android.util.Log;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteOrder;
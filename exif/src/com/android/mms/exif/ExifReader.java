@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads the EXIF header of a JPEG file and stores it in
+ * {@link ExifData}.
+ */
+class ExifReader {
+    private static final String TAG = "ExifReader";
+
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT);
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+    private static final short TAG_STRIP_OFFSETS = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_STRIP_OFFSETS);
+    private static final short TAG_STRIP_BYTE_COUNTS = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_STRIP_BYTE_COUNTS);
+
+    private final ExifInterface mInterface;
+
+    ExifReader(ExifInterface iRef) {
+        mInterface = iRef;
+    }
+
+    /**
+     * Parses the inputStream and and returns the EXIF data in an
+     * {@link ExifData}.
+     *
+     * @throws ExifInvalidFormatException
+     * @throws IOException
+     */
+    protected ExifData read(InputStream inputStream) throws ExifInvalidFormatException,
+            IOException {
+        ExifParser parser = ExifParser.parse(inputStream, mInterface);
+        ExifData exifData = new ExifData(parser.getByteOrder());
+        ExifTag tag = null;
+
+        int event = parser.next();
+        while (event != ExifParser.EVENT_END) {
+            switch (event) {
+                case ExifParser.EVENT_START_OF_IFD:
+                    exifData.addIfdData(new IfdData(parser.getCurrentIfd()));
+                    break;
+                case ExifParser.EVENT_NEW_TAG:
+                    tag = parser.getTag();
+                    if (!tag.hasValue()) {
+                        parser.registerForTagValue(tag);
+                    } else {
+                        exifData.getIfdData(tag.getIfd()).setTag(tag);
+                    }
+                    break;
+                case ExifParser.EVENT_VALUE_OF_REGISTERED_TAG:
+                    tag = parser.getTag();
+                    if (tag.getDataType() == ExifTag.TYPE_UNDEFINED) {
+                        parser.readFullTagValue(tag);
+                    }
+                    exifData.getIfdData(tag.getIfd()).setTag(tag);
+                    break;
+                case ExifParser.EVENT_COMPRESSED_IMAGE:
+                    byte buf[] = new byte[parser.getCompressedImageSize()];
+                    if (buf.length == parser.read(buf)) {
+                        exifData.setCompressedThumbnail(buf);
+                    } else {
+                        Log.w(TAG, "Failed to read the compressed thumbnail");
+                    }
+                    break;
+                case ExifParser.EVENT_UNCOMPRESSED_STRIP:
+                    buf = new byte[parser.getStripSize()];
+                    if (buf.length == parser.read(buf)) {
+                        exifData.setStripBytes(parser.getStripIndex(), buf);
+                    } else {
+                        Log.w(TAG, "Failed to read the strip bytes");
+                    }
+                    break;
+            }
+            event = parser.next();
+        }
+        return exifData;
+    }
+
+    /**
+     * Parses the JPEG image starting at the current position of the ByteBuffer
+     * and returns the EXIF data in an {@link ExifData}. The IFDs and values
+     * are read directly at their offsets; the position of the buffer is not
+     * changed.
+     *
+     * @throws ExifInvalidFormatException
+     */
+    protected ExifData read(ByteBuffer buffer) throws ExifInvalidFormatException {
+        ExifBufferParser parser = ExifBufferParser.parse(buffer, mInterface);
+        ExifData exifData = new ExifData(parser.getByteOrder());
+        for (int ifd : IfdData.getIfds()) {
+            if (!parser.hasIfd(ifd)) {
+                continue;
+            }
+            IfdData ifdData = new IfdData(ifd);
+            exifData.addIfdData(ifdData);
+            for (int i = 0, n = parser.getTagCount(ifd); i < n; i++) {
+                ExifTag tag = parser.readTag(ifd, i);
+                if (tag != null) {
+                    ifdData.setTag(tag);
+                }
+            }
+            readImageData(parser, ifdData, exifData);
+        }
+        return exifData;
+    }
+
+    private void readImageData(ExifBufferParser parser, IfdData ifdData, ExifData exifData) {
+        int ifd = ifdData.getId();
+        ExifTag offsetTag = ifdData.getTag(TAG_JPEG_INTERCHANGE_FORMAT);
+        ExifTag sizeTag = ifdData.getTag(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        if (offsetTag != null && sizeTag != null
+                && parser.checkAllowed(ifd, ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT)
+                && parser.checkAllowed(ifd, ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH)) {
+            byte buf[] = parser.readBytes(getValueAt(offsetTag, 0), getValueAt(sizeTag, 0));
+            if (buf != null) {
+                exifData.setCompressedThumbnail(buf);
+            } else {
+                Log.w(TAG, "Failed to read the compressed thumbnail");
+            }
+        }
+
+        offsetTag = ifdData.getTag(TAG_STRIP_OFFSETS);
+        sizeTag = ifdData.getTag(TAG_STRIP_BYTE_COUNTS);
+        if (offsetTag != null && sizeTag != null
+                && parser.checkAllowed(ifd, ExifInterface.TAG_STRIP_OFFSETS)
+                && parser.checkAllowed(ifd, ExifInterface.TAG_STRIP_BYTE_COUNTS)) {
+            int stripCount = Math.min(offsetTag.getComponentCount(),
+                    sizeTag.getComponentCount());
+            for (int i = 0; i < stripCount; i++) {
+                byte buf[] = parser.readBytes(getValueAt(offsetTag, i), getValueAt(sizeTag, i));
+                if (buf != null) {
+                    exifData.setStripBytes(i, buf);
+                } else {
+                    Log.w(TAG, "Failed to read the strip bytes");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the integer value at index, or -1 if the tag has no such value.
+     */
+    private static long getValueAt(ExifTag tag, int index) {
+        short type = tag.getDataType();
+        if (!tag.hasValue() || index >= tag.getComponentCount()
+                || type == ExifTag.TYPE_RATIONAL || type == ExifTag.TYPE_UNSIGNED_RATIONAL) {
+            return -1;
+        }
+        return tag.getValueAt(index);
+    }
+}
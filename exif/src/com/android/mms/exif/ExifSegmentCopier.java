@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import static com.android.mms.exif.ExifBytes.EXIF_HEADER_SIZE;
+import static com.android.mms.exif.ExifBytes.TIFF_HEADER_SIZE;
+import static com.android.mms.exif.ExifBytes.isLittleEndian;
+import static com.android.mms.exif.ExifBytes.isTiffHeader;
+import static com.android.mms.exif.ExifBytes.readInt;
+import static com.android.mms.exif.ExifBytes.readShort;
+import static com.android.mms.exif.ExifBytes.writeInt;
+import static com.android.mms.exif.ExifBytes.writeShort;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * This class carries the Exif APP1 segment of one JPEG image over to another
+ * as raw bytes, for example onto a re-encoded copy of the same picture. The
+ * segment is never parsed into an {@link ExifData}: the copy is walked just
+ * far enough to overwrite the orientation and pixel dimension entries in
+ * place, so maker notes and tags unknown to {@link ExifInterface} survive
+ * unchanged. The same patching can be applied to a JPEG's own segment with
+ * {@link #patchExifSegment(byte[], int, int, int, boolean)}.
+ *
+ * <pre>
+ * byte[] segment = ExifSegmentCopier.copyExifSegment(original,
+ *         ExifInterface.Orientation.TOP_LEFT, width, height, true);
+ * OutputStream os = ExifSegmentCopier.getExifWriterStream(segment, out);
+ * bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
+ * os.flush();
+ * </pre>
+ */
+public final class ExifSegmentCopier {
+    private static final int TIFF_START = 4 + EXIF_HEADER_SIZE; // marker, length
+    private static final short TAG_ORIENTATION =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+    private static final short TAG_IMAGE_WIDTH =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_IMAGE_WIDTH);
+    private static final short TAG_IMAGE_LENGTH =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_IMAGE_LENGTH);
+    private static final short TAG_EXIF_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_PIXEL_X_DIMENSION =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_PIXEL_X_DIMENSION);
+    private static final short TAG_PIXEL_Y_DIMENSION =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_PIXEL_Y_DIMENSION);
+
+    private ExifSegmentCopier() {
+    }
+
+    /**
+     * Returns a copy of the Exif APP1 segment of the given JPEG, from its
+     * marker to its last byte, with the orientation and pixel dimension tags
+     * overwritten. Tags that are missing from the segment are not added.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param orientation the new {@link ExifInterface#TAG_ORIENTATION} value.
+     * @param width the new image width in pixels.
+     * @param height the new image height in pixels.
+     * @param dropThumbnail true to unlink IFD1, so that a thumbnail that no
+     *            longer matches the image is not shown. Its bytes stay in the
+     *            segment.
+     * @return the patched segment, or null if the image has no Exif data or
+     *         is not a valid JPEG.
+     */
+    public static byte[] copyExifSegment(byte[] jpeg, int orientation, int width, int height,
+            boolean dropThumbnail) {
+        int pos = ExifBytes.findExifSegment(jpeg, 0, jpeg.length);
+        if (pos < 0) {
+            return null;
+        }
+        int segmentEnd = pos + 2 + (readShort(jpeg, pos + 2, false) & 0xffff);
+        byte[] segment = Arrays.copyOfRange(jpeg, pos, segmentEnd);
+        if (!patchTiff(segment, TIFF_START, segment.length, orientation, width, height,
+                dropThumbnail)) {
+            return null;
+        }
+        return segment;
+    }
+
+    /**
+     * Overwrites the orientation and pixel dimension tags in the Exif APP1
+     * segment of the given JPEG itself, for a JPEG whose pixels were changed
+     * without re-encoding, such as by a lossless rotation. Nothing moves, so
+     * tags that are missing from the segment are not added.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param orientation the new {@link ExifInterface#TAG_ORIENTATION} value.
+     * @param width the new image width in pixels.
+     * @param height the new image height in pixels.
+     * @param dropThumbnail true to unlink IFD1, so that a thumbnail that no
+     *            longer matches the image is not shown.
+     * @return true if the segment was patched, false if the image has no
+     *         Exif data or is not a valid JPEG.
+     */
+    public static boolean patchExifSegment(byte[] jpeg, int orientation, int width, int height,
+            boolean dropThumbnail) {
+        int pos = ExifBytes.findExifSegment(jpeg, 0, jpeg.length);
+        if (pos < 0) {
+            return false;
+        }
+        int segmentEnd = pos + 2 + (readShort(jpeg, pos + 2, false) & 0xffff);
+        return patchTiff(jpeg, pos + TIFF_START, segmentEnd, orientation, width, height,
+                dropThumbnail);
+    }
+
+    /**
+     * Wraps an OutputStream so that a JPEG written to it reaches the
+     * destination with the given APP1 segment in place of its own Exif
+     * header, if any. The returned stream buffers its output and must be
+     * flushed or closed when the image has been written.
+     *
+     * @param segment an APP1 segment as returned by
+     *            {@link #copyExifSegment(byte[], int, int, int, boolean)}.
+     * @param outStream the destination of the image.
+     */
+    public static OutputStream getExifWriterStream(byte[] segment, OutputStream outStream) {
+        if (segment == null || outStream == null) {
+            throw new IllegalArgumentException("Argument is null");
+        }
+        ExifOutputStream eos = new ExifOutputStream(outStream, null);
+        eos.setExifSegment(segment);
+        return eos;
+    }
+
+    private static boolean patchTiff(byte[] segment, int tiff, int end, int orientation,
+            int width, int height, boolean dropThumbnail) {
+        if (!isTiffHeader(segment, tiff)) {
+            return false;
+        }
+        boolean littleEndian = isLittleEndian(segment, tiff);
+
+        int ifd0 = findIfd(segment, tiff, end, readInt(segment, tiff + 4, littleEndian));
+        if (ifd0 < 0) {
+            return false;
+        }
+        int numOfTags = readShort(segment, ifd0, littleEndian) & 0xffff;
+        int entry = ifd0 + ExifParser.OFFSET_SIZE;
+        int exifIfd = -1;
+        for (int i = 0; i < numOfTags && entry + ExifParser.TAG_SIZE <= end; i++) {
+            short tag = readShort(segment, entry, littleEndian);
+            if (tag == TAG_ORIENTATION) {
+                patchValue(segment, entry, orientation, littleEndian);
+            } else if (tag == TAG_IMAGE_WIDTH) {
+                patchValue(segment, entry, width, littleEndian);
+            } else if (tag == TAG_IMAGE_LENGTH) {
+                patchValue(segment, entry, height, littleEndian);
+            } else if (tag == TAG_EXIF_IFD) {
+                exifIfd = findIfd(segment, tiff, end, readInt(segment, entry + 8, littleEndian));
+            }
+            entry += ExifParser.TAG_SIZE;
+        }
+        int nextIfdOffset = ifd0 + ExifParser.OFFSET_SIZE + numOfTags * ExifParser.TAG_SIZE;
+        if (dropThumbnail && nextIfdOffset + 4 <= end) {
+            writeInt(segment, nextIfdOffset, 0, littleEndian);
+        }
+
+        if (exifIfd >= 0) {
+            numOfTags = readShort(segment, exifIfd, littleEndian) & 0xffff;
+            entry = exifIfd + ExifParser.OFFSET_SIZE;
+            for (int i = 0; i < numOfTags && entry + ExifParser.TAG_SIZE <= end; i++) {
+                short tag = readShort(segment, entry, littleEndian);
+                if (tag == TAG_PIXEL_X_DIMENSION) {
+                    patchValue(segment, entry, width, littleEndian);
+                } else if (tag == TAG_PIXEL_Y_DIMENSION) {
+                    patchValue(segment, entry, height, littleEndian);
+                }
+                entry += ExifParser.TAG_SIZE;
+            }
+        }
+        return true;
+    }
+
+    // Returns the position of the IFD at the given TIFF offset, or -1.
+    private static int findIfd(byte[] segment, int tiff, int end, int tiffOffset) {
+        long offset = tiffOffset & 0xffffffffL;
+        if (offset < TIFF_HEADER_SIZE
+                || tiff + offset + ExifParser.OFFSET_SIZE > end) {
+            return -1;
+        }
+        return tiff + (int) offset;
+    }
+
+    // Overwrites a single SHORT or LONG value stored inside the entry.
+    private static void patchValue(byte[] segment, int entry, int value, boolean littleEndian) {
+        short type = readShort(segment, entry + 2, littleEndian);
+        if (readInt(segment, entry + 4, littleEndian) != 1) {
+            return;
+        }
+        if (type == ExifTag.TYPE_UNSIGNED_SHORT && value >= 0 && value <= 0xffff) {
+            writeShort(segment, entry + 8, (short) value, littleEndian);
+        } else if (type == ExifTag.TYPE_UNSIGNED_LONG) {
+            writeInt(segment, entry + 8, value, littleEndian);
+        }
+    }
+}
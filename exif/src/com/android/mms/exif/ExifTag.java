@@ -16,6 +16,7 @@
 
 package com.android.mms.exif;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -101,6 +102,10 @@ public class ExifTag {
     private Object mValue;
     // Value offset in exif header.
     private int mOffset;
+    // The buffer the value is read from when it is first accessed, or null
+    private ByteBuffer mValueSource;
+    // Absolute position of the value in mValueSource
+    private int mValueSourcePosition;
 
     private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("yyyy:MM:dd kk:mm:ss");
 
@@ -134,6 +139,27 @@ public class ExifTag {
         mValue = null;
     }
 
+    /**
+     * Copies a tag, decoding a lazily read value first. The value arrays are
+     * cloned so the copy can be used on another thread.
+     */
+    ExifTag(ExifTag tag) {
+        // getComponentCount() decodes the value first, which can change the
+        // count (e.g. an ASCII value gaining its terminator)
+        this(tag.mTagId, tag.mDataType, tag.getComponentCount(), tag.mIfd,
+                tag.mHasDefinedDefaultComponentCount);
+        Object value = tag.mValue;
+        if (value instanceof byte[]) {
+            value = ((byte[]) value).clone();
+        } else if (value instanceof long[]) {
+            value = ((long[]) value).clone();
+        } else if (value instanceof Rational[]) {
+            value = ((Rational[]) value).clone();
+        }
+        mValue = value;
+        mOffset = tag.mOffset;
+    }
+
     /**
      * Gets the element size of the given data type in bytes.
      *
@@ -203,6 +229,7 @@ public class ExifTag {
 
     // TODO: fix integer overflows with this
     public int getComponentCount() {
+        ensureValue();
         return mComponentCountActual;
     }
 
@@ -219,6 +246,7 @@ public class ExifTag {
      * contain an offset value that is determined when the tag is written.
      */
     public boolean hasValue() {
+        ensureValue();
         return mValue != null;
     }
 
@@ -251,6 +279,7 @@ public class ExifTag {
         for (int i = 0; i < value.length; i++) {
             data[i] = value[i];
         }
+        mValueSource = null;
         mValue = data;
         mComponentCountActual = value.length;
         return true;
@@ -290,6 +319,7 @@ public class ExifTag {
         if (checkOverflowForUnsignedLong(value)) {
             return false;
         }
+        mValueSource = null;
         mValue = value;
         mComponentCountActual = value.length;
         return true;
@@ -341,6 +371,7 @@ public class ExifTag {
         if (checkBadComponentCount(count)) {
             return false;
         }
+        mValueSource = null;
         mComponentCountActual = count;
         mValue = finalBuf;
         return true;
@@ -373,6 +404,7 @@ public class ExifTag {
             return false;
         }
 
+        mValueSource = null;
         mValue = value;
         mComponentCountActual = value.length;
         return true;
@@ -415,6 +447,7 @@ public class ExifTag {
         if (mDataType != TYPE_UNSIGNED_BYTE && mDataType != TYPE_UNDEFINED) {
             return false;
         }
+        mValueSource = null;
         mValue = new byte[length];
         System.arraycopy(value, offset, mValue, 0, length);
         mComponentCountActual = length;
@@ -538,6 +571,7 @@ public class ExifTag {
      *         or cannot be converted to a String.
      */
     public String getValueAsString() {
+        ensureValue();
         if (mValue == null) {
             return null;
         } else if (mValue instanceof String) {
@@ -572,6 +606,7 @@ public class ExifTag {
      *         exist or cannot be converted to a byte array.
      */
     public byte[] getValueAsBytes() {
+        ensureValue();
         if (mValue instanceof byte[]) {
             return (byte[]) mValue;
         }
@@ -603,6 +638,7 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of Rationals.
      */
     public Rational[] getValueAsRationals() {
+        ensureValue();
         if (mValue instanceof Rational[]) {
             return (Rational[]) mValue;
         }
@@ -649,6 +685,7 @@ public class ExifTag {
      *         not exist or cannot be converted to an array of ints.
      */
     public int[] getValueAsInts() {
+        ensureValue();
         if (mValue == null) {
             return null;
         } else if (mValue instanceof long[]) {
@@ -687,6 +724,7 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of longs.
      */
     public long[] getValueAsLongs() {
+        ensureValue();
         if (mValue instanceof long[]) {
             return (long[]) mValue;
         }
@@ -714,6 +752,7 @@ public class ExifTag {
      * Gets the tag's value or null if none exists.
      */
     public Object getValue() {
+        ensureValue();
         return mValue;
     }
 
@@ -745,6 +784,7 @@ public class ExifTag {
      * Gets a string representation of the value.
      */
     public String forceGetValueAsString() {
+        ensureValue();
         if (mValue == null) {
             return "";
         } else if (mValue instanceof byte[]) {
@@ -786,6 +826,7 @@ public class ExifTag {
      *                {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL}.
      */
     protected long getValueAt(int index) {
+        ensureValue();
         if (mValue instanceof long[]) {
             return ((long[]) mValue)[index];
         } else if (mValue instanceof byte[]) {
@@ -802,6 +843,7 @@ public class ExifTag {
      *                {@link #TYPE_ASCII}.
      */
     protected String getString() {
+        ensureValue();
         if (mDataType != TYPE_ASCII) {
             throw new IllegalArgumentException("Cannot get ASCII value from "
                     + convertTypeToString(mDataType));
@@ -813,6 +855,7 @@ public class ExifTag {
      * Get the converted ascii byte. Used by ExifOutputStream.
      */
     protected byte[] getStringByte() {
+        ensureValue();
         return (byte[]) mValue;
     }
 
@@ -823,6 +866,7 @@ public class ExifTag {
      *                {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL}.
      */
     protected Rational getRational(int index) {
+        ensureValue();
         if ((mDataType != TYPE_RATIONAL) && (mDataType != TYPE_UNSIGNED_RATIONAL)) {
             throw new IllegalArgumentException("Cannot get RATIONAL value from "
                     + convertTypeToString(mDataType));
@@ -848,6 +892,7 @@ public class ExifTag {
      *                {@link #TYPE_UNDEFINED} or {@link #TYPE_UNSIGNED_BYTE}.
      */
     protected void getBytes(byte[] buf, int offset, int length) {
+        ensureValue();
         if ((mDataType != TYPE_UNDEFINED) && (mDataType != TYPE_UNSIGNED_BYTE)) {
             throw new IllegalArgumentException("Cannot get BYTE value from "
                     + convertTypeToString(mDataType));
@@ -879,7 +924,28 @@ public class ExifTag {
         return mHasDefinedDefaultComponentCount;
     }
 
+    /**
+     * Defers reading the value of this tag until it is first accessed. The
+     * value will be decoded from the given buffer, in the byte order of the
+     * buffer, starting at the given absolute position. The buffer must not be
+     * modified until then.
+     */
+    protected void setValueSource(ByteBuffer source, int position) {
+        mValue = null;
+        mValueSource = source;
+        mValueSourcePosition = position;
+    }
+
+    private void ensureValue() {
+        if (mValueSource != null) {
+            ByteBuffer source = mValueSource;
+            mValueSource = null;
+            ExifBufferParser.readValue(this, source, mValueSourcePosition);
+        }
+    }
+
     private boolean checkBadComponentCount(int count) {
+        ensureValue();
         if (mHasDefinedDefaultComponentCount && (mComponentCountActual != count)) {
             return true;
         }
@@ -965,6 +1031,8 @@ public class ExifTag {
         }
         if (obj instanceof ExifTag) {
             ExifTag tag = (ExifTag) obj;
+            ensureValue();
+            tag.ensureValue();
             if (tag.mTagId != this.mTagId
                     || tag.mComponentCountActual != this.mComponentCountActual
                     || tag.mDataType != this.mDataType) {
@@ -1000,6 +1068,7 @@ public class ExifTag {
 
     @Override
     public String toString() {
+        ensureValue();
         return String.format("tag id: %04X\n", mTagId) + "ifd id: " + mIfd + "\ntype: "
                 + convertTypeToString(mDataType) + "\ncount: " + mComponentCountActual
                 + "\noffset: " + mOffset + "\nvalue: " + forceGetValueAsString() + "\n";
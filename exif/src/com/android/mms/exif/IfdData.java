@@ -16,11 +16,12 @@
 
 package com.android.mms.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * This class stores all the tags in an IFD.
+ * This class stores all the tags in an IFD. The tags are kept sorted by their
+ * unsigned tag ID in parallel arrays, which is the order they must be written
+ * in, and are looked up by binary search without boxing the ID.
  *
  * @see ExifData
  * @see ExifTag
@@ -28,7 +29,10 @@ import java.util.Map;
 class IfdData {
 
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    private static final int INITIAL_CAPACITY = 8;
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -52,10 +56,20 @@ class IfdData {
     }
 
     /**
-     * Get a array the contains all {@link ExifTag} in this IFD.
+     * Get a array the contains all {@link ExifTag} in this IFD, in the order
+     * of their tag IDs.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mTags, mTagCount);
+    }
+
+    /**
+     * Gets the {@link ExifTag} at the given index, in the order of their tag
+     * IDs. Use with {@link #getTagCount()} to iterate over the tags without
+     * allocating.
+     */
+    protected ExifTag getTagAt(int index) {
+        return mTags[index];
     }
 
     /**
@@ -76,7 +90,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return index >= 0 ? mTags[index] : null;
     }
 
     /**
@@ -84,25 +99,70 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int index = indexOf(tag.getTagId());
+        if (index >= 0) {
+            ExifTag old = mTags[index];
+            mTags[index] = tag;
+            return old;
+        }
+        index = ~index;
+        if (mTagCount == mTags.length) {
+            mTagIds = Arrays.copyOf(mTagIds, mTagCount * 2);
+            mTags = Arrays.copyOf(mTags, mTagCount * 2);
+        }
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, mTagCount - index);
+        System.arraycopy(mTags, index, mTags, index + 1, mTagCount - index);
+        mTagIds[index] = tag.getTagId();
+        mTags[index] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, mTagCount - index);
+        System.arraycopy(mTags, index + 1, mTags, index, mTagCount - index);
+        mTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    /**
+     * Returns the index of the tag with the given ID, or the bitwise
+     * complement of the index it would be inserted at if there is none.
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int lo = 0;
+        int hi = mTagCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~lo;
     }
 
     /**
@@ -134,12 +194,12 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
+                for (int i = 0, n = data.getTagCount(); i < n; i++) {
+                    ExifTag tag = data.getTagAt(i);
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
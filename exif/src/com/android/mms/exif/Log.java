@@ -13,36 +13,25 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.android.mms.exif;
 
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-
-class ByteBufferInputStream extends InputStream {
-
-    private final ByteBuffer mBuf;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-    public ByteBufferInputStream(ByteBuffer buf) {
-        mBuf = buf;
+/**
+ * The subset of android.util.Log used by this package, implemented with
+ * java.util.logging so that the package does not depend on the Android
+ * framework. On Android, java.util.logging is routed to logcat.
+ */
+class Log {
+    private Log() {
     }
 
-    @Override
-    public int read() {
-        if (!mBuf.hasRemaining()) {
-            return -1;
-        }
-        return mBuf.get() & 0xFF;
+    static void v(String tag, String msg) {
+        Logger.getLogger(tag).log(Level.FINEST, msg);
     }
 
-    @Override
-    public int read(byte[] bytes, int off, int len) {
-        if (!mBuf.hasRemaining()) {
-            return -1;
-        }
-
-        len = Math.min(len, mBuf.remaining());
-        mBuf.get(bytes, off, len);
-        return len;
+    static void w(String tag, String msg) {
+        Logger.getLogger(tag).log(Level.WARNING, msg);
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.mms.exif;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to int values, kept as sorted parallel arrays. This is
+ * the subset of android.util.SparseIntArray used by this package, so that the
+ * package does not depend on the Android framework.
+ */
+class SparseIntArray {
+    private int[] mKeys;
+    private int[] mValues;
+    private int mSize = 0;
+
+    SparseIntArray() {
+        this(10);
+    }
+
+    SparseIntArray(int initialCapacity) {
+        mKeys = new int[initialCapacity];
+        mValues = new int[initialCapacity];
+    }
+
+    /**
+     * Gets the value mapped to the given key, or 0 if there is none.
+     */
+    int get(int key) {
+        return get(key, 0);
+    }
+
+    /**
+     * Gets the value mapped to the given key, or valueIfKeyNotFound if there
+     * is none.
+     */
+    int get(int key, int valueIfKeyNotFound) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return i >= 0 ? mValues[i] : valueIfKeyNotFound;
+    }
+
+    /**
+     * Adds a mapping from the given key to the given value, replacing any
+     * previous mapping of the key.
+     */
+    void put(int key, int value) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (i >= 0) {
+            mValues[i] = value;
+            return;
+        }
+        i = ~i;
+        if (mSize == mKeys.length) {
+            int capacity = Math.max(mSize * 2, 4);
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+        System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    /**
+     * Puts a mapping whose key is greater than all keys in the array.
+     */
+    void append(int key, int value) {
+        put(key, value);
+    }
+
+    /**
+     * Removes the mapping of the given key, if any.
+     */
+    void delete(int key) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (i >= 0) {
+            mSize--;
+            System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i);
+            System.arraycopy(mValues, i + 1, mValues, i, mSize - i);
+        }
+    }
+
+    /**
+     * Returns the number of mappings.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the key of the mapping at the given index, in ascending key
+     * order.
+     */
+    int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * Returns the value of the mapping at the given index, in ascending key
+     * order.
+     */
+    int valueAt(int index) {
+        return mValues[index];
+    }
+}
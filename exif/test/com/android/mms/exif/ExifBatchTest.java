@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ExifBatchTest {
+    private static final short TAG_ORIENTATION =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("exifbatch", "");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("Could not create " + mDir);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void readReturnsResultsInFileOrder() throws Exception {
+        List<File> files = new ArrayList<File>();
+        long bytes = 0;
+        for (int i = 0; i < 12; i++) {
+            // sizes differ, so the workers finish out of order
+            ByteOrder order = i % 2 == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            File file = write("read" + i + ".jpg",
+                    new ExifSamples(16 + (11 - i) * 16, 16, order).orientation(i % 8 + 1).build());
+            files.add(file);
+            bytes += file.length();
+        }
+
+        ExifBatch.Report report = new ExifBatch(3).read(files);
+
+        assertEquals(12, report.getFileCount());
+        assertEquals(0, report.getFailureCount());
+        assertEquals(bytes, report.getByteCount());
+        for (int i = 0; i < files.size(); i++) {
+            ExifBatch.Result r = report.getResults().get(i);
+            assertSame(files.get(i), r.getFile());
+            assertEquals(ExifBatch.Result.STATUS_READ, r.getStatus());
+            assertEquals(files.get(i).length(), r.getByteCount());
+            assertEquals("file " + i, i % 8 + 1, orientationOf(r.getTags()));
+        }
+    }
+
+    @Test
+    public void rewriteOverwritesValuesInPlace() throws Exception {
+        List<File> files = new ArrayList<File>();
+        List<byte[]> originals = new ArrayList<byte[]>();
+        for (ByteOrder order : new ByteOrder[] {
+                ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN
+        }) {
+            byte[] jpeg = new ExifSamples(64, 48, order).orientation(6).build();
+            files.add(write("inplace-" + order + ".jpg", jpeg));
+            originals.add(jpeg);
+        }
+        ExifTag orientation = new ExifInterface().buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.TOP_LEFT);
+
+        ExifBatch.Report report = new ExifBatch(2).rewrite(files,
+                Collections.singletonList(orientation));
+
+        assertEquals(0, report.getFailureCount());
+        for (int i = 0; i < files.size(); i++) {
+            ExifBatch.Result r = report.getResults().get(i);
+            assertEquals(ExifBatch.Result.STATUS_REWRITTEN_IN_PLACE, r.getStatus());
+            assertNull(r.getError());
+
+            byte[] rewritten = ExifInterfaceTest.readFile(files.get(i));
+            assertEquals(originals.get(i).length, rewritten.length);
+            assertEquals(1, ExifOrientationReader.readOrientation(rewritten));
+            assertArrayEquals(ExifInterfaceTest.imageData(originals.get(i)),
+                    ExifInterfaceTest.imageData(rewritten));
+        }
+        // the caller's tag is copied, not changed
+        assertEquals(1, orientation.getValueAsInt(0));
+    }
+
+    @Test
+    public void rewriteFallsBackToATempFileWhenSizesChange() throws Exception {
+        ExifSamples sample = new ExifSamples(64, 48, ByteOrder.BIG_ENDIAN).orientation(8);
+        File file = write("resized.jpg", sample.build());
+        ExifTag make = new ExifInterface().buildTag(ExifInterface.TAG_MAKE,
+                "A much longer camera make");
+
+        ExifBatch.Report report = new ExifBatch(1).rewrite(Collections.singletonList(file),
+                Collections.singletonList(make));
+
+        ExifBatch.Result r = report.getResults().get(0);
+        assertEquals(ExifBatch.Result.STATUS_REWRITTEN, r.getStatus());
+
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(file.getPath());
+        assertEquals("A much longer camera make\0",
+                exif.getTagStringValue(ExifInterface.TAG_MAKE));
+        assertEquals(Integer.valueOf(8), exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertArrayEquals(sample.getMakerNote(),
+                exif.getTagByteValues(ExifInterface.TAG_MAKER_NOTE));
+        assertArrayEquals(ExifInterfaceTest.imageData(sample.build()),
+                ExifInterfaceTest.imageData(ExifInterfaceTest.readFile(file)));
+
+        // only the rewritten file is left
+        assertEquals(1, mDir.listFiles().length);
+    }
+
+    @Test
+    public void rewriteAcceptsLazilyReadTags() throws Exception {
+        byte[] source = new ExifSamples(64, 48, ByteOrder.LITTLE_ENDIAN).orientation(3).build();
+        ExifInterface lazy = new ExifInterface();
+        lazy.setLazyDecoding(true);
+        lazy.readExif(source);
+        List<ExifTag> tags = new ArrayList<ExifTag>();
+        tags.add(lazy.getTag(ExifInterface.TAG_ORIENTATION));
+        tags.add(lazy.getTag(ExifInterface.TAG_MODEL));
+
+        File file = write("lazy.jpg", new ExifSamples(64, 48, ByteOrder.BIG_ENDIAN).build());
+        ExifBatch.Report report = new ExifBatch(2).rewrite(Collections.singletonList(file), tags);
+
+        assertEquals(ExifBatch.Result.STATUS_REWRITTEN_IN_PLACE,
+                report.getResults().get(0).getStatus());
+        assertEquals(3, ExifOrientationReader.readOrientation(ExifInterfaceTest.readFile(file)));
+    }
+
+    @Test
+    public void missingFilesFailWithoutStoppingTheBatch() throws Exception {
+        File first = write("first.jpg", new ExifSamples(32, 24, ByteOrder.BIG_ENDIAN).build());
+        File missing = new File(mDir, "missing.jpg");
+        File last = write("last.jpg", new ExifSamples(32, 24, ByteOrder.LITTLE_ENDIAN).build());
+        List<File> files = new ArrayList<File>();
+        files.add(first);
+        files.add(missing);
+        files.add(last);
+        ExifTag orientation = new ExifInterface().buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP);
+
+        ExifBatch.Report report = new ExifBatch(2).rewrite(files,
+                Collections.singletonList(orientation));
+
+        assertEquals(1, report.getFailureCount());
+        assertEquals(ExifBatch.Result.STATUS_REWRITTEN_IN_PLACE,
+                report.getResults().get(0).getStatus());
+        ExifBatch.Result failed = report.getResults().get(1);
+        assertSame(missing, failed.getFile());
+        assertEquals(ExifBatch.Result.STATUS_FAILED, failed.getStatus());
+        assertTrue(failed.getError() instanceof FileNotFoundException);
+        assertEquals(ExifBatch.Result.STATUS_REWRITTEN_IN_PLACE,
+                report.getResults().get(2).getStatus());
+        // not created by the attempt
+        assertFalse(missing.exists());
+
+        report = new ExifBatch(2).read(files);
+        assertEquals(1, report.getFailureCount());
+        failed = report.getResults().get(1);
+        assertEquals(ExifBatch.Result.STATUS_FAILED, failed.getStatus());
+        assertNotNull(failed.getError());
+        assertEquals(6, orientationOf(report.getResults().get(2).getTags()));
+    }
+
+    @Test
+    public void emptyBatchHasNoResults() throws Exception {
+        ExifBatch.Report report = new ExifBatch(4).read(new ArrayList<File>());
+        assertEquals(0, report.getFileCount());
+        assertEquals(0, report.getFailureCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAThread() {
+        new ExifBatch(0);
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static int orientationOf(List<ExifTag> tags) {
+        for (ExifTag t : tags) {
+            if (t.getTagId() == TAG_ORIENTATION && t.getIfd() == IfdId.TYPE_IFD_0) {
+                return t.getValueAsInt(0);
+            }
+        }
+        return 0;
+    }
+}
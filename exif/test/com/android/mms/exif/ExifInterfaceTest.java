@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ExifInterfaceTest {
+    private static final ByteOrder[] ORDERS = {
+            ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN
+    };
+
+    @Test
+    public void readsCameraTagsInBothByteOrders() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(6);
+            for (boolean lazy : new boolean[] {
+                    false, true
+            }) {
+                ExifInterface exif = new ExifInterface();
+                exif.setLazyDecoding(lazy);
+                exif.readExif(sample.build());
+                assertCameraTags(order + (lazy ? " lazy" : " eager"), sample, exif, 6, 64, 48);
+            }
+        }
+    }
+
+    @Test
+    public void everySourceReadsTheSameTags() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            byte[] jpeg = new ExifSamples(64, 48, order).build();
+            ExifInterface expected = new ExifInterface();
+            expected.readExif(jpeg);
+
+            ExifInterface fromStream = new ExifInterface();
+            fromStream.readExif(new ByteArrayInputStream(jpeg));
+            assertSameTags(order + " stream", expected, fromStream);
+
+            // the image starts at the buffer's position, which is kept
+            ByteBuffer buf = ByteBuffer.allocate(jpeg.length + 10);
+            buf.position(10);
+            buf.put(jpeg);
+            buf.position(10);
+            ExifInterface fromBuffer = new ExifInterface();
+            fromBuffer.setLazyDecoding(true);
+            fromBuffer.readExif(buf);
+            assertEquals(10, buf.position());
+            assertSameTags(order + " buffer", expected, fromBuffer);
+
+            File file = writeTemp(jpeg);
+            try {
+                ExifInterface fromName = new ExifInterface();
+                fromName.setLazyDecoding(true);
+                fromName.readExif(file.getPath());
+                assertSameTags(order + " file name", expected, fromName);
+
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    ExifInterface fromFd = new ExifInterface();
+                    fromFd.setLazyDecoding(true);
+                    fromFd.readExif(in.getFD());
+                    assertSameTags(order + " descriptor", expected, fromFd);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void lazyValuesMatchEagerValues() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            byte[] jpeg = new ExifSamples(64, 48, order).build();
+            ExifInterface eager = new ExifInterface();
+            eager.readExif(jpeg);
+            ExifInterface lazy = new ExifInterface();
+            lazy.setLazyDecoding(true);
+            lazy.readExif(jpeg);
+
+            List<ExifTag> eagerTags = eager.getAllTags();
+            assertEquals(order.toString(), eagerTags.size(), lazy.getAllTags().size());
+            for (ExifTag e : eagerTags) {
+                ExifTag l = lazy.getTag(ExifInterface.defineTag(e.getIfd(), e.getTagId()),
+                        e.getIfd());
+                assertNotNull(order + " " + e, l);
+                assertEquals(order + " count of " + e, e.getComponentCount(),
+                        l.getComponentCount());
+                assertEquals(order.toString(), e, l);
+            }
+        }
+    }
+
+    @Test
+    public void copyOfLazyTagHasTheDecodedCount() throws IOException {
+        byte[] jpeg = new ExifSamples(64, 48, ByteOrder.LITTLE_ENDIAN).build();
+        ExifInterface eager = new ExifInterface();
+        eager.readExif(jpeg);
+        ExifInterface lazy = new ExifInterface();
+        lazy.setLazyDecoding(true);
+        lazy.readExif(jpeg);
+
+        int[] tags = {
+                ExifInterface.TAG_MAKE, ExifInterface.TAG_MAKER_NOTE,
+                ExifInterface.TAG_X_RESOLUTION, ExifInterface.TAG_GPS_LATITUDE
+        };
+        for (int tag : tags) {
+            ExifTag copy = new ExifTag(lazy.getTag(tag));
+            ExifTag expected = eager.getTag(tag);
+            assertEquals(expected.getComponentCount(), copy.getComponentCount());
+            assertEquals(expected, copy);
+        }
+    }
+
+    @Test
+    public void writeKeepsEveryTagAndTheImage() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(3);
+            byte[] jpeg = sample.build();
+            ExifInterface exif = new ExifInterface();
+            exif.setLazyDecoding(true);
+            exif.readExif(jpeg);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            exif.writeExif(jpeg, out);
+            byte[] written = out.toByteArray();
+
+            ExifInterface reread = new ExifInterface();
+            reread.readExif(written);
+            assertCameraTags(order + " written", sample, reread, 3, 64, 48);
+            assertSameTags(order + " written", exif, reread);
+            assertArrayEquals(order.toString(), imageData(jpeg), imageData(written));
+        }
+    }
+
+    @Test
+    public void writeChangesTagsWithoutTouchingOthers() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(6);
+            byte[] jpeg = sample.build();
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(jpeg);
+            assertTrue(exif.setTagValue(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.Orientation.TOP_LEFT));
+            assertTrue(exif.setTagValue(ExifInterface.TAG_PIXEL_X_DIMENSION, 48L));
+            assertTrue(exif.setTagValue(ExifInterface.TAG_PIXEL_Y_DIMENSION, 64L));
+            exif.removeCompressedThumbnail();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            exif.writeExif(jpeg, out);
+            ExifInterface reread = new ExifInterface();
+            reread.readExif(out.toByteArray());
+
+            assertEquals(order.toString(), Integer.valueOf(1),
+                    reread.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+            assertEquals(order.toString(), Long.valueOf(48),
+                    reread.getTagLongValue(ExifInterface.TAG_PIXEL_X_DIMENSION));
+            assertEquals(order.toString(), Long.valueOf(64),
+                    reread.getTagLongValue(ExifInterface.TAG_PIXEL_Y_DIMENSION));
+            assertFalse(order.toString(), reread.hasThumbnail());
+            assertArrayEquals(order.toString(), sample.getMakerNote(),
+                    reread.getTagByteValues(ExifInterface.TAG_MAKER_NOTE));
+            assertEquals(order.toString(), ExifSamples.EXPOSURE_TIME,
+                    reread.getTagRationalValue(ExifInterface.TAG_EXPOSURE_TIME));
+        }
+    }
+
+    @Test
+    public void rewriteChangesTheFileInPlace() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            byte[] jpeg = new ExifSamples(64, 48, order).orientation(8).build();
+            File file = writeTemp(jpeg);
+            try {
+                ExifInterface exif = new ExifInterface();
+                ExifTag orientation = exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                        ExifInterface.Orientation.BOTTOM_LEFT);
+                assertTrue(order.toString(), exif.rewriteExif(file.getPath(),
+                        Collections.singletonList(orientation)));
+
+                byte[] rewritten = readFile(file);
+                assertEquals(order.toString(), jpeg.length, rewritten.length);
+                assertEquals(order.toString(), 3,
+                        ExifOrientationReader.readOrientation(rewritten));
+
+                // nothing but the value changed
+                int changed = 0;
+                for (int i = 0; i < jpeg.length; i++) {
+                    if (jpeg[i] != rewritten[i]) {
+                        changed++;
+                    }
+                }
+                assertEquals(order.toString(), 1, changed);
+
+                // a value of another size cannot be rewritten in place
+                ExifTag make = exif.buildTag(ExifInterface.TAG_MAKE, "A longer make");
+                assertFalse(order.toString(), exif.rewriteExif(file.getPath(),
+                        Collections.singletonList(make)));
+                assertArrayEquals(order.toString(), rewritten, readFile(file));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void fileWritesMatchTheStream() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(6);
+            checkFileWrites(order.toString(), sample.build(), sample.build());
+
+            // what was written must also read back
+            File in = writeTemp(sample.build());
+            File out = File.createTempFile("exif", ".jpg");
+            try {
+                ExifInterface exif = new ExifInterface();
+                exif.readExif(in.getPath());
+                exif.writeExif(in.getPath(), out.getPath());
+                ExifInterface reread = new ExifInterface();
+                reread.readExif(out.getPath());
+                assertCameraTags(order + " file", sample, reread, 6, 64, 48);
+            } finally {
+                in.delete();
+                out.delete();
+            }
+        }
+    }
+
+    @Test
+    public void fileWritesFindExifAfterOtherSegments() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(3).afterJfif();
+            byte[] jpeg = sample.build();
+            byte[] written = checkFileWrites(order.toString(), jpeg, jpeg);
+
+            // the new header replaces the old one, the JFIF segment stays
+            ExifInterface reread = new ExifInterface();
+            reread.readExif(written);
+            assertCameraTags(order + " after JFIF", sample, reread, 1, 64, 48);
+            assertEquals(order.toString(), 1, countExifSegments(written));
+            assertTrue(order.toString(), indexOf(written, "JFIF".getBytes()) >= 0);
+        }
+    }
+
+    @Test
+    public void fileWritesHandleUnusualSegments() throws IOException {
+        // a segment too short to hold its own length stops the scan for
+        // the Exif header before the old one is seen, so the rest of the
+        // file has to go through the stream as well
+        byte[] jpeg = new ExifSamples(64, 48, ByteOrder.LITTLE_ENDIAN).build();
+        byte[] unusual = new byte[jpeg.length + 4];
+        System.arraycopy(jpeg, 0, unusual, 0, 2);
+        unusual[2] = (byte) 0xff;
+        unusual[3] = (byte) 0xfe;
+        unusual[4] = 0;
+        unusual[5] = 1;
+        System.arraycopy(jpeg, 2, unusual, 6, jpeg.length - 2);
+
+        byte[] written = checkFileWrites("unusual", jpeg, unusual);
+        assertEquals(1, countExifSegments(written));
+        assertEquals(1, ExifOrientationReader.readOrientation(written));
+    }
+
+    @Test
+    public void imageWithoutExifHasNoTags() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setLazyDecoding(true);
+        exif.readExif(ExifSamples.plainJpeg(32, 32));
+        assertNull(exif.getAllTags());
+        assertFalse(exif.hasThumbnail());
+    }
+
+    // Writes the tags read from source into the JPEG with every file variant
+    // of writeExif, checks that each produces exactly what the stream
+    // variant does, and returns that.
+    private static byte[] checkFileWrites(String what, byte[] source, byte[] jpeg)
+            throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(source);
+        exif.setTagValue(ExifInterface.TAG_ORIENTATION, ExifInterface.Orientation.TOP_LEFT);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        exif.writeExif(jpeg, stream);
+        byte[] expected = stream.toByteArray();
+
+        File in = writeTemp(jpeg);
+        File out = File.createTempFile("exif", ".jpg");
+        try {
+            exif.writeExif(in.getPath(), out.getPath());
+            assertArrayEquals(what + " from file name", expected, readFile(out));
+
+            FileInputStream is = new FileInputStream(in);
+            try {
+                exif.writeExif(is, out.getPath());
+            } finally {
+                is.close();
+            }
+            assertArrayEquals(what + " from FileInputStream", expected, readFile(out));
+
+            exif.writeExif(new ByteArrayInputStream(jpeg), out.getPath());
+            assertArrayEquals(what + " from InputStream", expected, readFile(out));
+
+            exif.writeExif(jpeg, out.getPath());
+            assertArrayEquals(what + " from byte array", expected, readFile(out));
+        } finally {
+            in.delete();
+            out.delete();
+        }
+        return expected;
+    }
+
+    private static int countExifSegments(byte[] jpeg) {
+        int count = 0;
+        byte[] exifHeader = {
+                'E', 'x', 'i', 'f', 0, 0
+        };
+        for (int i = 0; i + 10 <= jpeg.length; i++) {
+            if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) == 0xe1
+                    && Arrays.equals(Arrays.copyOfRange(jpeg, i + 4, i + 10), exifHeader)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static void assertCameraTags(String what, ExifSamples sample, ExifInterface exif,
+            int orientation, int width, int height) throws IOException {
+        assertEquals(what, ExifSamples.MAKE, trim(exif.getTagStringValue(ExifInterface.TAG_MAKE)));
+        assertEquals(what, ExifSamples.MODEL,
+                trim(exif.getTagStringValue(ExifInterface.TAG_MODEL)));
+        assertEquals(what, Integer.valueOf(orientation),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(what, ExifSamples.RESOLUTION,
+                exif.getTagRationalValue(ExifInterface.TAG_X_RESOLUTION));
+        assertEquals(what, Integer.valueOf(2),
+                exif.getTagIntValue(ExifInterface.TAG_RESOLUTION_UNIT));
+        assertEquals(what, ExifSamples.DATE_TIME,
+                trim(exif.getTagStringValue(ExifInterface.TAG_DATE_TIME_ORIGINAL)));
+        assertEquals(what, ExifSamples.EXPOSURE_TIME,
+                exif.getTagRationalValue(ExifInterface.TAG_EXPOSURE_TIME));
+        assertEquals(what, ExifSamples.F_NUMBER,
+                exif.getTagRationalValue(ExifInterface.TAG_F_NUMBER));
+        assertEquals(what, Integer.valueOf(ExifSamples.ISO),
+                exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS));
+        assertEquals(what, Long.valueOf(width),
+                exif.getTagLongValue(ExifInterface.TAG_PIXEL_X_DIMENSION));
+        assertEquals(what, Long.valueOf(height),
+                exif.getTagLongValue(ExifInterface.TAG_PIXEL_Y_DIMENSION));
+        assertArrayEquals(what, sample.getMakerNote(),
+                exif.getTagByteValues(ExifInterface.TAG_MAKER_NOTE));
+        assertArrayEquals(what, new byte[] {
+                2, 2, 0, 0
+        }, exif.getTagByteValues(ExifInterface.TAG_GPS_VERSION_ID));
+        assertArrayEquals(what, ExifSamples.LATITUDE,
+                exif.getTagRationalValues(ExifInterface.TAG_GPS_LATITUDE));
+
+        double[] latLong = exif.getLatLongAsDoubles();
+        assertNotNull(what, latLong);
+        assertEquals(what, ExifSamples.LATITUDE_DEGREES, latLong[0], 1e-9);
+        assertEquals(what, ExifSamples.LONGITUDE_DEGREES, latLong[1], 1e-9);
+
+        assertTrue(what, exif.hasThumbnail());
+        assertArrayEquals(what, sample.getThumbnail(), exif.getThumbnail());
+    }
+
+    static void assertSameTags(String what, ExifInterface expected, ExifInterface actual) {
+        List<ExifTag> expectedTags = expected.getAllTags();
+        assertEquals(what, expectedTags.size(), actual.getAllTags().size());
+        for (ExifTag e : expectedTags) {
+            ExifTag a = actual.getTag(ExifInterface.defineTag(e.getIfd(), e.getTagId()),
+                    e.getIfd());
+            assertNotNull(what + ": missing " + e, a);
+            // offsets are recomputed on write, the values they point to
+            // are checked separately
+            if (!ExifInterface.isOffsetTag(e.getTagId())) {
+                assertEquals(what, e, a);
+            }
+        }
+        assertArrayEquals(what, expected.getThumbnail(), actual.getThumbnail());
+    }
+
+    // Returns the bytes from the first marker after the Exif header to the
+    // end of the image.
+    static byte[] imageData(byte[] jpeg) {
+        int segment = ExifBytes.findExifSegment(jpeg, 0, jpeg.length);
+        int start = 2;
+        if (segment >= 0) {
+            start = segment + 2 + (ExifBytes.readShort(jpeg, segment + 2, false) & 0xffff);
+        }
+        return Arrays.copyOfRange(jpeg, start, jpeg.length);
+    }
+
+    static File writeTemp(byte[] data) throws IOException {
+        File file = File.createTempFile("exif", ".jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    // ASCII values keep their terminating NUL
+    private static String trim(String value) {
+        if (value != null && value.endsWith("\0")) {
+            return value.substring(0, value.length() - 1);
+        }
+        return value;
+    }
+}
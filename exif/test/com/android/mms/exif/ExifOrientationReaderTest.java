@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public class ExifOrientationReaderTest {
+    private static final ByteOrder[] ORDERS = {
+            ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN
+    };
+
+    @Test
+    public void readsOrientationInBothByteOrders() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            for (int orientation = 1; orientation <= 8; orientation++) {
+                byte[] jpeg = new ExifSamples(32, 24, order).orientation(orientation).build();
+                assertEquals(order.toString(), orientation,
+                        ExifOrientationReader.readOrientation(jpeg));
+            }
+        }
+    }
+
+    @Test
+    public void readsOrientationWithinARange() throws IOException {
+        byte[] jpeg = new ExifSamples(32, 24, ByteOrder.BIG_ENDIAN).orientation(6).build();
+        byte[] padded = new byte[jpeg.length + 20];
+        System.arraycopy(jpeg, 0, padded, 7, jpeg.length);
+        assertEquals(6, ExifOrientationReader.readOrientation(padded, 7, jpeg.length));
+        // the range ends inside the Exif header
+        assertEquals(0, ExifOrientationReader.readOrientation(padded, 7, 40));
+    }
+
+    @Test
+    public void noOrientationWithoutExif() throws IOException {
+        assertEquals(0, ExifOrientationReader.readOrientation(ExifSamples.plainJpeg(16, 16)));
+        assertEquals(0, ExifOrientationReader.readOrientation(new byte[] {
+                1, 2, 3
+        }));
+
+        byte[] jpeg = new ExifSamples(32, 24, ByteOrder.LITTLE_ENDIAN).build();
+        for (int length = 0; length < 200; length++) {
+            assertEquals(0, ExifOrientationReader.readOrientation(Arrays.copyOf(jpeg, length)));
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Builds JPEGs with an Exif header laid out the way cameras write it: IFD0
+ * with the camera and resolution tags, an Exif sub-IFD with exposure data,
+ * pixel dimensions and a maker note, a GPS sub-IFD, and IFD1 with a JPEG
+ * thumbnail. The TIFF structure is written by hand here, not by the code
+ * under test, in either byte order.
+ */
+class ExifSamples {
+    static final String MAKE = "TestCam";
+    static final String MODEL = "Model X1";
+    static final String DATE_TIME = "2015:06:01 12:34:56";
+    static final Rational RESOLUTION = new Rational(72, 1);
+    static final Rational EXPOSURE_TIME = new Rational(1, 60);
+    static final Rational F_NUMBER = new Rational(22, 10);
+    static final int ISO = 100;
+    // 45 deg 30' 0", north; 73 deg 15' 36", west
+    static final Rational[] LATITUDE = {
+            new Rational(45, 1), new Rational(30, 1), new Rational(0, 1)
+    };
+    static final Rational[] LONGITUDE = {
+            new Rational(73, 1), new Rational(15, 1), new Rational(3600, 100)
+    };
+    static final double LATITUDE_DEGREES = 45.5;
+    static final double LONGITUDE_DEGREES = -73.26;
+
+    private static final short TYPE_BYTE = 1;
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final short TYPE_UNDEFINED = 7;
+
+    private final ByteOrder mOrder;
+    private final int mWidth;
+    private final int mHeight;
+    private int mOrientation = 1;
+    private boolean mShortDimensions = false;
+    private boolean mAfterJfif = false;
+    private byte[] mImage;
+    private byte[] mThumbnail;
+    private byte[] mMakerNote;
+
+    ExifSamples(int width, int height, ByteOrder order) {
+        mWidth = width;
+        mHeight = height;
+        mOrder = order;
+        mMakerNote = new byte[40];
+        for (int i = 0; i < mMakerNote.length; i++) {
+            mMakerNote[i] = (byte) (i * 7 + 3);
+        }
+    }
+
+    ExifSamples orientation(int orientation) {
+        mOrientation = orientation;
+        return this;
+    }
+
+    /**
+     * Stores the pixel dimensions as SHORT rather than LONG, as some
+     * cameras do.
+     */
+    ExifSamples shortDimensions() {
+        mShortDimensions = true;
+        return this;
+    }
+
+    /**
+     * Places the Exif header after the JFIF APP0 segment of the image rather
+     * than right after SOI.
+     */
+    ExifSamples afterJfif() {
+        mAfterJfif = true;
+        return this;
+    }
+
+    byte[] getMakerNote() {
+        return mMakerNote.clone();
+    }
+
+    byte[] getThumbnail() throws IOException {
+        if (mThumbnail == null) {
+            mThumbnail = plainJpeg(16, 12);
+        }
+        return mThumbnail.clone();
+    }
+
+    /**
+     * Returns the image without the Exif header, as produced by the JDK's
+     * encoder.
+     */
+    byte[] getImage() throws IOException {
+        if (mImage == null) {
+            mImage = plainJpeg(mWidth, mHeight);
+        }
+        return mImage.clone();
+    }
+
+    /**
+     * Returns the JPEG: SOI, the Exif APP1 segment, then the rest of the
+     * image.
+     */
+    byte[] build() throws IOException {
+        byte[] image = getImage();
+        byte[] tiff = buildTiff();
+        int insertAt = 2;
+        if (mAfterJfif) {
+            ByteBuffer buf = ByteBuffer.wrap(image);
+            if (buf.getShort(2) != JpegHeader.APP0) {
+                throw new IOException("No JFIF segment");
+            }
+            insertAt = 4 + (buf.getShort(4) & 0xffff);
+        }
+        int segmentLength = 2 + 6 + tiff.length;
+        ByteBuffer out = ByteBuffer.allocate(2 + segmentLength + image.length);
+        out.put(image, 0, insertAt);
+        out.putShort(JpegHeader.APP1);
+        out.putShort((short) segmentLength);
+        out.put(new byte[] {
+                'E', 'x', 'i', 'f', 0, 0
+        });
+        out.put(tiff);
+        out.put(image, insertAt, image.length - insertAt);
+        return out.array();
+    }
+
+    static byte[] plainJpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "jpeg", out)) {
+            throw new IOException("No JPEG encoder");
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] buildTiff() throws IOException {
+        byte[] thumbnail = getThumbnail();
+
+        Ifd ifd0 = new Ifd();
+        ifd0.add(0x010F, TYPE_ASCII, ascii(MAKE));
+        ifd0.add(0x0110, TYPE_ASCII, ascii(MODEL));
+        ifd0.add(0x0112, TYPE_SHORT, shorts(mOrientation));
+        ifd0.add(0x011A, TYPE_RATIONAL, rationals(RESOLUTION));
+        ifd0.add(0x011B, TYPE_RATIONAL, rationals(RESOLUTION));
+        ifd0.add(0x0128, TYPE_SHORT, shorts(2));
+        ifd0.add(0x0132, TYPE_ASCII, ascii(DATE_TIME));
+        Entry exifPointer = ifd0.add(0x8769, TYPE_LONG, longs(0));
+        Entry gpsPointer = ifd0.add(0x8825, TYPE_LONG, longs(0));
+
+        Ifd exif = new Ifd();
+        exif.add(0x829A, TYPE_RATIONAL, rationals(EXPOSURE_TIME));
+        exif.add(0x829D, TYPE_RATIONAL, rationals(F_NUMBER));
+        exif.add(0x8827, TYPE_SHORT, shorts(ISO));
+        exif.add(0x9003, TYPE_ASCII, ascii(DATE_TIME));
+        exif.add(0x927C, TYPE_UNDEFINED, mMakerNote);
+        if (mShortDimensions) {
+            exif.add(0xA002, TYPE_SHORT, shorts(mWidth));
+            exif.add(0xA003, TYPE_SHORT, shorts(mHeight));
+        } else {
+            exif.add(0xA002, TYPE_LONG, longs(mWidth));
+            exif.add(0xA003, TYPE_LONG, longs(mHeight));
+        }
+
+        Ifd gps = new Ifd();
+        gps.add(0x0000, TYPE_BYTE, new byte[] {
+                2, 2, 0, 0
+        });
+        gps.add(0x0001, TYPE_ASCII, ascii("N"));
+        gps.add(0x0002, TYPE_RATIONAL, rationals(LATITUDE));
+        gps.add(0x0003, TYPE_ASCII, ascii("W"));
+        gps.add(0x0004, TYPE_RATIONAL, rationals(LONGITUDE));
+
+        Ifd ifd1 = new Ifd();
+        ifd1.add(0x0103, TYPE_SHORT, shorts(6));
+        Entry thumbnailOffset = ifd1.add(0x0201, TYPE_LONG, longs(0));
+        ifd1.add(0x0202, TYPE_LONG, longs(thumbnail.length));
+
+        // lay out: header, IFD0, Exif IFD, GPS IFD, IFD1, thumbnail
+        int offset = 8;
+        ifd0.mOffset = offset;
+        offset += ifd0.size();
+        exif.mOffset = offset;
+        offset += exif.size();
+        gps.mOffset = offset;
+        offset += gps.size();
+        ifd1.mOffset = offset;
+        offset += ifd1.size();
+        int thumbnailStart = offset;
+        offset += thumbnail.length;
+
+        exifPointer.mValue = longs(exif.mOffset);
+        gpsPointer.mValue = longs(gps.mOffset);
+        thumbnailOffset.mValue = longs(thumbnailStart);
+
+        ByteBuffer out = ByteBuffer.allocate(offset).order(mOrder);
+        out.putShort(mOrder == ByteOrder.LITTLE_ENDIAN ? ExifParser.LITTLE_ENDIAN_TAG
+                : ExifParser.BIG_ENDIAN_TAG);
+        out.putShort(ExifParser.TIFF_HEADER_TAIL);
+        out.putInt(ifd0.mOffset);
+        ifd0.write(out, ifd1.mOffset);
+        exif.write(out, 0);
+        gps.write(out, 0);
+        ifd1.write(out, 0);
+        out.put(thumbnail);
+        return out.array();
+    }
+
+    private static byte[] ascii(String value) {
+        return Arrays.copyOf(value.getBytes(), value.length() + 1);
+    }
+
+    private byte[] shorts(int value) {
+        return ByteBuffer.allocate(2).order(mOrder).putShort((short) value).array();
+    }
+
+    private byte[] longs(int value) {
+        return ByteBuffer.allocate(4).order(mOrder).putInt(value).array();
+    }
+
+    private byte[] rationals(Rational... values) {
+        ByteBuffer buf = ByteBuffer.allocate(8 * values.length).order(mOrder);
+        for (Rational r : values) {
+            buf.putInt((int) r.getNumerator());
+            buf.putInt((int) r.getDenominator());
+        }
+        return buf.array();
+    }
+
+    private static class Entry {
+        final short mTag;
+        final short mType;
+        byte[] mValue;
+
+        Entry(int tag, short type, byte[] value) {
+            mTag = (short) tag;
+            mType = type;
+            mValue = value;
+        }
+
+        int count() {
+            switch (mType) {
+                case TYPE_SHORT:
+                    return mValue.length / 2;
+                case TYPE_LONG:
+                    return mValue.length / 4;
+                case TYPE_RATIONAL:
+                    return mValue.length / 8;
+                default:
+                    return mValue.length;
+            }
+        }
+    }
+
+    private static class Ifd {
+        final List<Entry> mEntries = new ArrayList<Entry>();
+        int mOffset;
+
+        // entries must be added in ascending tag order
+        Entry add(int tag, short type, byte[] value) {
+            Entry entry = new Entry(tag, type, value);
+            mEntries.add(entry);
+            return entry;
+        }
+
+        int size() {
+            int size = 2 + 12 * mEntries.size() + 4;
+            for (Entry e : mEntries) {
+                if (e.mValue.length > 4) {
+                    size += e.mValue.length + (e.mValue.length & 1);
+                }
+            }
+            return size;
+        }
+
+        void write(ByteBuffer out, int nextIfd) {
+            int data = mOffset + 2 + 12 * mEntries.size() + 4;
+            out.putShort((short) mEntries.size());
+            for (Entry e : mEntries) {
+                out.putShort(e.mTag);
+                out.putShort(e.mType);
+                out.putInt(e.count());
+                if (e.mValue.length > 4) {
+                    out.putInt(data);
+                    data += e.mValue.length + (e.mValue.length & 1);
+                } else {
+                    out.put(Arrays.copyOf(e.mValue, 4));
+                }
+            }
+            out.putInt(nextIfd);
+            for (Entry e : mEntries) {
+                if (e.mValue.length > 4) {
+                    out.put(e.mValue);
+                    if ((e.mValue.length & 1) != 0) {
+                        out.put((byte) 0);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.exif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+
+public class ExifSegmentCopierTest {
+    private static final ByteOrder[] ORDERS = {
+            ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN
+    };
+
+    @Test
+    public void copyPatchesOrientationAndDimensions() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(6);
+            byte[] jpeg = sample.build();
+            byte[] segment = ExifSegmentCopier.copyExifSegment(jpeg, 1, 48, 64, false);
+            assertNotNull(order.toString(), segment);
+
+            // the source is left alone
+            assertEquals(order.toString(), 6, ExifOrientationReader.readOrientation(jpeg));
+
+            ExifInterface exif = readSegment(segment);
+            ExifInterfaceTest.assertCameraTags(order + " kept thumbnail", sample, exif, 1, 48, 64);
+        }
+    }
+
+    @Test
+    public void copyCanDropTheThumbnail() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(8);
+            byte[] segment = ExifSegmentCopier.copyExifSegment(sample.build(), 1, 48, 64, true);
+
+            ExifInterface exif = readSegment(segment);
+            assertFalse(order.toString(), exif.hasThumbnail());
+            assertEquals(order.toString(), Integer.valueOf(1),
+                    exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+            assertArrayEquals(order.toString(), sample.getMakerNote(),
+                    exif.getTagByteValues(ExifInterface.TAG_MAKER_NOTE));
+        }
+    }
+
+    @Test
+    public void patchesShortDimensions() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            byte[] jpeg = new ExifSamples(64, 48, order).shortDimensions().build();
+            byte[] segment = ExifSegmentCopier.copyExifSegment(jpeg, 6, 48, 64, false);
+
+            ExifInterface exif = readSegment(segment);
+            assertEquals(order.toString(), Integer.valueOf(48),
+                    exif.getTagIntValue(ExifInterface.TAG_PIXEL_X_DIMENSION));
+            assertEquals(order.toString(), Integer.valueOf(64),
+                    exif.getTagIntValue(ExifInterface.TAG_PIXEL_Y_DIMENSION));
+        }
+    }
+
+    @Test
+    public void writerStreamReplacesTheExifHeader() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(6);
+            byte[] segment = ExifSegmentCopier.copyExifSegment(sample.build(), 1, 48, 64, true);
+
+            // a re-encoded image: no Exif header of its own
+            byte[] reencoded = ExifSamples.plainJpeg(48, 64);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputStream s = ExifSegmentCopier.getExifWriterStream(segment, out);
+            s.write(reencoded);
+            s.close();
+            byte[] result = out.toByteArray();
+
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(result);
+            assertEquals(order.toString(), ExifSamples.MAKE + "\0",
+                    exif.getTagStringValue(ExifInterface.TAG_MAKE));
+            assertEquals(order.toString(), 1, ExifOrientationReader.readOrientation(result));
+            assertEquals(order.toString(), Long.valueOf(48),
+                    exif.getTagLongValue(ExifInterface.TAG_PIXEL_X_DIMENSION));
+            assertArrayEquals(order.toString(), sample.getMakerNote(),
+                    exif.getTagByteValues(ExifInterface.TAG_MAKER_NOTE));
+            assertArrayEquals(order.toString(), ExifInterfaceTest.imageData(reencoded),
+                    ExifInterfaceTest.imageData(result));
+
+            // an image that has an Exif header gets the new one instead
+            out = new ByteArrayOutputStream();
+            s = ExifSegmentCopier.getExifWriterStream(segment, out);
+            s.write(new ExifSamples(48, 64, order).orientation(3).build());
+            s.close();
+            assertEquals(order.toString(), 1,
+                    ExifOrientationReader.readOrientation(out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void patchChangesOnlyTheValues() throws IOException {
+        for (ByteOrder order : ORDERS) {
+            ExifSamples sample = new ExifSamples(64, 48, order).orientation(6);
+            byte[] jpeg = sample.build();
+            byte[] patched = jpeg.clone();
+            assertTrue(order.toString(),
+                    ExifSegmentCopier.patchExifSegment(patched, 1, 48, 64, true));
+            assertEquals(order.toString(), jpeg.length, patched.length);
+
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(patched);
+            assertEquals(order.toString(), Integer.valueOf(1),
+                    exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+            assertEquals(order.toString(), Long.valueOf(48),
+                    exif.getTagLongValue(ExifInterface.TAG_PIXEL_X_DIMENSION));
+            assertEquals(order.toString(), Long.valueOf(64),
+                    exif.getTagLongValue(ExifInterface.TAG_PIXEL_Y_DIMENSION));
+            assertFalse(order.toString(), exif.hasThumbnail());
+            assertArrayEquals(order.toString(), sample.getMakerNote(),
+                    exif.getTagByteValues(ExifInterface.TAG_MAKER_NOTE));
+            assertArrayEquals(order.toString(), ExifInterfaceTest.imageData(jpeg),
+                    ExifInterfaceTest.imageData(patched));
+
+            // orientation, two dimensions, and the IFD1 offset, with
+            // each value in the low bytes of its field
+            int changed = 0;
+            for (int i = 0; i < jpeg.length; i++) {
+                if (jpeg[i] != patched[i]) {
+                    changed++;
+                }
+            }
+            assertTrue(order + ": " + changed + " bytes changed", changed > 0 && changed <= 8);
+        }
+    }
+
+    @Test
+    public void nothingToPatchWithoutExif() throws IOException {
+        byte[] jpeg = ExifSamples.plainJpeg(16, 16);
+        byte[] copy = jpeg.clone();
+        assertNull(ExifSegmentCopier.copyExifSegment(jpeg, 1, 16, 16, true));
+        assertFalse(ExifSegmentCopier.patchExifSegment(copy, 1, 16, 16, true));
+        assertArrayEquals(jpeg, copy);
+    }
+
+    @Test
+    public void damagedHeadersAreNotPatched() throws IOException {
+        byte[] jpeg = new ExifSamples(32, 24, ByteOrder.LITTLE_ENDIAN).build();
+        for (int i = 4; i < 200; i++) {
+            byte[] damaged = jpeg.clone();
+            damaged[i] ^= 0x5A;
+            // must not throw, whatever the damage
+            ExifSegmentCopier.copyExifSegment(damaged, 1, 24, 32, true);
+            ExifSegmentCopier.patchExifSegment(damaged, 1, 24, 32, true);
+            ExifOrientationReader.readOrientation(damaged);
+        }
+    }
+
+    // Reads the tags of an APP1 segment, as the only header of an image.
+    private static ExifInterface readSegment(byte[] segment) throws IOException {
+        byte[] image = ExifSamples.plainJpeg(8, 8);
+        byte[] jpeg = new byte[2 + segment.length + image.length - 2];
+        System.arraycopy(image, 0, jpeg, 0, 2);
+        System.arraycopy(segment, 0, jpeg, 2, segment.length);
+        System.arraycopy(image, 2, jpeg, 2 + segment.length, image.length - 2);
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        return exif;
+    }
+}